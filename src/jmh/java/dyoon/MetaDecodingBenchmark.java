@@ -0,0 +1,79 @@
+package dyoon;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding the JSON values of the meta table into prejoins, samples and stats, the way
+ * {@link Meta} loads them, for the metadata of a synthetic workload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetaDecodingBenchmark {
+
+  @Param({"100", "1000", "10000", "100000"})
+  public int queryCount;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final List<String> prejoinJson = new ArrayList<>();
+  private final List<String> sampleJson = new ArrayList<>();
+  private final List<String> statJson = new ArrayList<>();
+
+  @Setup
+  public void setUp() {
+    SyntheticWorkload workload = new SyntheticWorkload(queryCount, 42);
+    prejoinJson.clear();
+    sampleJson.clear();
+    statJson.clear();
+    for (Prejoin p : workload.getPrejoins()) {
+      prejoinJson.add(p.toJSONString());
+    }
+    for (Sample s : workload.getSamples()) {
+      sampleJson.add(s.toJSONString());
+    }
+    for (Stat stat : workload.getStats()) {
+      statJson.add(stat.toJSONString());
+    }
+  }
+
+  @Benchmark
+  public void decodePrejoins(Blackhole bh) throws IOException {
+    for (String json : prejoinJson) {
+      bh.consume(mapper.readValue(json, Prejoin.class));
+    }
+  }
+
+  @Benchmark
+  public void decodeSamples(Blackhole bh) throws IOException {
+    for (String json : sampleJson) {
+      bh.consume(Meta.parseSample(mapper, json));
+    }
+  }
+
+  @Benchmark
+  public void decodeStats(Blackhole bh) throws IOException {
+    for (String json : statJson) {
+      bh.consume(mapper.readValue(json, Stat.class));
+    }
+  }
+}
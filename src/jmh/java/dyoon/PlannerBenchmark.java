@@ -0,0 +1,104 @@
+package dyoon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the inner loops of planning over a synthetic workload: matching queries to prejoins,
+ * containment between prejoins, sets of join column pairs, and the names of queries and samples.
+ * Each operation covers the whole workload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlannerBenchmark {
+
+  @Param({"100", "1000", "10000", "100000"})
+  public int queryCount;
+
+  private List<Query> queries;
+  private List<Prejoin> prejoins;
+  private List<Sample> samples;
+
+  @Setup
+  public void setUp() {
+    SyntheticWorkload workload = new SyntheticWorkload(queryCount, 42);
+    queries = workload.getQueries();
+    prejoins = workload.getPrejoins();
+    samples = workload.getSamples();
+  }
+
+  @Benchmark
+  public void prejoinSupports(Blackhole bh) {
+    for (Query q : queries) {
+      for (Prejoin p : prejoins) {
+        bh.consume(p.supports(SyntheticWorkload.DATABASE, q));
+      }
+    }
+  }
+
+  @Benchmark
+  public void prejoinIndexLookup(Blackhole bh) {
+    PrejoinIndex index = new PrejoinIndex(prejoins);
+    for (Query q : queries) {
+      bh.consume(index.findSmallestCovering(SyntheticWorkload.DATABASE, q));
+    }
+  }
+
+  @Benchmark
+  public void prejoinContains(Blackhole bh) {
+    for (Prejoin p1 : prejoins) {
+      for (Prejoin p2 : prejoins) {
+        bh.consume(p1.contains(p2));
+      }
+    }
+  }
+
+  @Benchmark
+  public void columnPairSets(Blackhole bh) {
+    Set<ColumnPair> hashed = new HashSet<>();
+    Set<ColumnPair> sorted = new TreeSet<>();
+    for (Query q : queries) {
+      for (ColumnPair pair : q.getJoinColumns()) {
+        ColumnPair ordered = ColumnPair.ordered(pair.getLeft(), pair.getRight());
+        hashed.add(ordered);
+        sorted.add(ordered);
+      }
+    }
+    bh.consume(hashed);
+    bh.consume(sorted);
+  }
+
+  @Benchmark
+  public void queryUniqueName(Blackhole bh) {
+    for (Query q : queries) {
+      bh.consume(q.getUniqueName());
+    }
+  }
+
+  @Benchmark
+  public void sampleToString(Blackhole bh) {
+    for (Sample s : samples) {
+      bh.consume(s.toString());
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * A random workload over a TPC-DS-like star schema, for benchmarking the planner without a
+ * database.
+ *
+ * <p>Each query picks a fact table, joins it with up to three of its dimension tables on their
+ * foreign keys, and groups by up to three columns of the joined tables. A prejoin is made for each
+ * distinct set of joined tables, with the columns of the queries it supports, and a stratified
+ * sample for each query column set of a fact table.
+ */
+public class SyntheticWorkload {
+
+  public static final String DATABASE = "tpcds";
+
+  // fact table -> its foreign key to each dimension table and its measures
+  private static final Map<String, String[][]> SCHEMA = new LinkedHashMap<>();
+  // dimension table -> primary key and attributes
+  private static final Map<String, String[]> DIMENSIONS = new LinkedHashMap<>();
+
+  static {
+    SCHEMA.put(
+        "store_sales",
+        new String[][] {
+          {"ss_item_sk", "item"},
+          {"ss_sold_date_sk", "date_dim"},
+          {"ss_store_sk", "store"},
+          {"ss_customer_sk", "customer"},
+          {"ss_promo_sk", "promotion"},
+          {"ss_sales_price", "ss_net_profit", "ss_quantity"}
+        });
+    SCHEMA.put(
+        "catalog_sales",
+        new String[][] {
+          {"cs_item_sk", "item"},
+          {"cs_sold_date_sk", "date_dim"},
+          {"cs_bill_customer_sk", "customer"},
+          {"cs_promo_sk", "promotion"},
+          {"cs_sales_price", "cs_net_profit", "cs_quantity"}
+        });
+    SCHEMA.put(
+        "web_sales",
+        new String[][] {
+          {"ws_item_sk", "item"},
+          {"ws_sold_date_sk", "date_dim"},
+          {"ws_bill_customer_sk", "customer"},
+          {"ws_sales_price", "ws_net_profit", "ws_quantity"}
+        });
+    DIMENSIONS.put("item", new String[] {"i_item_sk", "i_category", "i_brand", "i_class"});
+    DIMENSIONS.put("date_dim", new String[] {"d_date_sk", "d_year", "d_moy", "d_qoy"});
+    DIMENSIONS.put("store", new String[] {"s_store_sk", "s_state", "s_city", "s_store_name"});
+    DIMENSIONS.put("customer", new String[] {"c_customer_sk", "c_birth_country", "c_gender"});
+    DIMENSIONS.put("promotion", new String[] {"p_promo_sk", "p_channel_tv", "p_purpose"});
+  }
+
+  private final List<Query> queries = new ArrayList<>();
+  private final List<Prejoin> prejoins = new ArrayList<>();
+  private final List<Sample> samples = new ArrayList<>();
+  private final List<Stat> stats = new ArrayList<>();
+
+  public SyntheticWorkload(int queryCount, long seed) {
+    Random random = new Random(seed);
+    List<String> factTables = new ArrayList<>(SCHEMA.keySet());
+    Map<String, Prejoin> prejoinsByTables = new LinkedHashMap<>();
+    Map<String, Sample> samplesByColumns = new LinkedHashMap<>();
+
+    for (int i = 0; i < queryCount; ++i) {
+      String factTable = factTables.get(random.nextInt(factTables.size()));
+      String[][] fact = SCHEMA.get(factTable);
+      String[] measures = fact[fact.length - 1];
+
+      // a random subset of the dimensions, at most three
+      List<Integer> dimensions = new ArrayList<>();
+      for (int d = 0; d < fact.length - 1; ++d) {
+        dimensions.add(d);
+      }
+      Collections.shuffle(dimensions, random);
+      dimensions = dimensions.subList(0, random.nextInt(Math.min(3, dimensions.size()) + 1));
+
+      List<String> tables = new ArrayList<>(Arrays.asList(factTable));
+      List<Pair<String, String>> joinColumns = new ArrayList<>();
+      List<String> candidates = new ArrayList<>();
+      for (String[] foreignKey : fact) {
+        if (foreignKey.length == 2 && DIMENSIONS.containsKey(foreignKey[1])) {
+          candidates.add(foreignKey[0]);
+        }
+      }
+      for (int d : dimensions) {
+        String[] dimension = DIMENSIONS.get(fact[d][1]);
+        tables.add(fact[d][1]);
+        joinColumns.add(ImmutablePair.of(fact[d][0], dimension[0]));
+        candidates.addAll(Arrays.asList(dimension).subList(1, dimension.length));
+      }
+
+      TreeSet<String> columns = new TreeSet<>();
+      int columnCount = 1 + random.nextInt(3);
+      while (columns.size() < Math.min(columnCount, candidates.size())) {
+        columns.add(candidates.get(random.nextInt(candidates.size())));
+      }
+      String measure = measures[random.nextInt(measures.length)];
+      Query q = new Query(String.valueOf(i), new ArrayList<>(columns), tables, joinColumns);
+      q.setGroupByColumns(new ArrayList<>(columns));
+      q.setAggColumns(Arrays.asList(measure));
+      q.setQuery(
+          String.format(
+              "SELECT %s, sum(%s) FROM FACT_TABLE GROUP BY %s",
+              Joiner.on(", ").join(columns), measure, Joiner.on(", ").join(columns)));
+      queries.add(q);
+
+      String tableKey = new TreeSet<>(tables).toString();
+      Prejoin p = prejoinsByTables.get(tableKey);
+      if (p == null && tables.size() > 1) {
+        p = new Prejoin(DATABASE, factTable);
+        for (String table : tables) {
+          p.addTable(table);
+        }
+        for (Pair<String, String> pair : joinColumns) {
+          p.addJoinColumnPair(pair.getLeft(), pair.getRight());
+        }
+        prejoinsByTables.put(tableKey, p);
+      }
+      if (p != null) {
+        for (String column : q.getRequiredColumns()) {
+          p.addColumn(column);
+        }
+      }
+
+      String sampleKey = factTable + columns;
+      if (!samplesByColumns.containsKey(sampleKey)) {
+        Sample s = new Sample(q, Sample.Type.STRATIFIED, factTable, q.getJoinedTables(), columns);
+        samplesByColumns.put(sampleKey, s);
+        stats.add(
+            new Stat(
+                DATABASE,
+                q,
+                "q" + q.getId(),
+                1000000L + random.nextInt(1000000),
+                10000 + random.nextInt(10000),
+                1 + random.nextInt(1000),
+                500 + random.nextInt(500),
+                1 + random.nextInt(10),
+                1000 + random.nextInt(100000)));
+      } else {
+        samplesByColumns.get(sampleKey).addQuery(q);
+      }
+    }
+    prejoins.addAll(prejoinsByTables.values());
+    samples.addAll(samplesByColumns.values());
+  }
+
+  public List<Query> getQueries() {
+    return queries;
+  }
+
+  public List<Prejoin> getPrejoins() {
+    return prejoins;
+  }
+
+  public List<Sample> getSamples() {
+    return samples;
+  }
+
+  public List<Stat> getStats() {
+    return stats;
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * A subset of the Impala SQL dialect that covers the SELECT statements of our workload queries.
+ * It is only used to analyze and rewrite queries, so it accepts some statements that Impala would
+ * reject.
+ */
+grammar Sql;
+
+statement
+    : withClause? query ';'? EOF
+    ;
+
+withClause
+    : WITH namedQuery (',' namedQuery)*
+    ;
+
+namedQuery
+    : identifier AS '(' query ')'
+    ;
+
+query
+    : queryTerm (setOperator queryTerm)* orderByClause? limitClause?
+    ;
+
+setOperator
+    : UNION (ALL | DISTINCT)?
+    | INTERSECT
+    | EXCEPT
+    ;
+
+queryTerm
+    : querySpecification
+    | '(' query ')'
+    ;
+
+querySpecification
+    : SELECT setQuantifier? selectItem (',' selectItem)*
+      fromClause?
+      whereClause?
+      groupByClause?
+      havingClause?
+    ;
+
+setQuantifier
+    : DISTINCT
+    | ALL
+    ;
+
+selectItem
+    : expression (AS? identifier)?          #selectSingle
+    | (qualifiedName '.')? ASTERISK         #selectAll
+    ;
+
+fromClause
+    : FROM relation (',' relation)*
+    ;
+
+relation
+    : relationPrimary joinPart*
+    ;
+
+joinPart
+    : joinType? JOIN relationPrimary (ON expression | USING '(' identifier (',' identifier)* ')')?
+    ;
+
+joinType
+    : INNER
+    | CROSS
+    | LEFT OUTER?
+    | RIGHT OUTER?
+    | FULL OUTER?
+    | LEFT SEMI
+    | LEFT ANTI
+    ;
+
+relationPrimary
+    : qualifiedName (AS? identifier)?       #tableRelation
+    | '(' query ')' AS? identifier          #subqueryRelation
+    ;
+
+whereClause
+    : WHERE expression
+    ;
+
+groupByClause
+    : GROUP BY expression (',' expression)*
+    ;
+
+havingClause
+    : HAVING expression
+    ;
+
+orderByClause
+    : ORDER BY sortItem (',' sortItem)*
+    ;
+
+sortItem
+    : expression (ASC | DESC)? (NULLS (FIRST | LAST))?
+    ;
+
+limitClause
+    : LIMIT INTEGER_VALUE (OFFSET INTEGER_VALUE)?
+    ;
+
+expression
+    : booleanExpression
+    ;
+
+booleanExpression
+    : NOT booleanExpression                                 #logicalNot
+    | EXISTS '(' query ')'                                  #exists
+    | valueExpression predicate?                            #predicated
+    | booleanExpression AND booleanExpression               #logicalAnd
+    | booleanExpression OR booleanExpression                #logicalOr
+    ;
+
+predicate
+    : comparisonOperator valueExpression                    #comparison
+    | NOT? BETWEEN valueExpression AND valueExpression       #between
+    | NOT? IN '(' query ')'                                 #inSubquery
+    | NOT? IN '(' expression (',' expression)* ')'          #inList
+    | NOT? LIKE valueExpression                             #like
+    | IS NOT? NULL                                          #nullPredicate
+    | IS NOT? DISTINCT FROM valueExpression                 #distinctFrom
+    ;
+
+comparisonOperator
+    : EQ | NEQ | LT | LTE | GT | GTE | NSEQ
+    ;
+
+valueExpression
+    : primaryExpression                                                 #valueExpressionDefault
+    | operator=(MINUS | PLUS) valueExpression                           #arithmeticUnary
+    | valueExpression operator=(ASTERISK | SLASH | PERCENT) valueExpression  #arithmeticBinary
+    | valueExpression operator=(PLUS | MINUS) valueExpression           #arithmeticBinary
+    | valueExpression CONCAT valueExpression                            #concatenation
+    ;
+
+primaryExpression
+    : NULL                                                              #nullLiteral
+    | INTERVAL valueExpression identifier                               #intervalLiteral
+    | number                                                            #numericLiteral
+    | (TRUE | FALSE)                                                    #booleanLiteral
+    | STRING+                                                           #stringLiteral
+    | qualifiedName '(' ASTERISK ')' over?                              #functionCall
+    | qualifiedName '(' (setQuantifier? expression (',' expression)*)? ')' over?  #functionCall
+    | '(' query ')'                                                     #subqueryExpression
+    | CASE valueExpression whenClause+ (ELSE elseExpression=expression)? END  #simpleCase
+    | CASE whenClause+ (ELSE elseExpression=expression)? END            #searchedCase
+    | CAST '(' expression AS type ')'                                   #cast
+    | qualifiedName                                                     #columnReference
+    | '(' expression ')'                                                #parenthesizedExpression
+    ;
+
+over
+    : OVER '(' (PARTITION BY expression (',' expression)*)? orderByClause? ')'
+    ;
+
+whenClause
+    : WHEN condition=expression THEN result=expression
+    ;
+
+type
+    : identifier ('(' INTEGER_VALUE (',' INTEGER_VALUE)* ')')?
+    ;
+
+qualifiedName
+    : identifier ('.' identifier)*
+    ;
+
+identifier
+    : IDENTIFIER
+    | BACKQUOTED_IDENTIFIER
+    | nonReserved
+    ;
+
+number
+    : DECIMAL_VALUE
+    | INTEGER_VALUE
+    ;
+
+nonReserved
+    : ANTI | FIRST | LAST | NULLS | OFFSET | SEMI
+    ;
+
+ALL: A L L;
+AND: A N D;
+ANTI: A N T I;
+AS: A S;
+ASC: A S C;
+BETWEEN: B E T W E E N;
+BY: B Y;
+CASE: C A S E;
+CAST: C A S T;
+CROSS: C R O S S;
+DESC: D E S C;
+DISTINCT: D I S T I N C T;
+ELSE: E L S E;
+END: E N D;
+EXCEPT: E X C E P T;
+EXISTS: E X I S T S;
+FALSE: F A L S E;
+FIRST: F I R S T;
+FROM: F R O M;
+FULL: F U L L;
+GROUP: G R O U P;
+HAVING: H A V I N G;
+IN: I N;
+INNER: I N N E R;
+INTERSECT: I N T E R S E C T;
+INTERVAL: I N T E R V A L;
+IS: I S;
+JOIN: J O I N;
+LAST: L A S T;
+LEFT: L E F T;
+LIKE: L I K E;
+LIMIT: L I M I T;
+NOT: N O T;
+NULL: N U L L;
+NULLS: N U L L S;
+OFFSET: O F F S E T;
+ON: O N;
+OR: O R;
+ORDER: O R D E R;
+OUTER: O U T E R;
+OVER: O V E R;
+PARTITION: P A R T I T I O N;
+RIGHT: R I G H T;
+SELECT: S E L E C T;
+SEMI: S E M I;
+THEN: T H E N;
+TRUE: T R U E;
+UNION: U N I O N;
+USING: U S I N G;
+WHEN: W H E N;
+WHERE: W H E R E;
+WITH: W I T H;
+
+EQ: '=' | '==';
+NSEQ: '<=>';
+NEQ: '<>' | '!=';
+LT: '<';
+LTE: '<=';
+GT: '>';
+GTE: '>=';
+
+PLUS: '+';
+MINUS: '-';
+ASTERISK: '*';
+SLASH: '/';
+PERCENT: '%';
+CONCAT: '||';
+
+STRING
+    : '\'' ( ~('\'' | '\\') | '\\' . )* '\''
+    | '"' ( ~('"' | '\\') | '\\' . )* '"'
+    ;
+
+INTEGER_VALUE
+    : DIGIT+
+    ;
+
+DECIMAL_VALUE
+    : DIGIT+ '.' DIGIT* EXPONENT?
+    | '.' DIGIT+ EXPONENT?
+    | DIGIT+ EXPONENT
+    ;
+
+IDENTIFIER
+    : (LETTER | '_') (LETTER | DIGIT | '_')*
+    ;
+
+BACKQUOTED_IDENTIFIER
+    : '`' ~'`'* '`'
+    ;
+
+SIMPLE_COMMENT
+    : '--' ~[\r\n]* -> channel(HIDDEN)
+    ;
+
+BRACKETED_COMMENT
+    : '/*' .*? '*/' -> channel(HIDDEN)
+    ;
+
+WS
+    : [ \r\n\t]+ -> channel(HIDDEN)
+    ;
+
+fragment EXPONENT: [eE] [+-]? DIGIT+;
+fragment DIGIT: [0-9];
+fragment LETTER: [a-zA-Z];
+
+fragment A: [aA];
+fragment B: [bB];
+fragment C: [cC];
+fragment D: [dD];
+fragment E: [eE];
+fragment F: [fF];
+fragment G: [gG];
+fragment H: [hH];
+fragment I: [iI];
+fragment J: [jJ];
+fragment K: [kK];
+fragment L: [lL];
+fragment M: [mM];
+fragment N: [nN];
+fragment O: [oO];
+fragment P: [pP];
+fragment Q: [qQ];
+fragment R: [rR];
+fragment S: [sS];
+fragment T: [tT];
+fragment U: [uU];
+fragment V: [vV];
+fragment W: [wW];
+fragment X: [xX];
+fragment Y: [yY];
+fragment Z: [zZ];
@@ -36,6 +36,185 @@ public class Args {
   @Parameter(names = "--measure-time", description = "measure time when test/evaluating samples")
   private boolean measureTime = false;
 
+  @Parameter(
+      names = "--streaming-sampler",
+      description = "create stratified samples with a single streaming pass on the client")
+  private boolean streamingSampler = false;
+
+  @Parameter(
+      names = "--shared-scan",
+      description = "create all samples with one scan per fact table or prejoin")
+  private boolean sharedScan = false;
+
+  @Parameter(
+      names = "--estimate-stats",
+      description = "estimate group counts on the server; exact stats only for stratified samples")
+  private boolean estimateStats = false;
+
+  @Parameter(
+      names = "--rollup-stats",
+      description = "derive stat tables of smaller column sets from those of larger ones")
+  private boolean rollupStats = false;
+
+  @Parameter(
+      names = "--meta-batch-size",
+      description = "number of meta records buffered before they are written")
+  private int metaBatchSize = 100;
+
+  @Parameter(
+      names = "--meta-flush-interval",
+      description = "flush buffered meta on the next write once its oldest record is this old (ms)")
+  private long metaFlushInterval = 30000;
+
+  @Parameter(
+      names = "--meta-compaction-ratio",
+      description = "compact meta when it holds this many versions per key on average")
+  private double metaCompactionRatio = 2.0;
+
+  @Parameter(names = "--parallelism", description = "number of samples tested concurrently")
+  private int parallelism = 1;
+
+  @Parameter(
+      names = "--statement-timeout",
+      description = "timeout (s) for each statement when testing samples (0 = no limit)")
+  private int statementTimeout = 0;
+
+  @Parameter(names = "--eval-report", description = "write test results to this JSON file")
+  private String evalReport = "";
+
+  @Parameter(
+      names = "--streaming-eval",
+      description = "compare original and sample results on the client instead of in tables")
+  private boolean streamingEvaluation = false;
+
+  @Parameter(
+      names = "--result-cache",
+      description = "reuse exact results of original queries while their tables are unchanged")
+  private boolean resultCache = false;
+
+  @Parameter(
+      names = "--benchmark",
+      description = "measure latencies of tested queries over repeated cold and warm runs")
+  private boolean benchmark = false;
+
+  @Parameter(names = "--warmup", description = "number of unmeasured runs before warm runs")
+  private int warmup = 1;
+
+  @Parameter(names = "--iterations", description = "number of measured runs per benchmark mode")
+  private int iterations = 5;
+
+  @Parameter(
+      names = "--benchmark-output",
+      description = "path prefix of the benchmark CSV and JSON files")
+  private String benchmarkOutput = "benchmark";
+
+  @Parameter(
+      names = "--rewrite-sample-queries",
+      description = "generate scaled sample queries for queries without a hand-written one")
+  private boolean rewriteSampleQueries = false;
+
+  @Parameter(
+      names = "--select-sample",
+      description = "test each query of --test-queries on the sample chosen by the cost model")
+  private boolean selectSample = false;
+
+  @Parameter(names = "--error-bound", description = "maximum relative error of a selected sample")
+  private double errorBound = 0;
+
+  @Parameter(names = "--time-budget", description = "maximum latency in ms of a selected sample")
+  private double timeBudget = 0;
+
+  @Parameter(names = "--scan-rate", description = "rows per second used to predict latencies")
+  private double scanRate = 10000000;
+
+  @Parameter(
+      names = "--nested-resolutions",
+      description =
+          "errors (comma-separated) that stratified samples also serve as nested resolutions")
+  private String nestedResolutions = "";
+
+  @Parameter(
+      names = "--storage-budget",
+      description = "total size in MB of samples chosen for the whole workload (0 = per query)")
+  private double storageBudget = 0;
+
+  @Parameter(
+      names = "--prejoin-merge-threshold",
+      description = "merge two prejoins if it saves this fraction of the smaller one (> 1 = never)")
+  private double prejoinMergeThreshold = 0.5;
+
+  @Parameter(
+      names = "--prejoin-scan-ratio",
+      description = "skip a prejoin if a containing prejoin is at most this many times larger")
+  private double prejoinScanRatio = 1.5;
+
+  @Parameter(
+      names = "--sample-then-join",
+      description =
+          "sample fact tables on the foreign keys of queries with joins instead of prejoining")
+  private boolean sampleThenJoin = false;
+
+  @Parameter(
+      names = "--backend",
+      description = "SQL backend: impala, or h2 to run embedded with --host as its directory")
+  private String backend = SqlDialect.IMPALA;
+
+  @Parameter(
+      names = "--in-memory",
+      description = "answer tested queries in the JVM from off-heap column vectors of samples")
+  private boolean inMemory = false;
+
+  @Parameter(
+      names = "--in-memory-cache-size",
+      description = "size in MB of the samples kept in memory by --in-memory")
+  private double inMemoryCacheSize = 1024;
+
+  @Parameter(
+      names = "--metrics-dir",
+      description = "write statement latencies and row counts by phase to this directory on exit")
+  private String metricsDir = "";
+
+  @Parameter(
+      names = "--generate",
+      description = "generate skewed TPC-DS-like tables for the workload and exit")
+  private boolean generate = false;
+
+  @Parameter(names = "--generate-rows", description = "rows of each generated fact table")
+  private long generateRows = 1000000;
+
+  @Parameter(
+      names = "--generate-dimension-rows",
+      description = "rows of each generated dimension table")
+  private long generateDimensionRows = 10000;
+
+  @Parameter(
+      names = "--generate-cardinality",
+      description = "distinct values of each generated non-key column")
+  private int generateCardinality = 100;
+
+  @Parameter(
+      names = "--generate-skew",
+      description = "Zipf exponent of generated query column set columns (0 = uniform)")
+  private double generateSkew = 1.0;
+
+  @Parameter(names = "--generate-seed", description = "seed of the generated data")
+  private long generateSeed = 0;
+
+  @Parameter(
+      names = "--generate-output",
+      description = "directory to write generated tables to as CSV instead of the database")
+  private String generateOutput = "";
+
+  @Parameter(
+      names = "--pipeline",
+      description = "create prejoins, stats and samples as concurrent tasks of a dependency DAG")
+  private boolean pipeline = false;
+
+  @Parameter(
+      names = "--pipeline-concurrency",
+      description = "max. number of pipeline tasks running at a time")
+  private int pipelineConcurrency = 4;
+
   @Parameter(names = "--help", help = true)
   private boolean help = false;
 
@@ -124,4 +303,160 @@ public class Args {
   public String getTestQueries() {
     return testQueries;
   }
+
+  public boolean isStreamingSampler() {
+    return streamingSampler;
+  }
+
+  public boolean isSharedScan() {
+    return sharedScan;
+  }
+
+  public boolean isEstimateStats() {
+    return estimateStats;
+  }
+
+  public boolean isRollupStats() {
+    return rollupStats;
+  }
+
+  public int getMetaBatchSize() {
+    return metaBatchSize;
+  }
+
+  public long getMetaFlushInterval() {
+    return metaFlushInterval;
+  }
+
+  public double getMetaCompactionRatio() {
+    return metaCompactionRatio;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public int getStatementTimeout() {
+    return statementTimeout;
+  }
+
+  public String getEvalReport() {
+    return evalReport;
+  }
+
+  public boolean isStreamingEvaluation() {
+    return streamingEvaluation;
+  }
+
+  public boolean isResultCache() {
+    return resultCache;
+  }
+
+  public boolean isBenchmark() {
+    return benchmark;
+  }
+
+  public int getWarmup() {
+    return warmup;
+  }
+
+  public int getIterations() {
+    return iterations;
+  }
+
+  public String getBenchmarkOutput() {
+    return benchmarkOutput;
+  }
+
+  public boolean isRewriteSampleQueries() {
+    return rewriteSampleQueries;
+  }
+
+  public boolean isSelectSample() {
+    return selectSample;
+  }
+
+  public double getErrorBound() {
+    return errorBound;
+  }
+
+  public double getTimeBudget() {
+    return timeBudget;
+  }
+
+  public double getScanRate() {
+    return scanRate;
+  }
+
+  public String getNestedResolutions() {
+    return nestedResolutions;
+  }
+
+  public double getStorageBudget() {
+    return storageBudget;
+  }
+
+  public double getPrejoinMergeThreshold() {
+    return prejoinMergeThreshold;
+  }
+
+  public double getPrejoinScanRatio() {
+    return prejoinScanRatio;
+  }
+
+  public boolean isSampleThenJoin() {
+    return sampleThenJoin;
+  }
+
+  public String getBackend() {
+    return backend;
+  }
+
+  public boolean isInMemory() {
+    return inMemory;
+  }
+
+  public double getInMemoryCacheSize() {
+    return inMemoryCacheSize;
+  }
+
+  public String getMetricsDir() {
+    return metricsDir;
+  }
+
+  public boolean isGenerate() {
+    return generate;
+  }
+
+  public long getGenerateRows() {
+    return generateRows;
+  }
+
+  public long getGenerateDimensionRows() {
+    return generateDimensionRows;
+  }
+
+  public int getGenerateCardinality() {
+    return generateCardinality;
+  }
+
+  public double getGenerateSkew() {
+    return generateSkew;
+  }
+
+  public long getGenerateSeed() {
+    return generateSeed;
+  }
+
+  public String getGenerateOutput() {
+    return generateOutput;
+  }
+
+  public boolean isPipeline() {
+    return pipeline;
+  }
+
+  public int getPipelineConcurrency() {
+    return pipelineConcurrency;
+  }
 }
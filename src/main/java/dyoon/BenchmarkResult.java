@@ -0,0 +1,123 @@
+package dyoon;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/** Latencies of an original query and of its sample query over repeated runs. */
+public class BenchmarkResult implements Serializable {
+  private static final long serialVersionUID = -4937226013781541627L;
+
+  public static final String CSV_HEADER =
+      "query,sample,mode,iterations,"
+          + "orig_p50,orig_p90,orig_p99,orig_max,"
+          + "sample_p50,sample_p90,sample_p99,sample_max,speedup";
+
+  private String queryId;
+  private String sample;
+  private String mode; // cold or warm
+  private int iterations;
+  private Latency original;
+  private Latency sampled;
+  private double speedup; // median original latency / median sample latency
+
+  /** Latency percentiles in ms. */
+  public static class Latency implements Serializable {
+    private static final long serialVersionUID = 3561950466437393012L;
+
+    private double p50;
+    private double p90;
+    private double p99;
+    private double max;
+
+    public Latency() {}
+
+    public Latency(double[] times) {
+      double[] sorted = Arrays.copyOf(times, times.length);
+      Arrays.sort(sorted);
+      this.p50 = ErrorEvaluator.percentile(sorted, 0.5);
+      this.p90 = ErrorEvaluator.percentile(sorted, 0.9);
+      this.p99 = ErrorEvaluator.percentile(sorted, 0.99);
+      this.max = sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+    }
+
+    public double getP50() {
+      return p50;
+    }
+
+    public double getP90() {
+      return p90;
+    }
+
+    public double getP99() {
+      return p99;
+    }
+
+    public double getMax() {
+      return max;
+    }
+  }
+
+  public BenchmarkResult() {}
+
+  public BenchmarkResult(
+      String queryId,
+      String sample,
+      String mode,
+      int iterations,
+      Latency original,
+      Latency sampled) {
+    this.queryId = queryId;
+    this.sample = sample;
+    this.mode = mode;
+    this.iterations = iterations;
+    this.original = original;
+    this.sampled = sampled;
+    this.speedup = sampled.getP50() > 0 ? original.getP50() / sampled.getP50() : 0;
+  }
+
+  public String toCsvRow() {
+    return String.format(
+        "%s,%s,%s,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.4f",
+        queryId,
+        sample,
+        mode,
+        iterations,
+        original.getP50(),
+        original.getP90(),
+        original.getP99(),
+        original.getMax(),
+        sampled.getP50(),
+        sampled.getP90(),
+        sampled.getP99(),
+        sampled.getMax(),
+        speedup);
+  }
+
+  public String getQueryId() {
+    return queryId;
+  }
+
+  public String getSample() {
+    return sample;
+  }
+
+  public String getMode() {
+    return mode;
+  }
+
+  public int getIterations() {
+    return iterations;
+  }
+
+  public Latency getOriginal() {
+    return original;
+  }
+
+  public Latency getSampled() {
+    return sampled;
+  }
+
+  public double getSpeedup() {
+    return speedup;
+  }
+}
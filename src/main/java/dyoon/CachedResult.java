@@ -0,0 +1,58 @@
+package dyoon;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.Serializable;
+
+/** An exact query result stored in a table, valid for one version of its source tables. */
+public class CachedResult implements Serializable {
+  private static final long serialVersionUID = 7408187912813734915L;
+  private String fingerprint;
+  private String queryId;
+  private String tableName;
+  private String dataVersion;
+  private long createdAt;
+
+  public CachedResult() {}
+
+  public CachedResult(
+      String fingerprint, String queryId, String tableName, String dataVersion, long createdAt) {
+    this.fingerprint = fingerprint;
+    this.queryId = queryId;
+    this.tableName = tableName;
+    this.dataVersion = dataVersion;
+    this.createdAt = createdAt;
+  }
+
+  public String toJSONString() {
+    ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+    try {
+      return ow.writeValueAsString(this).replaceAll("\\n", "");
+    } catch (JsonProcessingException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public String getQueryId() {
+    return queryId;
+  }
+
+  public String getTableName() {
+    return tableName;
+  }
+
+  public String getDataVersion() {
+    return dataVersion;
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+}
@@ -15,6 +15,14 @@ public class ColumnPair implements Serializable, Comparable<ColumnPair> {
     this.right = right;
   }
 
+  /** @return a pair with the two columns in lexicographic order */
+  public static ColumnPair ordered(String left, String right) {
+    if (left.compareTo(right) < 0) {
+      return new ColumnPair(left, right);
+    }
+    return new ColumnPair(right, left);
+  }
+
   public String getLeft() {
     return left;
   }
@@ -0,0 +1,132 @@
+package dyoon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A column of a sample held outside the Java heap.
+ *
+ * <p>A column that is grouped by or filtered on is dictionary encoded: each row holds the 4-byte
+ * code of its value, and each distinct value is kept once on the heap. A column that is aggregated
+ * holds its values as 8-byte doubles, with NaN for NULL. A column can have both.
+ */
+public class ColumnVector {
+
+  private static final int INITIAL_CAPACITY = 1024;
+  // bytes charged for an entry of a dictionary
+  private static final int DICTIONARY_ENTRY_BYTES = 48;
+
+  private final String name;
+  private ByteBuffer codes;
+  private ByteBuffer values;
+  private final List<Object> dictionary = new ArrayList<>();
+  private final Map<Object, Integer> dictionaryIndex = new HashMap<>();
+  private Map<String, Integer> stringIndex = null;
+  private int size = 0;
+
+  public ColumnVector(String name, boolean encoded, boolean numeric) {
+    this.name = name;
+    if (encoded) {
+      codes = allocate(INITIAL_CAPACITY * 4);
+    }
+    if (numeric) {
+      values = allocate(INITIAL_CAPACITY * 8);
+    }
+  }
+
+  private static ByteBuffer allocate(int bytes) {
+    return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer) {
+    ByteBuffer grown = allocate(buffer.capacity() * 2);
+    buffer.clear();
+    grown.put(buffer);
+    return grown;
+  }
+
+  /** @param value a value read from JDBC, which must be a number if the column holds values */
+  public void append(Object value) {
+    if (codes != null) {
+      if ((size + 1) * 4 > codes.capacity()) {
+        codes = grow(codes);
+      }
+      stringIndex = null;
+      Integer code = dictionaryIndex.get(value);
+      if (code == null) {
+        code = dictionary.size();
+        dictionary.add(value);
+        dictionaryIndex.put(value, code);
+      }
+      codes.putInt(size * 4, code);
+    }
+    if (values != null) {
+      if ((size + 1) * 8 > values.capacity()) {
+        values = grow(values);
+      }
+      values.putDouble(size * 8, value == null ? Double.NaN : ((Number) value).doubleValue());
+    }
+    ++size;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEncoded() {
+    return codes != null;
+  }
+
+  public boolean hasValues() {
+    return values != null;
+  }
+
+  public int getCode(int row) {
+    return codes.getInt(row * 4);
+  }
+
+  public double getValue(int row) {
+    return values.getDouble(row * 8);
+  }
+
+  /** @return the number of distinct values */
+  public int getCardinality() {
+    return dictionary.size();
+  }
+
+  public Object decode(int code) {
+    return dictionary.get(code);
+  }
+
+  /** @return the code of a value, compared by its string form, or -1 if the column lacks it */
+  public int lookup(String value) {
+    if (stringIndex == null) {
+      stringIndex = new HashMap<>();
+      for (int code = 0; code < dictionary.size(); ++code) {
+        stringIndex.put(String.valueOf(dictionary.get(code)), code);
+      }
+    }
+    Integer code = stringIndex.get(value);
+    return code != null ? code : -1;
+  }
+
+  /** @return bytes held by the column, off the heap and in its dictionary */
+  public long getMemorySize() {
+    long bytes = (long) dictionary.size() * DICTIONARY_ENTRY_BYTES;
+    if (codes != null) {
+      bytes += codes.capacity();
+    }
+    if (values != null) {
+      bytes += values.capacity();
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,332 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps samples in memory as off-heap column vectors and answers queries over them with a {@link
+ * VectorizedAggregator}, without a round trip to the cluster.
+ *
+ * <p>A sample (by {@link Sample#toString()}) is loaded with only the columns the queries it has
+ * answered need. A row of a uniform sample weighs the inverse of its sampling ratio. A row of a
+ * stratified sample weighs the size of its stratum in the stat table of the query over the number
+ * of rows of the stratum in the sample; these weights are computed once per stat table and kept
+ * with the sample. Samples are evicted in least recently used order to stay within the capacity.
+ * The off-heap memory of an evicted sample is released when its buffers are garbage collected, so
+ * the JVM needs {@code -XX:MaxDirectMemorySize} of at least the capacity.
+ */
+public class ColumnarSampleCache {
+
+  private static final int FETCH_SIZE = 10000;
+
+  private final DatabaseTool tool;
+  private final long capacity;
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long used = 0;
+
+  /** @param capacity bytes of samples kept in memory */
+  public ColumnarSampleCache(DatabaseTool tool, long capacity) {
+    this.tool = tool;
+    this.capacity = capacity;
+  }
+
+  /** Column vectors of a sample and the row weights computed for it. */
+  private static class Entry {
+    private final Map<String, ColumnVector> columns;
+    private final int rowCount;
+    // stat table -> per-row weights
+    private final Map<String, ByteBuffer> weights = new HashMap<>();
+    private long memorySize;
+
+    Entry(Map<String, ColumnVector> columns, int rowCount) {
+      this.columns = columns;
+      this.rowCount = rowCount;
+      for (ColumnVector vector : columns.values()) {
+        memorySize += vector.getMemorySize();
+      }
+    }
+
+    boolean has(Collection<String> encoded, Collection<String> values) {
+      for (String column : encoded) {
+        if (!columns.containsKey(column) || !columns.get(column).isEncoded()) {
+          return false;
+        }
+      }
+      for (String column : values) {
+        if (!columns.containsKey(column) || !columns.get(column).hasValues()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Loads the columns of a sample that the query needs, and its row weights, unless they are
+   * already in memory.
+   *
+   * @throws SqlRewriteException if the query cannot be answered in memory
+   */
+  public void load(Sample s, Query q) throws SQLException, SqlRewriteException {
+    this.getEntry(s, q, new VectorizedAggregator(q));
+  }
+
+  /** @return the estimated groups of the query on the sample */
+  public VectorizedAggregator.Result execute(Sample s, Query q)
+      throws SQLException, SqlRewriteException {
+    VectorizedAggregator aggregator = new VectorizedAggregator(q);
+    Entry entry = this.getEntry(s, q, aggregator);
+    if (s.getType() == Sample.Type.UNIFORM) {
+      return aggregator.execute(entry.columns, entry.rowCount, 1.0 / s.getRatio(), null);
+    }
+    return aggregator.execute(
+        entry.columns, entry.rowCount, 1.0, entry.weights.get(tool.getStatTableName(s, q)));
+  }
+
+  public long getUsedBytes() {
+    return used;
+  }
+
+  private Entry getEntry(Sample s, Query q, VectorizedAggregator aggregator)
+      throws SQLException, SqlRewriteException {
+    String table = s.toString();
+    Set<String> encoded = new TreeSet<>(aggregator.getEncodedColumns());
+    Set<String> values = new TreeSet<>(aggregator.getValueColumns());
+    Set<String> strata = new TreeSet<>();
+    if (s.getType() != Sample.Type.UNIFORM) {
+      if (s.getColumns().isEmpty()) {
+        throw new SqlRewriteException("Sample has no strata");
+      }
+      for (String column : s.getColumns()) {
+        strata.add(column.toLowerCase());
+      }
+      encoded.addAll(strata);
+    }
+
+    Entry entry = entries.get(table);
+    if (entry == null || !entry.has(encoded, values)) {
+      Set<String> present = new TreeSet<>();
+      for (String column : tool.getColumns(table)) {
+        present.add(column.toLowerCase());
+      }
+      for (String column : aggregator.getJoinColumns()) {
+        if (!present.contains(column)) {
+          throw new SqlRewriteException("Sample does not have join column: " + column);
+        }
+      }
+      if (entry != null) {
+        // reload with the columns of the earlier queries as well
+        for (ColumnVector vector : entry.columns.values()) {
+          if (vector.isEncoded()) {
+            encoded.add(vector.getName());
+          }
+          if (vector.hasValues()) {
+            values.add(vector.getName());
+          }
+        }
+        this.evict(table);
+      }
+      entry = this.loadColumns(table, encoded, values, present);
+    }
+
+    if (!strata.isEmpty()) {
+      String statTable = tool.getStatTableName(s, q);
+      if (!entry.weights.containsKey(statTable)) {
+        ByteBuffer weights = this.computeWeights(entry, new ArrayList<>(strata), statTable);
+        entry.weights.put(statTable, weights);
+        entry.memorySize += weights.capacity();
+        if (entries.containsKey(table)) {
+          used += weights.capacity();
+        }
+      }
+    }
+
+    if (!entries.containsKey(table)) {
+      this.makeRoom(entry.memorySize);
+      if (entry.memorySize <= capacity) {
+        entries.put(table, entry);
+        used += entry.memorySize;
+      } else {
+        System.out.println(
+            String.format(
+                "Sample %s (%.2f MB) is larger than the in-memory cache and is not kept",
+                table, entry.memorySize / 1024.0 / 1024));
+      }
+    }
+    return entry;
+  }
+
+  private Entry loadColumns(
+      String table, Set<String> encoded, Set<String> values, Set<String> present)
+      throws SQLException, SqlRewriteException {
+    Set<String> columns = new TreeSet<>(encoded);
+    columns.addAll(values);
+    for (String column : columns) {
+      if (!present.contains(column)) {
+        throw new SqlRewriteException("Sample does not have column: " + column);
+      }
+    }
+    // a query without groups, filters or aggregates still needs the row count
+    if (columns.isEmpty() && !present.isEmpty()) {
+      columns.add(present.iterator().next());
+      encoded.add(columns.iterator().next());
+    }
+
+    Stopwatch watch = Stopwatch.createStarted();
+    Statement stmt = tool.getConnection().createStatement();
+    stmt.setFetchSize(FETCH_SIZE);
+    ResultSet rs =
+        stmt.executeQuery(
+            String.format("SELECT %s FROM %s", Joiner.on(", ").join(columns), table));
+    ResultSetMetaData metaData = rs.getMetaData();
+    List<ColumnVector> vectors = new ArrayList<>();
+    Map<String, ColumnVector> vectorsByName = new HashMap<>();
+    for (int i = 1; i <= metaData.getColumnCount(); ++i) {
+      String name = metaData.getColumnLabel(i).toLowerCase();
+      boolean numeric = isNumeric(metaData.getColumnType(i));
+      if (values.contains(name) && !numeric) {
+        rs.close();
+        stmt.close();
+        throw new SqlRewriteException("Aggregate column is not numeric: " + name);
+      }
+      ColumnVector vector = new ColumnVector(name, encoded.contains(name), values.contains(name));
+      vectors.add(vector);
+      vectorsByName.put(name, vector);
+    }
+    int rowCount = 0;
+    while (rs.next()) {
+      for (int i = 0; i < vectors.size(); ++i) {
+        vectors.get(i).append(rs.getObject(i + 1));
+      }
+      ++rowCount;
+    }
+    rs.close();
+    stmt.close();
+
+    Entry entry = new Entry(vectorsByName, rowCount);
+    System.out.println(
+        String.format(
+            "Loaded %d rows of %s (%s) into memory (%.2f MB) in %d ms",
+            rowCount,
+            table,
+            Joiner.on(", ").join(columns),
+            entry.memorySize / 1024.0 / 1024,
+            watch.elapsed(TimeUnit.MILLISECONDS)));
+    return entry;
+  }
+
+  /** @return per-row weights, i.e., the size of the stratum of a row over its sampled rows */
+  private ByteBuffer computeWeights(Entry entry, List<String> strata, String statTable)
+      throws SQLException {
+    ColumnVector[] vectors = new ColumnVector[strata.size()];
+    for (int i = 0; i < strata.size(); ++i) {
+      vectors[i] = entry.columns.get(strata.get(i));
+    }
+
+    long[] keys = new long[entry.rowCount];
+    Map<Long, Integer> sampled = new HashMap<>();
+    for (int row = 0; row < entry.rowCount; ++row) {
+      long key = 0;
+      for (ColumnVector vector : vectors) {
+        key = key * Math.max(1, vector.getCardinality()) + vector.getCode(row);
+      }
+      keys[row] = key;
+      Integer count = sampled.get(key);
+      sampled.put(key, count == null ? 1 : count + 1);
+    }
+
+    Map<Long, Double> weightsByKey = new HashMap<>();
+    Statement stmt = tool.getConnection().createStatement();
+    ResultSet rs =
+        stmt.executeQuery(
+            String.format(
+                "SELECT %s, groupsize FROM %s", Joiner.on(", ").join(strata), statTable));
+    while (rs.next()) {
+      long key = 0;
+      boolean found = true;
+      for (int i = 0; i < vectors.length; ++i) {
+        int code = vectors[i].lookup(String.valueOf(rs.getObject(i + 1)));
+        if (code < 0) {
+          // a stratum without rows in the sample
+          found = false;
+          break;
+        }
+        key = key * Math.max(1, vectors[i].getCardinality()) + code;
+      }
+      Integer count = found ? sampled.get(key) : null;
+      if (count != null) {
+        weightsByKey.put(key, rs.getDouble(vectors.length + 1) / count);
+      }
+    }
+    rs.close();
+    stmt.close();
+
+    ByteBuffer weights =
+        ByteBuffer.allocateDirect(Math.max(1, entry.rowCount) * 8).order(ByteOrder.nativeOrder());
+    int missing = 0;
+    for (int row = 0; row < entry.rowCount; ++row) {
+      Double weight = weightsByKey.get(keys[row]);
+      if (weight == null) {
+        ++missing;
+      }
+      weights.putDouble(row * 8, weight != null ? weight : 0);
+    }
+    if (missing > 0) {
+      System.out.println(
+          String.format("%d row(s) have no stratum in %s and are ignored", missing, statTable));
+    }
+    return weights;
+  }
+
+  private void makeRoom(long bytes) {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (used + bytes > capacity && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      used -= eldest.getValue().memorySize;
+      it.remove();
+      System.out.println(String.format("Evicted %s from the in-memory cache", eldest.getKey()));
+    }
+  }
+
+  private void evict(String table) {
+    Entry entry = entries.remove(table);
+    if (entry != null) {
+      used -= entry.memorySize;
+    }
+  }
+
+  private static boolean isNumeric(int type) {
+    switch (type) {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+      case Types.FLOAT:
+      case Types.REAL:
+      case Types.DOUBLE:
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package dyoon;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/** A fixed-size pool of JDBC connections. */
+public class ConnectionPool {
+
+  private final List<Connection> connections;
+  private final BlockingQueue<Connection> available;
+
+  public ConnectionPool(String connectionStr, int size) throws SQLException {
+    this.connections = new ArrayList<>();
+    this.available = new ArrayBlockingQueue<>(size);
+    for (int i = 0; i < size; ++i) {
+      Connection conn = Metrics.instrument(DriverManager.getConnection(connectionStr, "", ""));
+      connections.add(conn);
+      available.add(conn);
+    }
+  }
+
+  public int getSize() {
+    return connections.size();
+  }
+
+  /** Blocks until a connection is available. */
+  public Connection borrow() throws InterruptedException {
+    return available.take();
+  }
+
+  public void release(Connection conn) {
+    available.add(conn);
+  }
+
+  public void close() {
+    for (Connection conn : connections) {
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,550 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates TPC-DS-like tables for a workload, so that samples can be built and tested locally on
+ * inputs whose group distributions are known.
+ *
+ * <p>The tables are those of {@link Query#FACT_TABLES} and the tables the queries join, with the
+ * columns the queries use, found by the TPC-DS prefix of their names. The primary key of a
+ * dimension table numbers its rows from 1, another surrogate key (ending in _sk) takes the primary
+ * keys of a dimension table, and other columns take values in [1, cardinality]. A column that a
+ * query compares with string literals is a string column instead, whose k-th value is the k-th of
+ * those literals (a LIKE pattern without its wildcards), or the column name and k past them; the
+ * other columns are BIGINT. Values of a column in the query column set of some query follow a
+ * Zipf distribution with the given skew, in which value k has a frequency proportional to 1 /
+ * k^skew; other columns are uniform. Columns are drawn independently, so the distribution of a
+ * group is the product of those of its columns.
+ *
+ * <p>Rows are generated in chunks of a fixed size, each with its own seed, so the same seed gives
+ * the same tables whatever the parallelism. Chunks are written in parallel, either to a database
+ * or to CSV files.
+ */
+public class DataGenerator {
+
+  private static final int CHUNK_SIZE = 100000;
+  private static final int BATCH_SIZE = 1000;
+  private static final String STRING_LITERAL = "'((?:[^']|'')*)'";
+  // a column compared with a string literal, BETWEEN two of them, or IN a list
+  private static final Pattern STRING_COMPARISON =
+      Pattern.compile(
+          "(?i)\\b(\\w+)\\s*(?:=|<>|!=|<=|>=|<|>|\\bnot\\s+like\\b|\\blike\\b)\\s*"
+              + STRING_LITERAL);
+  private static final Pattern STRING_BETWEEN =
+      Pattern.compile(
+          "(?i)\\b(\\w+)\\s+(?:not\\s+)?between\\s+"
+              + STRING_LITERAL
+              + "\\s+and\\s+"
+              + STRING_LITERAL);
+  private static final Pattern IN_LIST =
+      Pattern.compile("(?i)\\b(\\w+)\\s+(?:not\\s+)?in\\s*\\(([^()]*)\\)");
+  private static final Pattern LITERAL = Pattern.compile(STRING_LITERAL);
+
+  // TPC-DS column prefix -> table
+  private static final Map<String, String> TABLES_BY_PREFIX = new HashMap<>();
+  // dimension table -> primary key
+  private static final Map<String, String> PRIMARY_KEYS = new HashMap<>();
+
+  static {
+    String[][] tables = {
+      {"ss", "store_sales", null},
+      {"sr", "store_returns", null},
+      {"cs", "catalog_sales", null},
+      {"cr", "catalog_returns", null},
+      {"ws", "web_sales", null},
+      {"wr", "web_returns", null},
+      {"inv", "inventory", null},
+      {"d", "date_dim", "d_date_sk"},
+      {"t", "time_dim", "t_time_sk"},
+      {"i", "item", "i_item_sk"},
+      {"c", "customer", "c_customer_sk"},
+      {"ca", "customer_address", "ca_address_sk"},
+      {"cd", "customer_demographics", "cd_demo_sk"},
+      {"hd", "household_demographics", "hd_demo_sk"},
+      {"ib", "income_band", "ib_income_band_sk"},
+      {"s", "store", "s_store_sk"},
+      {"w", "warehouse", "w_warehouse_sk"},
+      {"p", "promotion", "p_promo_sk"},
+      {"r", "reason", "r_reason_sk"},
+      {"sm", "ship_mode", "sm_ship_mode_sk"},
+      {"cc", "call_center", "cc_call_center_sk"},
+      {"cp", "catalog_page", "cp_catalog_page_sk"},
+      {"wp", "web_page", "wp_web_page_sk"},
+      {"web", "web_site", "web_site_sk"}
+    };
+    for (String[] table : tables) {
+      TABLES_BY_PREFIX.put(table[0], table[1]);
+      if (table[2] != null) {
+        PRIMARY_KEYS.put(table[1], table[2]);
+      }
+    }
+  }
+
+  private final long factRows;
+  private final long dimensionRows;
+  private final int cardinality;
+  private final double skew;
+  private final long seed;
+  private int parallelism = 1;
+
+  // table -> column -> column
+  private final Map<String, Map<String, Column>> tables = new TreeMap<>();
+
+  /** How the values of a column are drawn. */
+  private static class Column {
+    private final String name;
+    // the dimension table of a foreign key
+    private String references;
+    private boolean primaryKey = false;
+    private boolean skewed = false;
+    private Zipf zipf;
+    // string literals the workload compares the column with, or null for a BIGINT column
+    private List<String> literals;
+
+    Column(String name) {
+      this.name = name;
+    }
+
+    /** @return the value of a code in [1, domain] as SQL or as CSV */
+    String format(long code, boolean sql) {
+      if (literals == null) {
+        return Long.toString(code);
+      }
+      String value = code <= literals.size() ? literals.get((int) code - 1) : name + "_" + code;
+      return sql ? "'" + value.replace("'", "''") + "'" : value;
+    }
+  }
+
+  /** Draws ranks in [1, n] with probabilities proportional to 1 / rank^skew. */
+  private static class Zipf {
+    private final double[] cdf;
+
+    Zipf(int n, double skew) {
+      cdf = new double[n];
+      double sum = 0;
+      for (int k = 1; k <= n; ++k) {
+        sum += 1.0 / Math.pow(k, skew);
+        cdf[k - 1] = sum;
+      }
+      for (int k = 0; k < n; ++k) {
+        cdf[k] /= sum;
+      }
+    }
+
+    long next(Random random) {
+      int i = Arrays.binarySearch(cdf, random.nextDouble());
+      if (i < 0) {
+        i = -i - 1;
+      }
+      return Math.min(i, cdf.length - 1) + 1;
+    }
+  }
+
+  /**
+   * @param queries the workload whose tables and columns are generated
+   * @param factRows rows of each fact table
+   * @param dimensionRows rows of each dimension table
+   * @param cardinality number of distinct values of a column other than a key
+   * @param skew Zipf exponent of the columns in query column sets (0 = uniform)
+   */
+  public DataGenerator(
+      Collection<Query> queries,
+      long factRows,
+      long dimensionRows,
+      int cardinality,
+      double skew,
+      long seed) {
+    this.factRows = factRows;
+    this.dimensionRows = dimensionRows;
+    this.cardinality = cardinality;
+    this.skew = skew;
+    this.seed = seed;
+
+    Set<String> tableNames = new TreeSet<>(Arrays.asList(Query.FACT_TABLES));
+    for (Query q : queries) {
+      for (String table : q.getJoinedTables()) {
+        tableNames.add(table.toLowerCase());
+      }
+    }
+    for (String table : tableNames) {
+      tables.put(table, new TreeMap<String, Column>());
+      if (PRIMARY_KEYS.containsKey(table)) {
+        Column key = this.addColumn(PRIMARY_KEYS.get(table));
+        key.primaryKey = true;
+      }
+    }
+
+    for (Query q : queries) {
+      Set<String> columns = new TreeSet<>(q.getRequiredColumns());
+      columns.addAll(q.getReferencedNames());
+      for (String column : columns) {
+        this.addColumn(column.toLowerCase());
+      }
+      for (ColumnPair pair : q.getJoinColumns()) {
+        this.addReference(pair.getLeft().toLowerCase(), pair.getRight().toLowerCase());
+        this.addReference(pair.getRight().toLowerCase(), pair.getLeft().toLowerCase());
+      }
+      if (q.getQueryColumnSet() != null) {
+        for (String column : q.getQueryColumnSet()) {
+          Column c = this.getColumn(column.toLowerCase());
+          if (c != null) {
+            c.skewed = skew > 0;
+          }
+        }
+      }
+      for (String text : new String[] {q.getQuery(), q.getSampleQuery()}) {
+        if (text != null) {
+          this.addStringLiterals(text);
+        }
+      }
+    }
+
+    Map<Long, Zipf> zipfs = new HashMap<>();
+    for (Map<String, Column> columns : tables.values()) {
+      for (Column c : columns.values()) {
+        long domain = this.getDomain(c);
+        if (c.skewed && !c.primaryKey) {
+          if (!zipfs.containsKey(domain)) {
+            zipfs.put(domain, new Zipf((int) domain, skew));
+          }
+          c.zipf = zipfs.get(domain);
+        }
+      }
+    }
+  }
+
+  public void setParallelism(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /** @return the generated tables and their columns, without tables that have no columns */
+  public Map<String, List<String>> getTables() {
+    Map<String, List<String>> result = new TreeMap<>();
+    for (Map.Entry<String, Map<String, Column>> entry : tables.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        result.put(entry.getKey(), new ArrayList<>(entry.getValue().keySet()));
+      }
+    }
+    return result;
+  }
+
+  /** Replaces the tables in a database with generated ones. */
+  public void writeTo(String connectionStr, final String database, final SqlDialect dialect)
+      throws SQLException {
+    final ConnectionPool pool = new ConnectionPool(connectionStr, parallelism);
+    try {
+      Connection conn = pool.borrow();
+      try (Statement stmt = conn.createStatement()) {
+        for (String table : this.getTables().keySet()) {
+          List<String> definitions = new ArrayList<>();
+          for (Column c : tables.get(table).values()) {
+            String type = c.literals != null ? dialect.getStringType() : "BIGINT";
+            definitions.add(c.name + " " + type);
+          }
+          String name = database + "." + table;
+          stmt.execute(String.format("DROP TABLE IF EXISTS %s", name));
+          stmt.execute(
+              String.format("CREATE TABLE %s (%s)", name, Joiner.on(", ").join(definitions)));
+        }
+      } finally {
+        pool.release(conn);
+      }
+
+      this.generate(
+          new ChunkWriter() {
+            @Override
+            public void write(String table, int chunk, Column[] columns, long[][] rows)
+                throws Exception {
+              List<String> names = new ArrayList<>();
+              for (Column c : columns) {
+                names.add(c.name);
+              }
+              Connection conn = pool.borrow();
+              try (Statement stmt = conn.createStatement()) {
+                String insert =
+                    String.format(
+                        "INSERT INTO %s.%s (%s) VALUES ",
+                        database, table, Joiner.on(", ").join(names));
+                for (int from = 0; from < rows.length; from += BATCH_SIZE) {
+                  StringBuilder sql = new StringBuilder(insert);
+                  for (int row = from; row < Math.min(from + BATCH_SIZE, rows.length); ++row) {
+                    sql.append(row > from ? ", (" : "(");
+                    appendRow(sql, columns, rows[row], ", ", true);
+                    sql.append(')');
+                  }
+                  stmt.executeUpdate(sql.toString());
+                }
+              } finally {
+                pool.release(conn);
+              }
+            }
+          });
+
+      conn = pool.borrow();
+      try (Statement stmt = conn.createStatement()) {
+        for (String table : this.getTables().keySet()) {
+          String computeStats = dialect.computeStats(database + "." + table);
+          if (computeStats != null) {
+            stmt.execute(computeStats);
+          }
+        }
+      } finally {
+        pool.release(conn);
+      }
+    } catch (ExecutionException e) {
+      throw new SQLException("Failed to write a chunk", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      pool.close();
+    }
+  }
+
+  /**
+   * Writes each table to a directory of the same name under a directory, one CSV file without a
+   * header per chunk, which can be the location of a text table.
+   */
+  public void writeCsv(String directory) throws IOException {
+    for (String table : this.getTables().keySet()) {
+      File dir = new File(directory, table);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Could not create directory: " + dir);
+      }
+      File[] old = dir.listFiles();
+      for (File file : old != null ? old : new File[0]) {
+        if (file.getName().endsWith(".csv")) {
+          file.delete();
+        }
+      }
+    }
+    final String base = directory;
+    try {
+      this.generate(
+          new ChunkWriter() {
+            @Override
+            public void write(String table, int chunk, Column[] columns, long[][] rows)
+                throws Exception {
+              File file = new File(new File(base, table), String.format("part-%05d.csv", chunk));
+              try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+                StringBuilder line = new StringBuilder();
+                for (long[] row : rows) {
+                  line.setLength(0);
+                  appendRow(line, columns, row, ",", false);
+                  writer.write(line.toString());
+                  writer.newLine();
+                }
+              }
+            }
+          });
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to write a chunk", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Writes the rows of a chunk of a table. */
+  private interface ChunkWriter {
+    void write(String table, int chunk, Column[] columns, long[][] rows) throws Exception;
+  }
+
+  /**
+   * @throws ExecutionException with the failure of the first chunk that could not be written, in
+   *     which case the other chunks are cancelled
+   */
+  private void generate(final ChunkWriter writer)
+      throws ExecutionException, InterruptedException {
+    Stopwatch watch = Stopwatch.createStarted();
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (final String table : this.getTables().keySet()) {
+      final Column[] columns = tables.get(table).values().toArray(new Column[0]);
+      final long rowCount = this.getRowCount(table);
+      this.printTable(table, rowCount);
+      for (long start = 0; start < rowCount; start += CHUNK_SIZE) {
+        final int chunk = (int) (start / CHUNK_SIZE);
+        final long first = start;
+        final int size = (int) Math.min(CHUNK_SIZE, rowCount - start);
+        futures.add(
+            executor.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws Exception {
+                    long[][] rows = generateChunk(table, chunk, first, size, columns);
+                    writer.write(table, chunk, columns, rows);
+                    return null;
+                  }
+                }));
+      }
+    }
+    executor.shutdown();
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException | InterruptedException e) {
+      executor.shutdownNow();
+      throw e;
+    }
+    System.out.println(
+        String.format(
+            "Generated %d table(s) in %d ms",
+            this.getTables().size(), watch.elapsed(TimeUnit.MILLISECONDS)));
+  }
+
+  private long[][] generateChunk(String table, int chunk, long first, int size, Column[] columns) {
+    Random random = new Random(seed * 31 + table.hashCode() * 1000003L + chunk);
+    long[][] rows = new long[size][columns.length];
+    for (int row = 0; row < size; ++row) {
+      for (int i = 0; i < columns.length; ++i) {
+        Column c = columns[i];
+        if (c.primaryKey) {
+          rows[row][i] = first + row + 1;
+        } else if (c.zipf != null) {
+          rows[row][i] = c.zipf.next(random);
+        } else {
+          rows[row][i] = 1 + (long) (random.nextDouble() * this.getDomain(c));
+        }
+      }
+    }
+    return rows;
+  }
+
+  private void printTable(String table, long rowCount) {
+    List<String> columns = new ArrayList<>();
+    for (Column c : tables.get(table).values()) {
+      String distribution;
+      if (c.primaryKey) {
+        distribution = "key";
+      } else {
+        distribution =
+            String.format(
+                "%s[1, %d]%s%s",
+                c.zipf != null ? "zipf" : "uniform",
+                this.getDomain(c),
+                c.literals != null ? String.format(" with %d literal(s)", c.literals.size()) : "",
+                c.references != null ? " -> " + c.references : "");
+      }
+      columns.add(c.name + " " + distribution);
+    }
+    System.out.println(
+        String.format("%s: %d rows (%s)", table, rowCount, Joiner.on(", ").join(columns)));
+  }
+
+  private long getRowCount(String table) {
+    return Arrays.asList(Query.FACT_TABLES).contains(table) ? factRows : dimensionRows;
+  }
+
+  private long getDomain(Column c) {
+    // a surrogate key that no query joins on still takes the keys of a dimension table
+    if (c.primaryKey || c.references != null || c.name.endsWith("_sk")) {
+      return dimensionRows;
+    }
+    return c.literals != null ? Math.max(cardinality, c.literals.size()) : cardinality;
+  }
+
+  private static String getTable(String column) {
+    int i = column.indexOf('_');
+    return i > 0 ? TABLES_BY_PREFIX.get(column.substring(0, i)) : null;
+  }
+
+  private Column getColumn(String column) {
+    String table = getTable(column);
+    return table != null && tables.containsKey(table) ? tables.get(table).get(column) : null;
+  }
+
+  private Column addColumn(String column) {
+    String table = getTable(column);
+    // a table name used as an alias is not a column
+    if (table == null || !tables.containsKey(table) || TABLES_BY_PREFIX.containsValue(column)) {
+      return null;
+    }
+    Map<String, Column> columns = tables.get(table);
+    if (!columns.containsKey(column)) {
+      columns.put(column, new Column(column));
+    }
+    return columns.get(column);
+  }
+
+  /** Makes the columns that a query compares with string literals string columns. */
+  private void addStringLiterals(String text) {
+    Matcher m = STRING_COMPARISON.matcher(text);
+    while (m.find()) {
+      this.addStringLiteral(m.group(1), m.group(2));
+    }
+    m = STRING_BETWEEN.matcher(text);
+    while (m.find()) {
+      this.addStringLiteral(m.group(1), m.group(2));
+      this.addStringLiteral(m.group(1), m.group(3));
+    }
+    m = IN_LIST.matcher(text);
+    while (m.find()) {
+      Matcher literal = LITERAL.matcher(m.group(2));
+      while (literal.find()) {
+        this.addStringLiteral(m.group(1), literal.group(1));
+      }
+    }
+  }
+
+  private void addStringLiteral(String column, String literal) {
+    Column c = this.getColumn(column.toLowerCase());
+    if (c == null || c.primaryKey || c.references != null || c.name.endsWith("_sk")) {
+      return;
+    }
+    if (c.literals == null) {
+      c.literals = new ArrayList<>();
+    }
+    // a value that matches a LIKE pattern
+    String value = literal.replace("''", "'").replace("%", "").replace('_', 'x');
+    if (!c.literals.contains(value)) {
+      c.literals.add(value);
+    }
+  }
+
+  /** Makes a column a foreign key if the other column of a join is a primary key. */
+  private void addReference(String column, String other) {
+    Column c = this.getColumn(column);
+    Column key = this.getColumn(other);
+    if (c != null && !c.primaryKey && key != null && key.primaryKey) {
+      c.references = getTable(other);
+    }
+  }
+
+  private static void appendRow(
+      StringBuilder builder, Column[] columns, long[] row, String separator, boolean sql) {
+    for (int i = 0; i < row.length; ++i) {
+      if (i > 0) {
+        builder.append(separator);
+      }
+      builder.append(columns[i].format(row[i], sql));
+    }
+  }
+}
@@ -2,208 +2,549 @@ package dyoon;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /** Created by Dong Young Yoon on 10/9/18. */
 public class DatabaseTool {
   private final Connection conn;
   private final Meta meta;
-
-  private static final double Z = 2.576; // 99% CI
-  private static final double E = 0.01; // 1% error
+  private final SqlDialect dialect;
+
+  public static final double Z = 2.576; // 99% CI
+  public static final double E = 0.01; // 1% error
+  private static final int STREAMING_FETCH_SIZE = 10000;
+  // (table, column, key table, key column) -> whether every row of the table has a match
+  private static final Map<String, Boolean> MATCHED_KEYS = new ConcurrentHashMap<>();
+
+  private boolean streamingSampler = false;
+  private int statementTimeout = 0;
+  private boolean streamingEvaluation = false;
+  private ResultCache resultCache = null;
+  private boolean rewriteSampleQueries = false;
+  // (query id, sample) -> rewritten sample query, or null if the query cannot be rewritten
+  private final Map<String, String> rewrittenSampleQueries = new HashMap<>();
 
   public DatabaseTool(final Connection conn) {
     this.conn = conn;
     this.meta = Meta.getInstance(conn);
+    this.dialect = SqlDialect.of(conn);
+  }
+
+  public Connection getConnection() {
+    return conn;
   }
 
   public boolean checkTableExists(final String table) throws SQLException {
     final DatabaseMetaData dbm = this.conn.getMetaData();
-    final ResultSet tables = dbm.getTables(null, null, table, null);
+    final ResultSet tables = dbm.getTables(null, null, getStoredName(dbm, table), null);
     return tables.next();
   }
 
   public boolean checkTableExists(String database, String table) throws SQLException {
     final DatabaseMetaData dbm = this.conn.getMetaData();
-    final ResultSet tables = dbm.getTables(null, database, table, null);
+    final ResultSet tables =
+        dbm.getTables(null, getStoredName(dbm, database), getStoredName(dbm, table), null);
     return tables.next();
   }
 
   public boolean checkTableExists(final Prejoin table) throws SQLException {
-    final DatabaseMetaData dbm = this.conn.getMetaData();
-    final ResultSet tables = dbm.getTables(null, table.getDatabase(), table.getName(), null);
-    return tables.next();
+    return this.checkTableExists(table.getDatabase(), table.getName());
+  }
+
+  /** @return a name as the database stores it, e.g., in lower case for names of prejoins */
+  private static String getStoredName(final DatabaseMetaData dbm, final String name)
+      throws SQLException {
+    return (name != null && dbm.storesLowerCaseIdentifiers()) ? name.toLowerCase() : name;
   }
 
   public void addPrejoin(Prejoin p) {
     this.meta.addPrejoin(p);
   }
 
-  public void createSample(final String database, final Sample s, boolean overwrite) {
-    final String sampleTable = s.toString();
+  public void setStreamingSampler(boolean streamingSampler) {
+    this.streamingSampler = streamingSampler;
+  }
+
+  /** @param statementTimeout timeout in seconds for statements issued by tests (0 = no limit) */
+  public void setStatementTimeout(int statementTimeout) {
+    this.statementTimeout = statementTimeout;
+  }
+
+  private Statement createStatement() throws SQLException {
+    final Statement stmt = this.conn.createStatement();
+    if (statementTimeout > 0) {
+      stmt.setQueryTimeout(statementTimeout);
+    }
+    return stmt;
+  }
 
+  public void createSample(final String database, final Sample s, boolean overwrite) {
+    Metrics.Scope scope = Metrics.enter(Metrics.SAMPLE, getQueryId(s), s.toString());
     try {
-      if (this.checkTableExists(sampleTable) && !overwrite) {
-        // sample already exists
-        System.out.println("Sample already exists: " + sampleTable);
-        return;
-      }
+      final String sampleTable = s.toString();
 
-      System.out.println("Creating a sample: " + sampleTable);
-      if (s.getType() == Sample.Type.UNIFORM) {
-        this.createUniformSample(database, s);
-      } else if (s.getType() == Sample.Type.STRATIFIED) {
-        this.createStratifiedSample(database, s);
-      } else if (s.getType() == Sample.Type.STRATIFIED2) {
-        this.createStratified2Sample(database, s);
-      } else {
-        System.out.println("Unsupported sample type: " + s.toString());
-        return;
+      try {
+        if (this.checkTableExists(sampleTable) && !overwrite) {
+          // sample already exists
+          System.out.println("Sample already exists: " + sampleTable);
+          return;
+        }
+
+        System.out.println("Creating a sample: " + sampleTable);
+        if (s.getType() == Sample.Type.UNIFORM) {
+          this.createUniformSample(database, s);
+        } else if (s.getType() == Sample.Type.STRATIFIED) {
+          if (streamingSampler) {
+            if (!this.createStreamingStratifiedSample(database, s)) {
+              return;
+            }
+          } else {
+            this.createStratifiedSample(database, s);
+          }
+        } else if (s.getType() == Sample.Type.STRATIFIED_NESTED) {
+          this.createNestedSample(database, s);
+        } else if (s.getType() == Sample.Type.STRATIFIED2) {
+          if (streamingSampler) {
+            if (!this.createStreamingStratifiedSample(database, s)) {
+              return;
+            }
+          } else {
+            this.createStratified2Sample(database, s);
+          }
+        } else {
+          System.out.println("Unsupported sample type: " + s.toString());
+          return;
+        }
+        meta.addSample(s);
+        this.recordTableSize(sampleTable);
+      } catch (final SQLException e) {
+        e.printStackTrace();
       }
-      meta.addSample(s);
-    } catch (final SQLException e) {
-      e.printStackTrace();
+    } finally {
+      scope.close();
     }
   }
 
-  public void testSample(Sample s, Query q, boolean measureTime, String cacheClearScript)
-      throws SQLException {
-    String sql = q.getQuery();
-    String statTable = String.format("q%s__%.4f__%.4f", q.getId(), s.getZ(), s.getE());
-    statTable = statTable.replaceAll("\\.", "_");
-    String originalQuery = sql.replaceAll("FACT_TABLE", q.getFactTable());
-    String sampleQuery;
-    boolean useSampleQuery = false;
-    if (q.getSampleQuery().isEmpty()) {
-      sampleQuery = sql.replaceAll("FACT_TABLE", s.toString());
-    } else {
-      useSampleQuery = true;
-      sampleQuery =
-          q.getSampleQuery()
-              .replaceAll("FACT_TABLE", s.toString())
-              .replaceAll("STAT_TABLE", statTable);
+  private static String getQueryId(Sample s) {
+    return s.getQuery() != null ? s.getQuery().getId() : null;
+  }
+
+  /** Counts the rows and bytes of a table just written, if metrics are exported. */
+  private void recordTableSize(String table) throws SQLException {
+    if (!Metrics.isEnabled()) {
+      return;
     }
+    final long rowCount = this.getRowCount(table);
+    Metrics.recordTable(rowCount, rowCount * this.getAverageRowSize(table));
+  }
 
-    String origResultTable = String.format("q%s_orig", q.getId());
-    String sampleResultTable = String.format("q%s_%s", q.getId(), s.toString());
+  public void setStreamingEvaluation(boolean streamingEvaluation) {
+    this.streamingEvaluation = streamingEvaluation;
+  }
 
-    double origTimeTaken = 0, sampleTimeTaken = 0;
-    Stopwatch watch;
+  /** @param useResultCache whether exact results of original queries are reused across runs */
+  public void setResultCache(boolean useResultCache) {
+    this.resultCache = useResultCache ? new ResultCache(conn) : null;
+  }
 
-    if (measureTime && cacheClearScript.isEmpty()) {
-      System.out.println("You must provide a script for clearing cache to measure times.");
-      return;
+  public String getOriginalQuery(Query q) {
+    return q.getQuery().replaceAll("FACT_TABLE", q.getFactTable());
+  }
+
+  /**
+   * @return the query run on the sample: the scaled sample query of {@code q} if it has one,
+   *     otherwise the original query on the sample, whose aggregates are scaled by group size
+   */
+  public String getSampleQuery(Sample s, Query q) {
+    String sampleQuery = getHandWrittenSampleQuery(s, q);
+    if (sampleQuery.isEmpty()) {
+      sampleQuery = this.rewriteSampleQuery(s, q);
+    }
+    if (sampleQuery == null) {
+      return q.getQuery().replaceAll("FACT_TABLE", s.toString());
     }
+    return sampleQuery
+        .replaceAll("FACT_TABLE", s.toString())
+        .replaceAll("STAT_TABLE", this.getStatTableName(s, q));
+  }
 
-    if (!checkTableExists(origResultTable) || measureTime) {
-      conn.createStatement().execute(String.format("DROP TABLE IF EXISTS %s", origResultTable));
-      clearCache(cacheClearScript);
-      String createSql =
-          String.format("CREATE TABLE %s STORED AS parquet AS %s", origResultTable, originalQuery);
-      watch = Stopwatch.createStarted();
-      conn.createStatement().execute(createSql);
-      watch.stop();
-      origTimeTaken = watch.elapsed(TimeUnit.MILLISECONDS);
+  /**
+   * @return the hand-written sample query of {@code q} if it scales the strata of {@code s}, as it
+   *     joins the stat table on the QCS of the query, or an empty string
+   */
+  private static String getHandWrittenSampleQuery(Sample s, Query q) {
+    if (s.getType() == Sample.Type.UNIFORM || s.isStratifiedOn(q)) {
+      return q.getSampleQuery();
     }
-    if (!checkTableExists(sampleResultTable) || measureTime) {
-      conn.createStatement().execute(String.format("DROP TABLE IF EXISTS %s", sampleResultTable));
-      boolean statFound = false;
-      ResultSet rs =
-          conn.createStatement().executeQuery(String.format("SHOW TABLE STATS %s", s.toString()));
-      if (rs.next()) {
-        long numFile = rs.getLong(1);
-        if (numFile != -1) {
-          statFound = true;
-        }
-      }
+    return "";
+  }
 
-      if (!statFound) {
-        conn.createStatement().execute(String.format("COMPUTE STATS %s", s.toString()));
-      }
-      clearCache(cacheClearScript);
-      String createSql =
-          String.format("CREATE TABLE %s STORED AS parquet AS %s", sampleResultTable, sampleQuery);
-      watch = Stopwatch.createStarted();
-      conn.createStatement().execute(createSql);
-      watch.stop();
-      sampleTimeTaken = watch.elapsed(TimeUnit.MILLISECONDS);
+  /**
+   * @return the stat table that holds the stratum sizes of {@code s}: that of {@code q} if the
+   *     sample is stratified on its QCS, otherwise that of the query the sample was built for
+   */
+  public String getStatTableName(Sample s, Query q) {
+    Query owner = s.isStratifiedOn(q) || s.getQuery() == null ? q : s.getQuery();
+    // a nested sample is not built from a stat table of its own resolution
+    if (s.getType() == Sample.Type.STRATIFIED_NESTED) {
+      return getStatTableName(owner.getId());
     }
+    return getStatTableName(owner.getId(), s.getZ(), s.getE());
+  }
 
-    TreeSet<String> aggColumns = q.getAggColumns();
-    TreeSet<String> groupByColumns = q.getGroupByColumns();
+  /** @return the stat table of the query with the given id for the default Z and E */
+  public static String getStatTableName(String queryId) {
+    return getStatTableName(queryId, Z, E);
+  }
 
-    List<String> evalItems = new ArrayList<>();
-    for (String col : aggColumns) {
-      if (useSampleQuery) {
-        evalItems.add(
-            String.format("abs(quotient((s.%s - o.%s) * 100000, o.%s) / 100000)", col, col, col));
-      } else {
-        evalItems.add(
+  /** @return the stat table of the query with the given id for the given z and error */
+  public static String getStatTableName(String queryId, double z, double e) {
+    return String.format("q%s__%.4f__%.4f", queryId, z, e).replaceAll("\\.", "_");
+  }
+
+  /**
+   * @return whether the sample query of {@code q} on {@code s} scales its aggregates itself, i.e.,
+   *     it is hand-written or has been rewritten
+   */
+  public boolean hasScaledSampleQuery(Sample s, Query q) {
+    return !getHandWrittenSampleQuery(s, q).isEmpty() || this.rewriteSampleQuery(s, q) != null;
+  }
+
+  /** @param rewriteSampleQueries whether queries without a sample query are rewritten */
+  public void setRewriteSampleQueries(boolean rewriteSampleQueries) {
+    this.rewriteSampleQueries = rewriteSampleQueries;
+  }
+
+  private String rewriteSampleQuery(Sample s, Query q) {
+    if (!rewriteSampleQueries) {
+      return null;
+    }
+    String key = q.getId() + "/" + s.toString();
+    if (!rewrittenSampleQueries.containsKey(key)) {
+      String rewritten = null;
+      try {
+        rewritten = new SampleQueryRewriter(q).rewrite(s);
+      } catch (SqlRewriteException e) {
+        System.out.println(
             String.format(
-                "abs(quotient(((s.%s / s.groupsize * o.groupsize) - "
-                    + "o.%s) * 100000, o.%s) / 100000)",
-                col, col, col));
+                "Cannot rewrite q%s for %s: %s", q.getId(), s.toString(), e.getMessage()));
       }
+      rewrittenSampleQueries.put(key, rewritten);
+    }
+    return rewrittenSampleQueries.get(key);
+  }
+
+  /** @return the number of rows of a table (or a view) from its stats, or by counting them */
+  public long getRowCount(String table) throws SQLException {
+    long rowCount = -1;
+    try {
+      final TableStats stats = TableStats.read(this.conn, dialect, table);
+      if (stats != null) {
+        rowCount = stats.getRowCount();
+      }
+    } catch (SQLException e) {
+      // views have no table stats
+      rowCount = -1;
+    }
+    if (rowCount < 0) {
+      final ResultSet rs =
+          this.createStatement().executeQuery(String.format("SELECT count(*) FROM %s", table));
+      if (rs.next()) {
+        rowCount = rs.getLong(1);
+      }
+      rs.close();
+    }
+    return rowCount;
+  }
+
+  /**
+   * @return the average size in bytes of a row of a table on disk, from its table stats, or 8
+   *     bytes per column if the backend keeps no table stats
+   */
+  public double getAverageRowSize(String table) throws SQLException {
+    final TableStats stats = TableStats.read(this.conn, dialect, table);
+    if (stats == null) {
+      return 8.0 * this.getColumns(table).size();
     }
-    String sumEval = Joiner.on(" + ").join(evalItems);
-    String selectClause =
-        String.format("(avg(%s) / %d) as avg_per_error", sumEval, evalItems.size());
-    String fromClause = String.format("%s as o, %s as s", origResultTable, sampleResultTable);
+    return stats.getRowCount() > 0 ? stats.getBytes() / stats.getRowCount() : 0;
+  }
 
-    List<String> joinItems = new ArrayList<>();
-    for (String col : groupByColumns) {
-      joinItems.add(String.format("o.%s = s.%s", col, col));
+  public void ensureSampleStats(Sample s) throws SQLException {
+    final TableStats stats = TableStats.read(this.conn, dialect, s.getStorageTable());
+    if (stats != null && stats.getRowCount() == -1) {
+      this.computeStats(s.getStorageTable());
     }
-    String joinClause = Joiner.on(" AND ").join(joinItems);
+  }
 
-    String evalSql =
-        String.format("SELECT %s FROM %s WHERE %s", selectClause, fromClause, joinClause);
+  private void computeStats(String table) throws SQLException {
+    final String sql = dialect.computeStats(table);
+    if (sql != null) {
+      this.conn.createStatement().execute(sql);
+    }
+  }
 
-    String origGroupCountSql =
-        String.format("SELECT count(*) as groupcount from %s", origResultTable);
-    String sampleGroupCountSql =
-        String.format("SELECT count(*) as groupcount from %s", sampleResultTable);
+  private void insertOverwrite(String table, String query) throws SQLException {
+    for (final String sql : dialect.insertOverwrite(table, null, query)) {
+      System.err.println(String.format("Executing: %s", sql));
+      this.conn.createStatement().execute(sql);
+    }
+  }
 
-    long origGroupCount = 0, sampleGroupCount = 0;
-    double missingGroupRatio = 0, avgPercentError = 0;
-    ResultSet rs = conn.createStatement().executeQuery(origGroupCountSql);
-    if (rs.next()) {
-      origGroupCount = rs.getLong("groupcount");
+  public TestResult testSample(Sample s, Query q, boolean measureTime, String cacheClearScript)
+      throws SQLException {
+    Metrics.Scope scope = Metrics.enter(Metrics.TEST, q.getId(), s.toString());
+    try {
+      if (streamingEvaluation) {
+        return this.testSampleStreaming(s, q, measureTime, cacheClearScript);
+      }
+      String originalQuery = this.getOriginalQuery(q);
+      String sampleQuery = this.getSampleQuery(s, q);
+      boolean useSampleQuery = this.hasScaledSampleQuery(s, q);
+
+      String origResultTable = String.format("q%s_orig", q.getId());
+      String sampleResultTable = String.format("q%s_%s", q.getId(), s.toString());
+
+      double origTimeTaken = 0, sampleTimeTaken = 0;
+      Stopwatch watch;
+
+      if (measureTime && cacheClearScript.isEmpty()) {
+        System.out.println("You must provide a script for clearing cache to measure times.");
+        return null;
+      }
+
+      if (resultCache != null) {
+        CachedResult cached = resultCache.lookup(originalQuery);
+        if (cached == null) {
+          clearCache(cacheClearScript);
+          watch = Stopwatch.createStarted();
+          cached = resultCache.create(q.getId(), originalQuery);
+          watch.stop();
+          origTimeTaken = watch.elapsed(TimeUnit.MILLISECONDS);
+        } else if (measureTime) {
+          origTimeTaken = this.timeQuery(originalQuery, cacheClearScript);
+        }
+        origResultTable = cached.getTableName();
+      } else if (!checkTableExists(origResultTable) || measureTime) {
+        this.createStatement().execute(String.format("DROP TABLE IF EXISTS %s", origResultTable));
+        clearCache(cacheClearScript);
+        String createSql = dialect.createTableAs(origResultTable, originalQuery);
+        watch = Stopwatch.createStarted();
+        this.createStatement().execute(createSql);
+        watch.stop();
+        origTimeTaken = watch.elapsed(TimeUnit.MILLISECONDS);
+      }
+      if (!checkTableExists(sampleResultTable) || measureTime) {
+        this.createStatement().execute(String.format("DROP TABLE IF EXISTS %s", sampleResultTable));
+        this.ensureSampleStats(s);
+        clearCache(cacheClearScript);
+        String createSql = dialect.createTableAs(sampleResultTable, sampleQuery);
+        watch = Stopwatch.createStarted();
+        this.createStatement().execute(createSql);
+        watch.stop();
+        sampleTimeTaken = watch.elapsed(TimeUnit.MILLISECONDS);
+      }
+
+      TreeSet<String> aggColumns = q.getAggColumns();
+      TreeSet<String> groupByColumns = q.getGroupByColumns();
+
+      List<String> evalItems = new ArrayList<>();
+      for (String col : aggColumns) {
+        if (useSampleQuery) {
+          evalItems.add(
+              String.format(
+                  "abs(%s / 100000)",
+                  dialect.quotient(String.format("(s.%s - o.%s) * 100000", col, col), "o." + col)));
+        } else {
+          evalItems.add(
+              String.format(
+                  "abs(%s / 100000)",
+                  dialect.quotient(
+                      String.format("((s.%s / s.groupsize * o.groupsize) - o.%s) * 100000", col, col),
+                      "o." + col)));
+        }
+      }
+      String sumEval = Joiner.on(" + ").join(evalItems);
+      String selectClause =
+          String.format("(avg(%s) / %d) as avg_per_error", sumEval, evalItems.size());
+      String fromClause = String.format("%s as o, %s as s", origResultTable, sampleResultTable);
+
+      List<String> joinItems = new ArrayList<>();
+      for (String col : groupByColumns) {
+        joinItems.add(String.format("o.%s = s.%s", col, col));
+      }
+      String joinClause = Joiner.on(" AND ").join(joinItems);
+
+      String evalSql =
+          String.format("SELECT %s FROM %s WHERE %s", selectClause, fromClause, joinClause);
+
+      String origGroupCountSql =
+          String.format("SELECT count(*) as groupcount from %s", origResultTable);
+      String sampleGroupCountSql =
+          String.format("SELECT count(*) as groupcount from %s", sampleResultTable);
+
+      long origGroupCount = 0, sampleGroupCount = 0;
+      double missingGroupRatio = 0, avgPercentError = 0;
+      ResultSet rs = this.createStatement().executeQuery(origGroupCountSql);
+      if (rs.next()) {
+        origGroupCount = rs.getLong("groupcount");
+      }
+      rs.close();
+
+      rs = this.createStatement().executeQuery(sampleGroupCountSql);
+      if (rs.next()) {
+        sampleGroupCount = rs.getLong("groupcount");
+      }
+      rs.close();
+
+      rs = this.createStatement().executeQuery(evalSql);
+      if (rs.next()) {
+        avgPercentError = rs.getDouble("avg_per_error");
+      }
+
+      missingGroupRatio = (double) (origGroupCount - sampleGroupCount) / (double) origGroupCount;
+      System.out.println(
+          String.format(
+              "q%s with sample %s gives: missing group ratio = %.4f %%, "
+                  + "avg. percent error = %.4f %%, original time taken = %.4f s, sample time taken = %.4f s ",
+              q.getId(),
+              s.toString(),
+              missingGroupRatio * 100,
+              avgPercentError * 100,
+              origTimeTaken / 1000,
+              sampleTimeTaken / 1000));
+
+      return new TestResult(
+          q.getId(),
+          s.toString(),
+          missingGroupRatio,
+          avgPercentError,
+          origTimeTaken,
+          sampleTimeTaken);
+    } finally {
+      scope.close();
     }
-    rs.close();
+  }
 
-    rs = conn.createStatement().executeQuery(sampleGroupCountSql);
-    if (rs.next()) {
-      sampleGroupCount = rs.getLong("groupcount");
+  /**
+   * Tests a sample by streaming the original and the sample results to the client and joining them
+   * in memory on the group-by columns, instead of writing both into tables and comparing them with
+   * further queries.
+   */
+  private TestResult testSampleStreaming(
+      Sample s, Query q, boolean measureTime, String cacheClearScript) throws SQLException {
+    if (measureTime && cacheClearScript.isEmpty()) {
+      System.out.println("You must provide a script for clearing cache to measure times.");
+      return null;
     }
-    rs.close();
 
-    rs = conn.createStatement().executeQuery(evalSql);
-    if (rs.next()) {
-      avgPercentError = rs.getDouble("avg_per_error");
+    final ErrorEvaluator evaluator =
+        new ErrorEvaluator(
+            new ArrayList<>(q.getGroupByColumns()),
+            new ArrayList<>(q.getAggColumns()),
+            !this.hasScaledSampleQuery(s, q));
+
+    final String originalQuery = this.getOriginalQuery(q);
+    double origTimeTaken = 0;
+    Stopwatch watch;
+    if (resultCache != null) {
+      CachedResult cached = resultCache.lookup(originalQuery);
+      if (cached == null) {
+        clearCache(cacheClearScript);
+        watch = Stopwatch.createStarted();
+        cached = resultCache.create(q.getId(), originalQuery);
+        watch.stop();
+        origTimeTaken = watch.elapsed(TimeUnit.MILLISECONDS);
+      } else if (measureTime) {
+        origTimeTaken = this.timeQuery(originalQuery, cacheClearScript);
+      }
+      evaluator.readOriginal(
+          this.createStatement(), String.format("SELECT * FROM %s", cached.getTableName()));
+    } else {
+      if (measureTime) {
+        clearCache(cacheClearScript);
+      }
+      watch = Stopwatch.createStarted();
+      evaluator.readOriginal(this.createStatement(), originalQuery);
+      watch.stop();
+      origTimeTaken = watch.elapsed(TimeUnit.MILLISECONDS);
     }
 
-    missingGroupRatio = (double) (origGroupCount - sampleGroupCount) / (double) origGroupCount;
+    this.ensureSampleStats(s);
+    if (measureTime) {
+      clearCache(cacheClearScript);
+    }
+    watch = Stopwatch.createStarted();
+    evaluator.readSample(this.createStatement(), this.getSampleQuery(s, q));
+    watch.stop();
+    final double sampleTimeTaken = watch.elapsed(TimeUnit.MILLISECONDS);
+
+    final TestResult result =
+        evaluator.getResult(q.getId(), s.toString(), origTimeTaken, sampleTimeTaken);
     System.out.println(
         String.format(
             "q%s with sample %s gives: missing group ratio = %.4f %%, "
-                + "avg. percent error = %.4f %%, original time taken = %.4f s, sample time taken = %.4f s ",
+                + "avg. percent error = %.4f %%, original time taken = %.4f s, "
+                + "sample time taken = %.4f s ",
             q.getId(),
             s.toString(),
-            missingGroupRatio * 100,
-            avgPercentError * 100,
+            result.getMissingGroupRatio() * 100,
+            result.getAvgPercentError() * 100,
             origTimeTaken / 1000,
             sampleTimeTaken / 1000));
+    for (Map.Entry<String, TestResult.ColumnError> entry : result.getColumnErrors().entrySet()) {
+      final TestResult.ColumnError error = entry.getValue();
+      System.out.println(
+          String.format(
+              "\t%s: avg = %.4f %%, p50 = %.4f %%, p90 = %.4f %%, p99 = %.4f %%, max = %.4f %%",
+              entry.getKey(),
+              error.getAvg() * 100,
+              error.getP50() * 100,
+              error.getP90() * 100,
+              error.getP99() * 100,
+              error.getMax() * 100));
+    }
+    return result;
+  }
+
+  /**
+   * @param cacheClearScript script run before the query to clear caches; no caches are cleared if
+   *     it is empty
+   * @return time taken in ms to run the query and fetch its whole result
+   */
+  public double timeQuery(String sql, String cacheClearScript) throws SQLException {
+    if (!cacheClearScript.isEmpty()) {
+      clearCache(cacheClearScript);
+    }
+    final Statement stmt = this.createStatement();
+    stmt.setFetchSize(STREAMING_FETCH_SIZE);
+    final Stopwatch watch = Stopwatch.createStarted();
+    final ResultSet rs = stmt.executeQuery(sql);
+    while (rs.next()) {}
+    watch.stop();
+    rs.close();
+    stmt.close();
+    return watch.elapsed(TimeUnit.MILLISECONDS);
   }
 
   private void clearCache(String cacheClearScript) {
@@ -221,8 +562,7 @@ public class DatabaseTool {
     final String sampleTable = s.toString();
     final String factTable = s.getQuery().getFactTable();
     String sourceTable = factTable;
-    String statTable = String.format("q%s__%.4f__%.4f", s.getQuery().getId(), s.getZ(), s.getE());
-    statTable = statTable.replaceAll("\\.", "_");
+    String statTable = getStatTableName(s.getQuery().getId(), s.getZ(), s.getE());
     if (!this.checkTableExists(statTable)) {
       System.out.println("Stat table does not exist: " + statTable);
       return;
@@ -250,15 +590,13 @@ public class DatabaseTool {
     final String joinClause = Joiner.on(" AND ").join(joinColumns);
 
     final String createSql =
-        String.format(
-            "CREATE TABLE IF NOT EXISTS %s.%s LIKE %s.%s STORED as parquet",
-            database, sampleTable, database, factTable);
+        dialect.createTableLike(database + "." + sampleTable, database + "." + factTable);
 
     this.conn.createStatement().execute(createSql);
 
-    final String insertSql =
+    final String selectSql =
         String.format(
-            "INSERT OVERWRITE TABLE %s.%s SELECT %s FROM "
+            "SELECT %s FROM "
                 + "(SELECT fact.*, row_number() OVER (PARTITION BY %s ORDER BY %s) as rownum, "
                 + "count(*) OVER (PARTITION BY %s ORDER BY %s) as groupsize, "
                 + "stat.target_group_sample_size as target_group_sample_size "
@@ -266,9 +604,7 @@ public class DatabaseTool {
                 + "WHERE %s ORDER BY rand()) tmp "
                 + "WHERE tmp.rownum <= tmp.target_group_sample_size OR "
                 + "(tmp.rownum > tmp.target_group_sample_size AND "
-                + "rand(unix_timestamp()) < (tmp.target_group_sample_size / 20) / tmp.groupsize)",
-            database,
-            sampleTable,
+                + "%s < (tmp.target_group_sample_size / 20) / tmp.groupsize)",
             Joiner.on(",").join(factTableColumns),
             sampleQCSClause,
             sampleQCSClause,
@@ -276,13 +612,117 @@ public class DatabaseTool {
             sampleQCSClause,
             sourceTable,
             statTable,
-            joinClause);
-    System.err.println(String.format("Executing: %s", insertSql));
+            joinClause,
+            dialect.seededRandom());
+
+    this.insertOverwrite(database + "." + sampleTable, selectSql);
+    this.computeStats(database + "." + sampleTable);
+  }
+
+  /**
+   * Creates a nested stratified sample. Every sampled row keeps its random rank within its stratum
+   * and the size of the stratum, so the sample for a larger error is the prefix of each stratum up
+   * to its smaller target size. The table is built for the smallest error of the sample and sorted
+   * by rank, and each coarser resolution is a view that filters on the rank. Unlike a stratified
+   * sample, no stratum keeps a random tail of rows beyond its target size, as a view could not
+   * select the same tail on every read.
+   */
+  private void createNestedSample(final String database, final Sample s) throws SQLException {
+    final Sample base = s.toResolutionSamples().get(0);
+    final String sampleTable = base.getStorageTable();
+    final String factTable = s.getTable();
+    String sourceTable = factTable;
+
+    if (s.getJoinTables().size() > 1) {
+      Prejoin p = meta.getPrejoinForSample(database, s);
+      if (p == null) {
+        System.out.println("Prejoin required for sample does not exist: " + s.toString());
+      } else {
+        sourceTable = p.getName();
+      }
+    }
 
-    this.conn.createStatement().execute(insertSql);
+    final List<String> factTableColumns = this.getColumns(factTable);
+    final List<String> sampleColumnsWithFactPrefix = new ArrayList<>();
+    for (final String column : s.getColumns()) {
+      sampleColumnsWithFactPrefix.add(String.format("fact.%s", column));
+    }
+    final String sampleQCSClause = Joiner.on(",").join(sampleColumnsWithFactPrefix);
+    final String columnList = Joiner.on(",").join(factTableColumns);
+
+    this.conn
+        .createStatement()
+        .execute(String.format("DROP TABLE IF EXISTS %s.%s", database, sampleTable));
+    final String qualifiedSampleTable = database + "." + sampleTable;
+    this.conn
+        .createStatement()
+        .execute(dialect.createTableLike(qualifiedSampleTable, database + "." + factTable));
     this.conn
         .createStatement()
-        .execute(String.format("COMPUTE STATS %s.%s", database, sampleTable));
+        .execute(
+            dialect.addColumns(qualifiedSampleTable, "sample_rank bigint, stratum_size bigint"));
+    final String sortSql = dialect.sortBy(qualifiedSampleTable, "sample_rank");
+    if (sortSql != null) {
+      this.conn.createStatement().execute(sortSql);
+    }
+
+    final String selectSql =
+        String.format(
+            "SELECT %s, rownum, groupsize FROM "
+                + "(SELECT fact.*, row_number() OVER (PARTITION BY %s ORDER BY rand()) as rownum, "
+                + "count(*) OVER (PARTITION BY %s) as groupsize "
+                + "FROM %s as fact) tmp "
+                + "WHERE %s",
+            columnList,
+            sampleQCSClause,
+            sampleQCSClause,
+            sourceTable,
+            getNestedRankFilter("tmp.rownum", "tmp.groupsize", base.getZ(), base.getE()));
+    this.insertOverwrite(qualifiedSampleTable, selectSql);
+    this.computeStats(qualifiedSampleTable);
+
+    for (final Sample resolution : s.toResolutionSamples()) {
+      if (!resolution.isView()) {
+        continue;
+      }
+      final String viewName = resolution.toString();
+      this.conn
+          .createStatement()
+          .execute(String.format("DROP VIEW IF EXISTS %s.%s", database, viewName));
+      this.conn
+          .createStatement()
+          .execute(
+              String.format(
+                  "CREATE VIEW %s.%s AS SELECT %s FROM %s.%s WHERE %s",
+                  database,
+                  viewName,
+                  columnList,
+                  database,
+                  sampleTable,
+                  getNestedRankFilter(
+                      "sample_rank", "stratum_size", resolution.getZ(), resolution.getE())));
+    }
+  }
+
+  /**
+   * @return a predicate that keeps the rows of each stratum up to its target size for an error.
+   *     The target size is at most s0 for any stratum size, so the predicate also bounds the rank
+   *     alone, which lets the scan of a table sorted by rank skip row groups on their min/max
+   *     statistics.
+   */
+  private static String getNestedRankFilter(
+      String rankColumn, String sizeColumn, double z, double e) {
+    final double s0 = Math.pow(z, 2) * 0.25 / Math.pow(e, 2);
+    return String.format(
+        Locale.ROOT,
+        "%s <= %d AND %s <= (%s * %f) / (%s + %f - 1)",
+        rankColumn,
+        (long) Math.ceil(s0),
+        rankColumn,
+        sizeColumn,
+        s0,
+        sizeColumn,
+        s0);
   }
 
   private void createStratified2Sample(final String database, final Sample s) throws SQLException {
@@ -309,15 +749,13 @@ public class DatabaseTool {
     final String sampleQCSClause = Joiner.on(",").join(sampleColumnsWithFactPrefix);
 
     final String createSql =
-        String.format(
-            "CREATE TABLE IF NOT EXISTS %s.%s LIKE %s.%s STORED as parquet",
-            database, sampleTable, database, factTable);
+        dialect.createTableLike(database + "." + sampleTable, database + "." + factTable);
 
     this.conn.createStatement().execute(createSql);
 
-    final String insertSql =
+    final String selectSql =
         String.format(
-            "INSERT OVERWRITE TABLE %s.%s SELECT %s FROM "
+            "SELECT %s FROM "
                 + "(SELECT fact.*, row_number() OVER (PARTITION BY %s ORDER BY %s) as rownum, "
                 + "count(*) OVER (PARTITION BY %s ORDER BY %s) as groupsize, "
                 + "%d as target_group_sample_size "
@@ -325,9 +763,7 @@ public class DatabaseTool {
                 + "ORDER BY rand()) tmp "
                 + "WHERE tmp.rownum <= %d OR "
                 + "(tmp.rownum > %d AND "
-                + "rand(unix_timestamp()) < (%d / 20) / tmp.groupsize)",
-            database,
-            sampleTable,
+                + "%s < (%d / 20) / tmp.groupsize)",
             Joiner.on(",").join(factTableColumns),
             sampleQCSClause,
             sampleQCSClause,
@@ -337,15 +773,67 @@ public class DatabaseTool {
             sourceTable,
             s.getMinRow(),
             s.getMinRow(),
+            dialect.seededRandom(),
             s.getMinRow());
     //            statTable,
     //            joinClause);
-    System.err.println(String.format("Executing: %s", insertSql));
 
-    this.conn.createStatement().execute(insertSql);
-    this.conn
-        .createStatement()
-        .execute(String.format("COMPUTE STATS %s.%s", database, sampleTable));
+    this.insertOverwrite(database + "." + sampleTable, selectSql);
+    this.computeStats(database + "." + sampleTable);
+  }
+
+  /**
+   * Creates a stratified (or stratified2) sample by streaming the source table once through a
+   * forward-only cursor and keeping a reservoir per stratum on the client, instead of running the
+   * window-function INSERT with a global ORDER BY rand().
+   */
+  private boolean createStreamingStratifiedSample(final String database, final Sample s) {
+    final List<Sample> created =
+        new SharedScanSampleBuilder(this.conn, this)
+            .build(database, Collections.singletonList(s));
+    return !created.isEmpty();
+  }
+
+  /**
+   * Creates all given samples, scanning each source table (fact table or prejoin) only once for
+   * all samples drawn from it.
+   */
+  public void createSamples(final String database, final List<Sample> samples, boolean overwrite) {
+    Metrics.Scope scope = Metrics.enter(Metrics.SAMPLE, null, null);
+    try {
+      final List<Sample> samplesToBuild = new ArrayList<>();
+      try {
+        for (final Sample s : samples) {
+          if (s.getType() == Sample.Type.STRATIFIED_NESTED) {
+            // nested samples need the whole stratum to rank its rows
+            this.createSample(database, s, overwrite);
+          } else if (this.checkTableExists(s.toString()) && !overwrite) {
+            System.out.println("Sample already exists: " + s.toString());
+          } else {
+            samplesToBuild.add(s);
+          }
+        }
+      } catch (final SQLException e) {
+        e.printStackTrace();
+        return;
+      }
+
+      final List<Sample> created =
+          new SharedScanSampleBuilder(this.conn, this).build(database, samplesToBuild);
+      for (final Sample s : created) {
+        meta.addSample(s);
+        Metrics.Scope sampleScope = Metrics.enter(null, getQueryId(s), s.toString());
+        try {
+          this.recordTableSize(s.toString());
+        } catch (final SQLException e) {
+          e.printStackTrace();
+        } finally {
+          sampleScope.close();
+        }
+      }
+    } finally {
+      scope.close();
+    }
   }
 
   private void createUniformSample(String database, Sample s) throws SQLException {
@@ -353,93 +841,235 @@ public class DatabaseTool {
     final String factTable = s.getQuery().getFactTable();
     final List<String> factTableColumns = this.getColumns(factTable);
     final String createSql =
-        String.format(
-            "CREATE TABLE IF NOT EXISTS %s.%s LIKE %s.%s STORED as parquet",
-            database, sampleTable, database, factTable);
+        dialect.createTableLike(database + "." + sampleTable, database + "." + factTable);
 
     conn.createStatement().execute(createSql);
 
-    String insertSql =
+    String selectSql =
         String.format(
-            "INSERT OVERWRITE TABLE %s.%s SELECT %s FROM %s WHERE rand(unix_timestamp()) < %f",
-            database, sampleTable, Joiner.on(",").join(factTableColumns), factTable, s.getRatio());
+            "SELECT %s FROM %s WHERE %s < %f",
+            Joiner.on(",").join(factTableColumns),
+            factTable,
+            dialect.seededRandom(),
+            s.getRatio());
 
-    System.err.println(String.format("Executing: %s", insertSql));
-    this.conn.createStatement().execute(insertSql);
-    this.conn
-        .createStatement()
-        .execute(String.format("COMPUTE STATS %s.%s", database, sampleTable));
+    this.insertOverwrite(database + "." + sampleTable, selectSql);
+    this.computeStats(database + "." + sampleTable);
   }
 
   public void findOrCreateJoinTable(final Query q) {
+    Metrics.Scope scope = Metrics.enter(Metrics.PREJOIN, q.getId(), null);
+    try {
+      if (q.getJoinedTables().isEmpty()) {
+        return;
+      }
 
-    if (q.getJoinedTables().isEmpty()) {
-      return;
-    }
-
-    final String joinTable = this.findJoinTable(q);
-    if (joinTable != null) {
-      System.out.println("Found join table: " + joinTable);
-      q.setJoinTableName(joinTable);
-      return;
-    }
+      final String joinTable = this.findJoinTable(q);
+      if (joinTable != null) {
+        System.out.println("Found join table: " + joinTable);
+        q.setJoinTableName(joinTable);
+        return;
+      }
 
-    final Joiner j = Joiner.on("_");
-    final Joiner j2 = Joiner.on(",");
-    final Joiner j3 = Joiner.on(" AND ");
+      final Joiner j = Joiner.on("_");
+      final Joiner j2 = Joiner.on(",");
+      final Joiner j3 = Joiner.on(" AND ");
 
-    final String joinTableName = q.getJoinTableName();
-    final String joinTables = j2.join(q.getJoinedTables());
+      final String joinTableName = q.getJoinTableName();
+      final String joinTables = j2.join(q.getJoinedTables());
+      final List<String> columns = this.getReferencedColumns(q, q.getJoinedTables());
+      final String projection = columns.isEmpty() ? "*" : j2.join(columns);
 
-    final List<String> joinColumns = new ArrayList<>();
-    for (final ColumnPair pair : q.getJoinColumns()) {
-      joinColumns.add(pair.getLeft() + " = " + pair.getRight());
+      final List<String> joinColumns = new ArrayList<>();
+      for (final ColumnPair pair : q.getJoinColumns()) {
+        joinColumns.add(pair.getLeft() + " = " + pair.getRight());
+      }
+      final String joinClause = j3.join(joinColumns);
+
+      try {
+        if (!this.checkTableExists(joinTableName)) {
+          System.out.println("Creating join table: " + joinTableName);
+          final String sql =
+              dialect.createTableAs(
+                  joinTableName,
+                  String.format("SELECT %s FROM %s WHERE %s", projection, joinTables, joinClause));
+          this.conn.createStatement().execute(sql);
+          this.recordTableSize(joinTableName);
+        }
+      } catch (final SQLException e) {
+        e.printStackTrace();
+      }
+    } finally {
+      scope.close();
     }
-    final String joinClause = j3.join(joinColumns);
+  }
+
+  public void createPrejoinTable(final Prejoin p) {
+    this.createPrejoinTable(p, null);
+  }
 
+  /**
+   * Creates a prejoin table, by projecting the columns of its tables out of {@code source} when a
+   * containing prejoin is given, or by joining its base tables otherwise. The inner joins of the
+   * source drop the rows whose keys to its other tables are NULL or dangling, so the base tables
+   * are joined instead when the prejoin has such rows (see {@link #hasAllRows}).
+   */
+  public void createPrejoinTable(final Prejoin p, final Prejoin source) {
+    Metrics.Scope scope = Metrics.enter(Metrics.PREJOIN, null, null);
     try {
-      if (!this.checkTableExists(joinTableName)) {
-        System.out.println("Creating join table: " + joinTableName);
-        final String sql =
+      final List<String> columns = new ArrayList<>(p.getColumnSet());
+      if (source != null && !this.hasAllRows(p, source)) {
+        System.out.println(
             String.format(
-                "CREATE TABLE %s STORED AS parquet AS SELECT * FROM %s WHERE %s",
-                joinTableName, joinTables, joinClause);
-        this.conn.createStatement().execute(sql);
+                "Joining the base tables of %s, as %s lacks its rows without matching keys",
+                p.getName(), source.getName()));
+      } else if (source != null) {
+        if (columns.isEmpty()) {
+          for (final String table : p.getTableSet()) {
+            columns.addAll(this.getColumns(table));
+          }
+        }
+        try {
+          if (!this.checkTableExists(p.getName())) {
+            final String sql =
+                dialect.createTableAs(
+                    p.getDatabase() + "." + p.getName(),
+                    String.format(
+                        "SELECT %s FROM %s.%s",
+                        Joiner.on(",").join(columns),
+                        source.getDatabase(),
+                        source.getName()));
+            System.out.println("Creating join table from " + source.getName() + ":\n\t" + sql);
+            this.conn.createStatement().execute(sql);
+            this.recordTableSize(p.getName());
+          }
+        } catch (final SQLException e) {
+          e.printStackTrace();
+        }
+        return;
       }
-    } catch (final SQLException e) {
-      e.printStackTrace();
-    }
-  }
 
-  public void createPrejoinTable(final Prejoin p) {
+      final String database = p.getDatabase();
+      final String joinTableName = p.getName();
+      final Joiner j2 = Joiner.on(",");
+      final Joiner j3 = Joiner.on(" AND ");
 
-    final String database = p.getDatabase();
-    final String joinTableName = p.getName();
-    final Joiner j2 = Joiner.on(",");
-    final Joiner j3 = Joiner.on(" AND ");
+      final String joinTables = j2.join(p.getTableSet());
 
-    final String joinTables = j2.join(p.getTableSet());
+      final List<String> joinColumns = new ArrayList<>();
+      for (ColumnPair pair : p.getJoinColumnSet()) {
+        joinColumns.add(pair.getLeft() + " = " + pair.getRight());
+      }
+      final String joinClause = j3.join(joinColumns);
 
-    final List<String> joinColumns = new ArrayList<>();
-    for (ColumnPair pair : p.getJoinColumnSet()) {
-      joinColumns.add(pair.getLeft() + " = " + pair.getRight());
+      try {
+        if (!this.checkTableExists(joinTableName)) {
+          final String sql =
+              dialect.createTableAs(
+                  database + "." + joinTableName,
+                  String.format(
+                      "SELECT %s FROM %s WHERE %s",
+                      columns.isEmpty() ? "*" : j2.join(columns),
+                      joinTables,
+                      joinClause));
+          System.out.println("Creating join table:\n\t" + sql);
+          this.conn.createStatement().execute(sql);
+          this.recordTableSize(joinTableName);
+        }
+      } catch (final SQLException e) {
+        e.printStackTrace();
+      }
+    } finally {
+      scope.close();
     }
-    final String joinClause = j3.join(joinColumns);
+  }
 
+  /**
+   * @return whether {@code source} has every row of the join of {@code p}, i.e., every row of the
+   *     tables of {@code p} has a match in the other tables of {@code source}, whose inner joins
+   *     drop the rows with NULL or dangling keys
+   */
+  public boolean hasAllRows(final Prejoin p, final Prejoin source) {
     try {
-      if (!this.checkTableExists(joinTableName)) {
-        final String sql =
-            String.format(
-                "CREATE TABLE %s.%s STORED AS parquet AS SELECT * FROM %s WHERE %s",
-                database, joinTableName, joinTables, joinClause);
-        System.out.println("Creating join table:\n\t" + sql);
-        this.conn.createStatement().execute(sql);
+      final Map<String, String> columnTables = new HashMap<>();
+      for (final String table : source.getTableSet()) {
+        for (final String column : this.getColumns(table)) {
+          columnTables.put(column.toLowerCase(), table);
+        }
+      }
+      // each join of another table is checked from the table that reaches it, e.g., the fact table
+      final Set<String> reached = new HashSet<>(p.getTableSet());
+      final List<ColumnPair> extra = new ArrayList<>();
+      for (final ColumnPair pair : source.getJoinColumnSet()) {
+        if (!p.getJoinColumnSet().contains(pair)) {
+          extra.add(pair);
+        }
       }
+      boolean progress = true;
+      while (!extra.isEmpty() && progress) {
+        progress = false;
+        for (final Iterator<ColumnPair> it = extra.iterator(); it.hasNext(); ) {
+          final ColumnPair pair = it.next();
+          final String left = columnTables.get(pair.getLeft().toLowerCase());
+          final String right = columnTables.get(pair.getRight().toLowerCase());
+          if (left == null
+              || right == null
+              || (reached.contains(left) && reached.contains(right))) {
+            // an unknown column, or a join that only filters tables already joined
+            return false;
+          }
+          if (reached.contains(left) || reached.contains(right)) {
+            final boolean fromLeft = reached.contains(left);
+            final boolean matched =
+                fromLeft
+                    ? this.hasMatches(p.getDatabase(), left, pair.getLeft(), right, pair.getRight())
+                    : this.hasMatches(
+                        p.getDatabase(), right, pair.getRight(), left, pair.getLeft());
+            if (!matched) {
+              return false;
+            }
+            reached.add(fromLeft ? right : left);
+            it.remove();
+            progress = true;
+          }
+        }
+      }
+      return extra.isEmpty();
     } catch (final SQLException e) {
       e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * @return whether every row of {@code table} has a match of {@code column} in {@code keyColumn}
+   *     of {@code keyTable}, checked with an anti-join once per process
+   */
+  private boolean hasMatches(
+      final String database,
+      final String table,
+      final String column,
+      final String keyTable,
+      final String keyColumn)
+      throws SQLException {
+    final String key =
+        String.format("%s.%s.%s/%s.%s", database, table, column, keyTable, keyColumn);
+    Boolean matched = MATCHED_KEYS.get(key);
+    if (matched == null) {
+      final String sql =
+          String.format(
+              "SELECT 1 FROM %s.%s t WHERE NOT EXISTS "
+                  + "(SELECT 1 FROM %s.%s k WHERE k.%s = t.%s) LIMIT 1",
+              database, table, database, keyTable, keyColumn, column);
+      final ResultSet rs = this.conn.createStatement().executeQuery(sql);
+      matched = !rs.next();
+      rs.close();
+      MATCHED_KEYS.put(key, matched);
     }
+    return matched;
   }
 
+
   private String findJoinTable(final Query q) {
     try {
       final ResultSet rs = this.conn.createStatement().executeQuery("SHOW TABLES");
@@ -460,7 +1090,7 @@ public class DatabaseTool {
     final List<String> columns = new ArrayList<>();
     try {
       final ResultSet rs =
-          this.conn.createStatement().executeQuery(String.format("DESCRIBE %s", table));
+          this.conn.createStatement().executeQuery(dialect.describe(table));
       while (rs.next()) {
         columns.add(rs.getString(1));
       }
@@ -470,119 +1100,330 @@ public class DatabaseTool {
     return columns;
   }
 
-  public Stat getGroupCountAndSize(
-      final String database, final Query q, final List<Prejoin> prejoins) {
-    long populationSize = 0;
-    long groupCount = 0;
-    double avgGroupSize = 0;
-    long maxGroupSize = 0;
-    long minGroupSize = 0;
-    double targetSampleSize = 0;
-    String joinTableName = "";
-
-    if (q.getJoinedTables().size() == 1) {
-      joinTableName = q.getFactTable();
-    } else {
-      for (final Prejoin prejoin : prejoins) {
-        if (prejoin.supports(database, q)) {
-          joinTableName = prejoin.getName();
-          break;
+  /**
+   * @return the columns of the given tables that a query needs, i.e., its required columns and the
+   *     columns its text refers to, in the order of the tables
+   */
+  public List<String> getReferencedColumns(final Query q, final Collection<String> tables) {
+    final Set<String> names = q.getReferencedNames();
+    for (final String column : q.getRequiredColumns()) {
+      names.add(column.toLowerCase());
+    }
+    final List<String> columns = new ArrayList<>();
+    for (final String table : tables) {
+      for (final String column : this.getColumns(table)) {
+        if (names.contains(column.toLowerCase())) {
+          columns.add(column);
         }
       }
     }
+    return columns;
+  }
 
-    if (joinTableName.isEmpty()) {
+  /**
+   * Maps a query with joins to a query on its fact table alone, for sampling the fact table before
+   * joining it with the dimension tables. Every QCS column of a dimension table is replaced by the
+   * fact table column that joins, directly or through other dimension tables, to that table.
+   *
+   * @return the query with id {@code <id>_fk}, or null if a QCS column is not determined by a
+   *     foreign key of the fact table
+   */
+  public Query getForeignKeyQuery(final Query q) {
+    final String factTable = q.getFactTable();
+    if (factTable == null || q.getJoinedTables().size() <= 1) {
       return null;
     }
+    final Map<String, String> columnTables = new HashMap<>();
+    for (final String table : q.getJoinedTables()) {
+      for (final String column : this.getColumns(table)) {
+        columnTables.put(column.toLowerCase(), table);
+      }
+    }
+
+    // the foreign key of the fact table that determines each dimension table
+    final Map<String, String> foreignKeys = new HashMap<>();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (final ColumnPair pair : q.getJoinColumns()) {
+        final String left = pair.getLeft().toLowerCase();
+        final String right = pair.getRight().toLowerCase();
+        final String leftTable = columnTables.get(left);
+        final String rightTable = columnTables.get(right);
+        if (leftTable == null || rightTable == null) {
+          continue;
+        }
+        for (int i = 0; i < 2; ++i) {
+          final String fromTable = (i == 0) ? leftTable : rightTable;
+          final String fromColumn = (i == 0) ? left : right;
+          final String toTable = (i == 0) ? rightTable : leftTable;
+          if (toTable.equals(factTable) || foreignKeys.containsKey(toTable)) {
+            continue;
+          }
+          if (fromTable.equals(factTable)) {
+            foreignKeys.put(toTable, fromColumn);
+            changed = true;
+          } else if (foreignKeys.containsKey(fromTable)) {
+            foreignKeys.put(toTable, foreignKeys.get(fromTable));
+            changed = true;
+          }
+        }
+      }
+    }
 
-    String statTableName =
-        String.format("q%s__%.4f__%.4f", q.getId(), DatabaseTool.Z, DatabaseTool.E);
-    statTableName = statTableName.replaceAll("\\.", "_");
-    Stat stat = this.meta.loadStat(database, statTableName);
-    final String qcsCols = Joiner.on(",").join(q.getQueryColumnSet());
+    final List<String> columns = new ArrayList<>();
+    for (final String column : q.getQueryColumnSet()) {
+      final String table = columnTables.get(column.toLowerCase());
+      if (factTable.equals(table)) {
+        columns.add(column);
+      } else if (foreignKeys.containsKey(table)) {
+        columns.add(foreignKeys.get(table));
+      } else {
+        System.out.println(
+            String.format(
+                "Column %s of q%s is not determined by %s", column, q.getId(), factTable));
+        return null;
+      }
+    }
+    return new Query(
+        q.getId() + Query.FOREIGN_KEY_SUFFIX,
+        columns,
+        Collections.singletonList(factTable),
+        new ArrayList<Pair<String, String>>());
+  }
 
-    if (stat != null && stat.getPopulationSize() == 0) {
-      stat = null;
+  public String getStatSourceTable(
+      final String database, final Query q, final PrejoinIndex prejoins) {
+    if (q.getJoinedTables().size() == 1) {
+      return q.getFactTable();
     }
+    final Prejoin prejoin = prejoins.findSmallestCovering(database, q);
+    return (prejoin != null) ? prejoin.getName() : "";
+  }
 
+  /**
+   * Estimates the same numbers as {@link #getGroupCountAndSize} on the server with a single scan,
+   * without creating a stat table. The group count comes from {@link SqlDialect#countDistinct} (ndv
+   * on Impala). As the sizes of the groups are not known, the target sample size is that of the
+   * most skewed groups the counts allow, i.e., one large group and single rows, which is the
+   * smallest for the counts; so a query whose estimate does not call for a stratified sample does
+   * not call for one with exact stats either. The returned stat is not saved in the meta.
+   */
+  public Stat estimateGroupCountAndSize(
+      final String database, final Query q, final PrejoinIndex prejoins) {
+    Metrics.Scope scope = Metrics.enter(Metrics.STAT, q.getId(), null);
     try {
-      if (!this.checkTableExists(statTableName)) {
-        if (stat != null) {
-          this.conn
-              .createStatement()
-              .execute(
-                  String.format(
-                      "CREATE TABLE %s STORED AS parquet AS SELECT * FROM %s",
-                      statTableName, stat.getTableName()));
-        } else {
-          this.conn
-              .createStatement()
-              .execute(
-                  String.format(
-                      "CREATE TABLE %s STORED AS parquet AS SELECT %s, groupsize,"
-                          + "(groupsize * (pow(%f,2)*0.25 / pow(%f,2)) ) / "
-                          + "(groupsize + (pow(%f,2)*0.25 / pow(%f,2)) - 1) "
-                          + "as target_group_sample_size "
-                          + "FROM "
-                          + "(SELECT %s,"
-                          + "count(*) as groupsize from %s GROUP BY %s) t",
-                      statTableName,
-                      qcsCols,
-                      DatabaseTool.Z,
-                      DatabaseTool.E,
-                      DatabaseTool.Z,
-                      DatabaseTool.E,
-                      qcsCols,
-                      joinTableName,
-                      qcsCols));
+      final String joinTableName = this.getStatSourceTable(database, q, prejoins);
+      if (joinTableName.isEmpty()) {
+        return null;
+      }
+
+      long populationSize = 0;
+      long distinctCount = 0;
+      try {
+        final String countSql =
+            String.format(
+                "SELECT count(*), %s FROM %s",
+                dialect.countDistinct(q.getQueryColumnSet()), joinTableName);
+        System.err.println(String.format("Executing: %s", countSql));
+        final Statement stmt = this.conn.createStatement();
+        final ResultSet rs = stmt.executeQuery(countSql);
+        if (rs.next()) {
+          populationSize = rs.getLong(1);
+          distinctCount = rs.getLong(2);
         }
+        rs.close();
+        stmt.close();
+      } catch (final SQLException e) {
+        e.printStackTrace();
+        return null;
       }
 
-      if (stat == null) {
-        final ResultSet rs =
+      final long groupCount = Math.min(Math.max(distinctCount, 1), populationSize);
+      final long maxGroupSize = populationSize - groupCount + 1;
+      final double s0 = Math.pow(DatabaseTool.Z, 2) * 0.25 / Math.pow(DatabaseTool.E, 2);
+      double targetSampleSize = 0;
+      if (groupCount > 0) {
+        // a single row is its own target, and the large group is sampled to its target
+        targetSampleSize = (groupCount - 1) + (maxGroupSize * s0) / (maxGroupSize + s0 - 1);
+      }
+
+      final double avgGroupSize = (groupCount > 0) ? (double) populationSize / groupCount : 0;
+      final long minGroupSize = (groupCount > 0) ? 1 : 0;
+      String statTableName = getStatTableName(q.getId());
+
+      return new Stat(
+          database,
+          q,
+          statTableName,
+          populationSize,
+          targetSampleSize,
+          groupCount,
+          avgGroupSize,
+          minGroupSize,
+          groupCount > 0 ? maxGroupSize : 0);
+    } finally {
+      scope.close();
+    }
+  }
+
+  /**
+   * Counts the rows of a table and the distinct combinations of the columns of each of several
+   * column sets, with {@link SqlDialect#countDistinct} in a single scan.
+   *
+   * @return the row count, followed by the count of each column set
+   */
+  public long[] countDistinct(
+      final String table, final List<? extends Collection<String>> columnSets)
+      throws SQLException {
+    final List<String> items = new ArrayList<>();
+    items.add("count(*)");
+    for (final Collection<String> columns : columnSets) {
+      items.add(dialect.countDistinct(columns));
+    }
+    final String sql = String.format("SELECT %s FROM %s", Joiner.on(", ").join(items), table);
+    System.err.println(String.format("Executing: %s", sql));
+    final long[] counts = new long[items.size()];
+    final Statement stmt = this.conn.createStatement();
+    final ResultSet rs = stmt.executeQuery(sql);
+    if (rs.next()) {
+      for (int i = 0; i < counts.length; ++i) {
+        counts[i] = rs.getLong(i + 1);
+      }
+    }
+    rs.close();
+    stmt.close();
+    return counts;
+  }
+
+  public Stat getGroupCountAndSize(
+      final String database, final Query q, final List<Prejoin> prejoins) {
+    return this.getGroupCountAndSize(database, q, new PrejoinIndex(prejoins), null);
+  }
+
+  /**
+   * Same as {@link #getGroupCountAndSize(String, Query, List)}, but looks up the source prejoin in
+   * an index, and when the stat table of {@code parent} exists and the QCS of {@code q} is a subset
+   * of its QCS, the group sizes are obtained by re-aggregating that (much smaller) stat table
+   * instead of scanning the source table.
+   */
+  public Stat getGroupCountAndSize(
+      final String database, final Query q, final PrejoinIndex prejoins, final Query parent) {
+    Metrics.Scope scope = Metrics.enter(Metrics.STAT, q.getId(), null);
+    try {
+      long populationSize = 0;
+      long groupCount = 0;
+      double avgGroupSize = 0;
+      long maxGroupSize = 0;
+      long minGroupSize = 0;
+      double targetSampleSize = 0;
+      final String joinTableName = this.getStatSourceTable(database, q, prejoins);
+
+      if (joinTableName.isEmpty()) {
+        return null;
+      }
+
+      String statTableName = getStatTableName(q.getId());
+      Stat stat = this.meta.loadStat(database, statTableName);
+      final String qcsCols = Joiner.on(",").join(q.getQueryColumnSet());
+
+      if (stat != null && stat.getPopulationSize() == 0) {
+        stat = null;
+      }
+
+      try {
+        String groupSizeSource = joinTableName;
+        String groupSizeAgg = "count(*)";
+        if (parent != null) {
+          String parentStatTableName = getStatTableName(parent.getId());
+          if (parent.getQueryColumnSet().containsAll(q.getQueryColumnSet())
+              && this.checkTableExists(parentStatTableName)) {
+            groupSizeSource = parentStatTableName;
+            groupSizeAgg = "sum(groupsize)";
+          }
+        }
+
+        if (!this.checkTableExists(statTableName)) {
+          if (stat != null) {
             this.conn
                 .createStatement()
-                .executeQuery(
-                    String.format(
-                        "SELECT count(*) as group_count, sum(groupsize) as population_size, "
-                            + "sum(target_group_sample_size) as target_sample_size, "
-                            + "avg(groupsize) as avg_group_size,"
-                            + "min(groupsize) as min_group_size,"
-                            + "max(groupsize) as max_group_size "
-                            + "FROM %s",
-                        statTableName));
-
-        if (rs.next()) {
-          populationSize = rs.getLong("population_size");
-          targetSampleSize = rs.getDouble("target_sample_size");
-          groupCount = rs.getLong("group_count");
-          avgGroupSize = rs.getDouble("avg_group_size");
-          minGroupSize = rs.getLong("min_group_size");
-          maxGroupSize = rs.getLong("max_group_size");
+                .execute(
+                    dialect.createTableAs(
+                        statTableName, String.format("SELECT * FROM %s", stat.getTableName())));
+          } else {
+            this.conn
+                .createStatement()
+                .execute(
+                    dialect.createTableAs(
+                        statTableName,
+                        String.format(
+                            "SELECT %s, groupsize,"
+                                + "(groupsize * (power(%f,2)*0.25 / power(%f,2)) ) / "
+                                + "(groupsize + (power(%f,2)*0.25 / power(%f,2)) - 1) "
+                                + "as target_group_sample_size "
+                                + "FROM "
+                                + "(SELECT %s,"
+                                + "%s as groupsize from %s GROUP BY %s) t",
+                            qcsCols,
+                            DatabaseTool.Z,
+                            DatabaseTool.E,
+                            DatabaseTool.Z,
+                            DatabaseTool.E,
+                            qcsCols,
+                            groupSizeAgg,
+                            groupSizeSource,
+                            qcsCols)));
+          }
         }
 
-        stat =
-            new Stat(
-                database,
-                q,
-                statTableName,
-                populationSize,
-                targetSampleSize,
-                groupCount,
-                avgGroupSize,
-                minGroupSize,
-                maxGroupSize);
+        if (stat == null) {
+          final ResultSet rs =
+              this.conn
+                  .createStatement()
+                  .executeQuery(
+                      String.format(
+                          "SELECT count(*) as group_count, sum(groupsize) as population_size, "
+                              + "sum(target_group_sample_size) as target_sample_size, "
+                              + "avg(groupsize) as avg_group_size,"
+                              + "min(groupsize) as min_group_size,"
+                              + "max(groupsize) as max_group_size "
+                              + "FROM %s",
+                          statTableName));
+
+          if (rs.next()) {
+            populationSize = rs.getLong("population_size");
+            targetSampleSize = rs.getDouble("target_sample_size");
+            groupCount = rs.getLong("group_count");
+            avgGroupSize = rs.getDouble("avg_group_size");
+            minGroupSize = rs.getLong("min_group_size");
+            maxGroupSize = rs.getLong("max_group_size");
+          }
+
+          stat =
+              new Stat(
+                  database,
+                  q,
+                  statTableName,
+                  populationSize,
+                  targetSampleSize,
+                  groupCount,
+                  avgGroupSize,
+                  minGroupSize,
+                  maxGroupSize);
+        }
+      } catch (final SQLException e) {
+        e.printStackTrace();
       }
-    } catch (final SQLException e) {
-      e.printStackTrace();
-    }
 
-    Stat s = meta.loadStat(database, statTableName);
+      Stat s = meta.loadStat(database, statTableName);
 
-    if (s == null) {
-      this.meta.saveStat(database, statTableName, stat);
-    }
+      if (s == null) {
+        this.meta.saveStat(database, statTableName, stat);
+      }
 
-    return stat;
+      return stat;
+    } finally {
+      scope.close();
+    }
   }
 }
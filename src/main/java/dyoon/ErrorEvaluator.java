@@ -0,0 +1,166 @@
+package dyoon;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes the error of a sample query against the original query on the client.
+ *
+ * <p>The original result is streamed into a hash table keyed by the group-by columns, and the
+ * sample result is streamed and probed against it, so neither result has to be written to a table.
+ */
+public class ErrorEvaluator {
+
+  private static final String GROUPSIZE = "groupsize";
+  private static final int FETCH_SIZE = 10000;
+
+  private final List<String> groupByColumns;
+  private final List<String> aggColumns;
+  private final boolean scaleByGroupSize;
+
+  private final Map<String, double[]> originalGroups = new HashMap<>();
+  private long sampleGroupCount = 0;
+  private long matchedGroupCount = 0;
+  private final List<List<Double>> errors = new ArrayList<>();
+
+  /**
+   * @param groupByColumns columns that identify a group in both results
+   * @param aggColumns aggregate columns to compare
+   * @param scaleByGroupSize whether sample aggregates must be scaled by {@code o.groupsize /
+   *     s.groupsize}, i.e., the sample query is the original query run on the sample
+   */
+  public ErrorEvaluator(
+      List<String> groupByColumns, List<String> aggColumns, boolean scaleByGroupSize) {
+    this.groupByColumns = groupByColumns;
+    this.aggColumns = aggColumns;
+    this.scaleByGroupSize = scaleByGroupSize;
+    for (int i = 0; i < aggColumns.size(); ++i) {
+      errors.add(new ArrayList<Double>());
+    }
+  }
+
+  /** Streams the result of the original query into the hash table. */
+  public void readOriginal(Statement stmt, String sql) throws SQLException {
+    stmt.setFetchSize(FETCH_SIZE);
+    ResultSet rs = stmt.executeQuery(trim(sql));
+    while (rs.next()) {
+      originalGroups.put(getKey(rs), getValues(rs));
+    }
+    rs.close();
+    stmt.close();
+  }
+
+  /** Streams the result of the sample query and compares each group with the original one. */
+  public void readSample(Statement stmt, String sql) throws SQLException {
+    stmt.setFetchSize(FETCH_SIZE);
+    ResultSet rs = stmt.executeQuery(trim(sql));
+    int aggCount = aggColumns.size();
+    while (rs.next()) {
+      ++sampleGroupCount;
+      double[] orig = originalGroups.get(getKey(rs));
+      if (orig == null) {
+        continue;
+      }
+      ++matchedGroupCount;
+      double[] estimate = getValues(rs);
+      for (int i = 0; i < aggCount; ++i) {
+        double value = estimate[i];
+        if (scaleByGroupSize) {
+          value = value / estimate[aggCount] * orig[aggCount];
+        }
+        if (orig[i] != 0 && !Double.isNaN(orig[i]) && !Double.isNaN(value)) {
+          errors.get(i).add(Math.abs((value - orig[i]) / orig[i]));
+        }
+      }
+    }
+    rs.close();
+    stmt.close();
+  }
+
+  public TestResult getResult(
+      String queryId, String sample, double origTimeTaken, double sampleTimeTaken) {
+    long origGroupCount = originalGroups.size();
+    double missingGroupRatio =
+        (origGroupCount > 0)
+            ? (double) (origGroupCount - matchedGroupCount) / (double) origGroupCount
+            : 0;
+
+    TreeMap<String, TestResult.ColumnError> columnErrors = new TreeMap<>();
+    double sumAvgError = 0;
+    for (int i = 0; i < aggColumns.size(); ++i) {
+      List<Double> list = errors.get(i);
+      double[] sorted = new double[list.size()];
+      double sum = 0;
+      for (int j = 0; j < sorted.length; ++j) {
+        sorted[j] = list.get(j);
+        sum += sorted[j];
+      }
+      Arrays.sort(sorted);
+      double avg = (sorted.length > 0) ? sum / sorted.length : 0;
+      sumAvgError += avg;
+      columnErrors.put(
+          aggColumns.get(i),
+          new TestResult.ColumnError(
+              avg,
+              (sorted.length > 0) ? sorted[sorted.length - 1] : 0,
+              percentile(sorted, 0.5),
+              percentile(sorted, 0.9),
+              percentile(sorted, 0.99)));
+    }
+    double avgPercentError = aggColumns.isEmpty() ? 0 : sumAvgError / aggColumns.size();
+
+    TestResult result =
+        new TestResult(
+            queryId, sample, missingGroupRatio, avgPercentError, origTimeTaken, sampleTimeTaken);
+    result.setGroupCounts(origGroupCount, sampleGroupCount);
+    result.setColumnErrors(columnErrors);
+    return result;
+  }
+
+  private String getKey(ResultSet rs) throws SQLException {
+    Object[] key = new Object[groupByColumns.size()];
+    for (int i = 0; i < key.length; ++i) {
+      key[i] = rs.getObject(groupByColumns.get(i));
+    }
+    return StratifiedSampler.getKey(key);
+  }
+
+  /** @return aggregate values, followed by the group size if results are scaled */
+  private double[] getValues(ResultSet rs) throws SQLException {
+    int aggCount = aggColumns.size();
+    double[] values = new double[scaleByGroupSize ? aggCount + 1 : aggCount];
+    for (int i = 0; i < aggCount; ++i) {
+      values[i] = rs.getDouble(aggColumns.get(i));
+      if (rs.wasNull()) {
+        values[i] = Double.NaN;
+      }
+    }
+    if (scaleByGroupSize) {
+      values[aggCount] = rs.getDouble(GROUPSIZE);
+    }
+    return values;
+  }
+
+  static double percentile(double[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int idx = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+  }
+
+  private static String trim(String sql) {
+    String trimmed = sql.trim();
+    while (trimmed.endsWith(";")) {
+      trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+    }
+    return trimmed;
+  }
+}
@@ -0,0 +1,92 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SQL of the embedded H2 database. Names are kept in lower case as in Impala, and each database is
+ * a schema that is created on connect, so that {@code database.table} resolves as it does in
+ * Impala, and the column names the tool uses that are H2 keywords are allowed. H2 keeps no table
+ * statistics and has no partitions.
+ */
+public class H2Dialect extends SqlDialect {
+
+  @Override
+  public String getDriverClass() {
+    return "org.h2.Driver";
+  }
+
+  @Override
+  public String getConnectionString(String host, String database) {
+    return String.format(
+        "jdbc:h2:%s/%s;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=KEY,VALUE,ROWNUM;"
+            + "INIT=CREATE SCHEMA IF NOT EXISTS %s\\;SET SCHEMA %s",
+        host, database, database, database);
+  }
+
+  @Override
+  public String getStringType() {
+    return "varchar";
+  }
+
+  @Override
+  public boolean supportsPartitions() {
+    return false;
+  }
+
+  @Override
+  public String createTableAs(String table, String query) {
+    return String.format("CREATE TABLE %s AS %s", table, query);
+  }
+
+  @Override
+  public String createTableLike(String table, String source) {
+    return String.format(
+        "CREATE TABLE IF NOT EXISTS %s AS SELECT * FROM %s WHERE 1 = 0", table, source);
+  }
+
+  @Override
+  public List<String> insertOverwrite(String table, List<String> columns, String query) {
+    String columnList = (columns == null) ? "" : " (" + Joiner.on(",").join(columns) + ")";
+    return Arrays.asList(
+        String.format("DELETE FROM %s", table),
+        String.format("INSERT INTO %s%s %s", table, columnList, query));
+  }
+
+  @Override
+  public String computeStats(String table) {
+    return String.format("ANALYZE TABLE %s", table);
+  }
+
+  @Override
+  public String getTableStatsQuery(String table) {
+    return null;
+  }
+
+  @Override
+  public String describe(String table) {
+    return String.format("SHOW COLUMNS FROM %s", table);
+  }
+
+  @Override
+  public String addColumns(String table, String columnDefinitions) {
+    return String.format("ALTER TABLE %s ADD (%s)", table, columnDefinitions);
+  }
+
+  @Override
+  public String sortBy(String table, String columns) {
+    return null;
+  }
+
+  @Override
+  public String quotient(String dividend, String divisor) {
+    return String.format("CAST(TRUNCATE((%s) / (%s), 0) AS BIGINT)", dividend, divisor);
+  }
+
+  @Override
+  public String seededRandom() {
+    return "rand()";
+  }
+}
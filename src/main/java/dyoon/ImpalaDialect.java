@@ -0,0 +1,95 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/** SQL of Impala, with tables stored as parquet. */
+public class ImpalaDialect extends SqlDialect {
+
+  @Override
+  public String getDriverClass() {
+    return "com.cloudera.impala.jdbc41.Driver";
+  }
+
+  @Override
+  public String getConnectionString(String host, String database) {
+    return String.format("jdbc:impala://%s/%s", host, database);
+  }
+
+  @Override
+  public String getStringType() {
+    return "string";
+  }
+
+  @Override
+  public boolean supportsPartitions() {
+    return true;
+  }
+
+  @Override
+  public String createTableAs(String table, String query) {
+    return String.format("CREATE TABLE %s STORED AS parquet AS %s", table, query);
+  }
+
+  @Override
+  public String createTableLike(String table, String source) {
+    return String.format("CREATE TABLE IF NOT EXISTS %s LIKE %s STORED as parquet", table, source);
+  }
+
+  @Override
+  public String createStagingTableLike(String table, String source) {
+    // inserting small batches of values into a text table does not create a parquet file each
+    return String.format("CREATE TABLE %s LIKE %s STORED AS textfile", table, source);
+  }
+
+  @Override
+  public List<String> insertOverwrite(String table, List<String> columns, String query) {
+    String columnList = (columns == null) ? "" : " (" + Joiner.on(",").join(columns) + ")";
+    return Collections.singletonList(
+        String.format("INSERT OVERWRITE TABLE %s%s %s", table, columnList, query));
+  }
+
+  @Override
+  public String computeStats(String table) {
+    return String.format("COMPUTE STATS %s", table);
+  }
+
+  @Override
+  public String getTableStatsQuery(String table) {
+    return String.format("SHOW TABLE STATS %s", table);
+  }
+
+  @Override
+  public String describe(String table) {
+    return String.format("DESCRIBE %s", table);
+  }
+
+  @Override
+  public String addColumns(String table, String columnDefinitions) {
+    return String.format("ALTER TABLE %s ADD COLUMNS (%s)", table, columnDefinitions);
+  }
+
+  @Override
+  public String sortBy(String table, String columns) {
+    return String.format("ALTER TABLE %s SORT BY (%s)", table, columns);
+  }
+
+  @Override
+  public String quotient(String dividend, String divisor) {
+    return String.format("quotient(%s, %s)", dividend, divisor);
+  }
+
+  @Override
+  public String seededRandom() {
+    return "rand(unix_timestamp())";
+  }
+
+  /** Estimates the count with a HyperLogLog sketch, in one pass without a shuffle. */
+  @Override
+  public String countDistinct(Collection<String> columns) {
+    return String.format("ndv(%s)", this.combine(columns));
+  }
+}
@@ -0,0 +1,128 @@
+package dyoon;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures latencies of original and sample queries over repeated runs.
+ *
+ * <p>Each query is run cold, with the cache clear script before every run (only if a script is
+ * given), and warm, after a number of unmeasured warmup runs. The original query is measured once
+ * per mode and shared by all of its samples.
+ */
+public class LatencyBenchmark {
+
+  public static final String COLD = "cold";
+  public static final String WARM = "warm";
+
+  private final DatabaseTool tool;
+  private final int warmup;
+  private final int iterations;
+  private final String cacheClearScript;
+
+  /**
+   * @param warmup number of unmeasured runs before warm runs
+   * @param iterations number of measured runs per mode
+   * @param cacheClearScript script for clearing caches; cold runs are skipped if it is empty
+   */
+  public LatencyBenchmark(DatabaseTool tool, int warmup, int iterations, String cacheClearScript) {
+    this.tool = tool;
+    this.warmup = Math.max(0, warmup);
+    this.iterations = Math.max(1, iterations);
+    this.cacheClearScript = cacheClearScript;
+  }
+
+  public List<BenchmarkResult> run(Map<Query, List<Sample>> samplesByQuery) {
+    List<BenchmarkResult> results = new ArrayList<>();
+    List<String> modes = new ArrayList<>();
+    if (!cacheClearScript.isEmpty()) {
+      modes.add(COLD);
+    } else {
+      System.out.println("No script for clearing cache is given: only warm runs are measured.");
+    }
+    modes.add(WARM);
+
+    for (Map.Entry<Query, List<Sample>> entry : samplesByQuery.entrySet()) {
+      Query q = entry.getKey();
+      for (String mode : modes) {
+        BenchmarkResult.Latency original;
+        Metrics.Scope scope = Metrics.enter(Metrics.TEST, q.getId(), null);
+        try {
+          original = new BenchmarkResult.Latency(this.measure(tool.getOriginalQuery(q), mode));
+        } catch (SQLException e) {
+          e.printStackTrace();
+          continue;
+        } finally {
+          scope.close();
+        }
+        for (Sample s : entry.getValue()) {
+          Metrics.Scope sampleScope = Metrics.enter(Metrics.TEST, q.getId(), s.toString());
+          try {
+            tool.ensureSampleStats(s);
+            BenchmarkResult.Latency sampled =
+                new BenchmarkResult.Latency(this.measure(tool.getSampleQuery(s, q), mode));
+            BenchmarkResult result =
+                new BenchmarkResult(q.getId(), s.toString(), mode, iterations, original, sampled);
+            System.out.println(
+                String.format(
+                    "q%s with sample %s (%s): original p50 = %.4f s, sample p50 = %.4f s, "
+                        + "speedup = %.2fx",
+                    q.getId(),
+                    s.toString(),
+                    mode,
+                    original.getP50() / 1000,
+                    sampled.getP50() / 1000,
+                    result.getSpeedup()));
+            results.add(result);
+          } catch (SQLException e) {
+            e.printStackTrace();
+          } finally {
+            sampleScope.close();
+          }
+        }
+      }
+    }
+    return results;
+  }
+
+  private double[] measure(String sql, String mode) throws SQLException {
+    boolean cold = mode.equals(COLD);
+    if (!cold) {
+      for (int i = 0; i < warmup; ++i) {
+        tool.timeQuery(sql, "");
+      }
+    }
+    double[] times = new double[iterations];
+    for (int i = 0; i < iterations; ++i) {
+      times[i] = tool.timeQuery(sql, cold ? cacheClearScript : "");
+    }
+    return times;
+  }
+
+  /** Writes the results to {@code <prefix>.csv} and {@code <prefix>.json}. */
+  public static void writeResults(List<BenchmarkResult> results, String prefix) {
+    String csvPath = prefix + ".csv";
+    String jsonPath = prefix + ".json";
+    try (PrintWriter writer = new PrintWriter(new File(csvPath))) {
+      writer.println(BenchmarkResult.CSV_HEADER);
+      for (BenchmarkResult result : results) {
+        writer.println(result.toCsvRow());
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    try {
+      new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(jsonPath), results);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    System.out.println(String.format("Benchmark results written to %s and %s", csvPath, jsonPath));
+  }
+}
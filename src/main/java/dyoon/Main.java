@@ -2,6 +2,7 @@ package dyoon;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
+import com.google.common.base.Stopwatch;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -11,13 +12,19 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /** Created by Dong Young Yoon on 10/9/18. */
 public class Main {
@@ -27,8 +34,6 @@ public class Main {
 
   private static final long UNIFORM_THRESHOLD = 100000;
   private static final double MIN_IO_REDUCTION_RATIO = (2.0 / 3.0);
-  private static final double Z = 2.576; // 99% CI
-  private static final double E = 0.01; // 1% error
   private static List<Query> queries = new ArrayList<>();
 
   public static void main(String[] argv) {
@@ -53,12 +58,24 @@ public class Main {
 
     Connection conn = null;
     DatabaseTool tool = null;
+    SqlDialect dialect;
+    try {
+      dialect = SqlDialect.forBackend(args.getBackend());
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      return;
+    }
+    String connectionStr = dialect.getConnectionString(host, database);
 
     try {
-      Class.forName("com.cloudera.impala.jdbc41.Driver");
-      String connectionStr = String.format("jdbc:impala://%s/%s", host, database);
-      conn = DriverManager.getConnection(connectionStr, "", "");
-      tool = new DatabaseTool(conn);
+      Class.forName(dialect.getDriverClass());
+      // connections are only instrumented when metrics are exported
+      Metrics.setOutputDirectory(args.getMetricsDir());
+      conn = Metrics.instrument(DriverManager.getConnection(connectionStr, "", ""));
+      tool = newTool(conn, args);
+      Meta meta = Meta.getInstance(conn);
+      meta.setWriteBatching(args.getMetaBatchSize(), args.getMetaFlushInterval());
+      meta.setCompactionRatio(args.getMetaCompactionRatio());
     } catch (ClassNotFoundException | SQLException e) {
       e.printStackTrace();
       return;
@@ -92,6 +109,30 @@ public class Main {
         System.err.println("Unsupported sample type: " + type);
       }
       System.exit(0);
+    } else if (args.isGenerate()) {
+      // tables of both workloads, so either can run on the generated data
+      setQueries();
+      setQueriesWithoutPrejoin();
+      DataGenerator generator =
+          new DataGenerator(
+              queries,
+              args.getGenerateRows(),
+              args.getGenerateDimensionRows(),
+              args.getGenerateCardinality(),
+              args.getGenerateSkew(),
+              args.getGenerateSeed());
+      generator.setParallelism(args.getParallelism());
+      try {
+        if (args.getGenerateOutput().isEmpty()) {
+          generator.writeTo(connectionStr, database, dialect);
+        } else {
+          generator.writeCsv(args.getGenerateOutput());
+        }
+      } catch (IOException | SQLException e) {
+        e.printStackTrace();
+        System.exit(-1);
+      }
+      System.exit(0);
     }
 
     if (args.isPrejoin()) {
@@ -120,11 +161,13 @@ public class Main {
     if (args.isTestAllSamples()) {
       Meta m = Meta.getInstance(conn);
       List<Sample> samples = m.getSamples();
+      Map<Query, List<Sample>> samplesByQuery = new LinkedHashMap<>();
       for (Sample sample : samples) {
         Query queryForSample = sample.getQuery();
         Query actualQuery = null;
         for (Query q : queries) {
-          if (q.getId().equals(queryForSample.getId())) {
+          if (q.getId().equals(queryForSample.getId())
+              || (q.getId() + Query.FOREIGN_KEY_SUFFIX).equals(queryForSample.getId())) {
             actualQuery = q;
             break;
           }
@@ -133,13 +176,51 @@ public class Main {
         if (actualQuery == null) {
           System.out.println("Query for sample not found: " + queryForSample.getId());
         } else {
-          try {
-            tool.testSample(sample, actualQuery, args.isMeasureTime(), args.getClearCacheScript());
-          } catch (SQLException e) {
-            e.printStackTrace();
+          List<Sample> list = samplesByQuery.get(actualQuery);
+          if (list == null) {
+            list = new ArrayList<>();
+            samplesByQuery.put(actualQuery, list);
           }
+          list.add(sample);
         }
       }
+      testSamples(tool, connectionStr, samplesByQuery, args);
+      System.exit(0);
+    } else if (args.isSelectSample()) {
+      if (args.getErrorBound() <= 0 && args.getTimeBudget() <= 0) {
+        System.out.println("--error-bound or --time-budget is required to select samples.");
+        System.exit(-1);
+      }
+      List<String> queryIds = Arrays.asList(args.getTestQueries().split(","));
+      SampleSelector selector = new SampleSelector(conn, tool);
+      selector.setScanRate(args.getScanRate());
+      Map<Query, List<Sample>> samplesByQuery = new LinkedHashMap<>();
+      for (Query q : queries) {
+        if (!args.getTestQueries().isEmpty() && !queryIds.contains(q.getId())) {
+          continue;
+        }
+        SampleSelector.Candidate c = null;
+        try {
+          c = selector.select(database, q, args.getErrorBound(), args.getTimeBudget());
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+        if (c == null) {
+          System.out.println("No sample satisfies the constraints for q" + q.getId());
+          continue;
+        }
+        System.out.println(
+            String.format(
+                "Selected %s for q%s (rows = %d, predicted error = %.4f %%, "
+                    + "predicted time = %.4f s)",
+                c.getSample().toString(),
+                q.getId(),
+                c.getRowCount(),
+                c.getPredictedError() * 100,
+                c.getPredictedMillis() / 1000));
+        samplesByQuery.put(q, Arrays.asList(c.getSample()));
+      }
+      testSamples(tool, connectionStr, samplesByQuery, args);
       System.exit(0);
     } else if (!args.getTestSample().isEmpty()) {
       String sampleName = args.getTestSample();
@@ -165,133 +246,114 @@ public class Main {
         }
       }
 
+      Map<Query, List<Sample>> samplesByQuery = new LinkedHashMap<>();
       for (Query q : queryToTest) {
-        try {
-          tool.testSample(sampleToTest, q, args.isMeasureTime(), args.getClearCacheScript());
-        } catch (SQLException e) {
-          e.printStackTrace();
-        }
+        samplesByQuery.put(q, Arrays.asList(sampleToTest));
       }
+      testSamples(tool, connectionStr, samplesByQuery, args);
       System.exit(0);
     }
 
     try {
       Meta meta = Meta.getInstance(conn);
       List<Prejoin> prejoinList = meta.getPrejoins(database);
-      PriorityQueue<Prejoin> prejoinQueue = new PriorityQueue<>(100, new PrejoinSizeComparator());
+      PrejoinIndex prejoinIndex = new PrejoinIndex(prejoinList);
 
+      // queries with joins are planned on their fact table alone when sampling before joining
+      List<Query> planQueries = queries;
+      Map<Query, Query> originalQueries = new HashMap<>();
+      if (args.isSampleThenJoin()) {
+        planQueries = new ArrayList<>();
+        for (Query q : queries) {
+          Query fkQuery = tool.getForeignKeyQuery(q);
+          if (fkQuery != null) {
+            planQueries.add(fkQuery);
+            originalQueries.put(fkQuery, q);
+          } else {
+            planQueries.add(q);
+          }
+        }
+      }
+
+      List<Prejoin> existingPrejoins = new ArrayList<>();
       for (Prejoin prejoin : prejoinList) {
         if (!tool.checkTableExists(prejoin)) {
           meta.removePrejoin(prejoin);
+        } else {
+          existingPrejoins.add(prejoin);
         }
       }
 
-      for (Query q : queries) {
-        if (q.getJoinedTables().size() > 1) {
-          Prejoin p = new Prejoin(database, q.getFactTable());
-          for (String table : q.getJoinedTables()) {
-            p.addTable(table);
-          }
-          for (ColumnPair pair : q.getJoinColumns()) {
-            p.addJoinColumnPair(pair.getLeft(), pair.getRight());
-          }
-          prejoinQueue.add(p);
-        }
+      PrejoinPlanner prejoinPlanner = new PrejoinPlanner(tool);
+      prejoinPlanner.setMergeThreshold(args.getPrejoinMergeThreshold());
+      prejoinPlanner.setScanRatio(args.getPrejoinScanRatio());
+      Map<Prejoin, Prejoin> prejoinPlan =
+          prejoinPlanner.plan(database, planQueries, existingPrejoins);
+      if (args.isPipeline()) {
+        runPipeline(
+            connectionStr, tool, planQueries, originalQueries, prejoinPlan, prejoinIndex, args);
+        System.exit(0);
       }
-
-      while (!prejoinQueue.isEmpty()) {
-        Prejoin p = prejoinQueue.poll();
-        boolean exists = false;
-        for (Prejoin availablePrejoin : prejoinList) {
-          if (availablePrejoin.contains(p)) {
-            exists = true;
-            break;
-          }
-        }
-
-        if (!exists) {
-          tool.createPrejoinTable(p);
-          meta.addPrejoin(p);
-          prejoinList.add(p);
-        }
+      for (Map.Entry<Prejoin, Prejoin> entry : prejoinPlan.entrySet()) {
+        Prejoin p = entry.getKey();
+        tool.createPrejoinTable(p, entry.getValue());
+        meta.addPrejoin(p);
+        prejoinList.add(p);
+        prejoinIndex.add(p);
       }
 
       List<Sample> samplesToCreate = new ArrayList<>();
 
-      for (Query q : queries) {
+      Map<Query, Stat> statsByQuery = new LinkedHashMap<>();
+      Map<Query, Query> statParents = new HashMap<>();
+      List<Query> statQueries = planQueries;
+      if (args.isRollupStats()) {
+        statParents = new StatPlanner(tool).plan(database, planQueries, prejoinIndex);
+        statQueries = new ArrayList<>(statParents.keySet());
+      }
+
+      for (Query q : statQueries) {
         if (q.getQueryColumnSet().isEmpty()) {
           // if QCS is empty, skip.
           continue;
         }
-        Stat groupCountAndSize = tool.getGroupCountAndSize(database, q, prejoinList);
+        Stat groupCountAndSize = computeStat(tool, q, prejoinIndex, statParents.get(q), args);
         if (groupCountAndSize == null) {
           System.out.println("Something wrong: stat null. Exiting.");
           System.exit(-1);
         }
-        long populationSize = groupCountAndSize.getPopulationSize();
-        double targetSampleSize = groupCountAndSize.getTargetSampleSize();
-        long groupCount = groupCountAndSize.getGroupCount();
-        double avgGroupSize = groupCountAndSize.getAvgGroupSize();
-        long minGroupSize = groupCountAndSize.getMinGroupSize();
-        long maxGroupSize = groupCountAndSize.getMaxGroupSize();
-        //        double sampleSize = getSampleSize((double) maxGroupSize, Z, E);
-        System.out.println(
-            String.format(
-                "For query %s (population = %d, target sample size = %.3f, "
-                    + "group count = %d, avg group size = %.3f, min group size = %d, "
-                    + "max group size = %d:",
-                q.getId(),
-                populationSize,
-                targetSampleSize,
-                groupCount,
-                avgGroupSize,
-                minGroupSize,
-                maxGroupSize));
-        System.out.print("\t");
-        if (avgGroupSize > UNIFORM_THRESHOLD) {
-          double ratio = UNIFORM_THRESHOLD / (double) avgGroupSize;
-          if (ratio <= MIN_IO_REDUCTION_RATIO) {
-            System.out.println(
-                String.format(
-                    "Create %f %% uniform sample on %s.",
-                    (UNIFORM_THRESHOLD / avgGroupSize) * 100, q.getFactTable()));
-            Sample s =
-                new Sample(
-                    q,
-                    Sample.Type.UNIFORM,
-                    q.getFactTable(),
-                    q.getJoinedTables(),
-                    q.getQueryColumnSet());
-            s.setRatio(ratio);
-            samplesToCreate.add(s);
-          }
-        } else {
-          double ratio = targetSampleSize / (double) populationSize;
-          if (ratio <= MIN_IO_REDUCTION_RATIO) {
-            System.out.println(
-                String.format(
-                    "Create stratified sample on %s with (%s) for estimated sample size of %.2f %%.",
-                    q.getFactTable(), q.getQCSString(), ratio * 100));
-            Sample s =
-                new Sample(
-                    q,
-                    Sample.Type.STRATIFIED,
-                    q.getFactTable(),
-                    q.getJoinedTables(),
-                    q.getQueryColumnSet());
-            s.setE(E);
-            s.setZ(Z);
-            samplesToCreate.add(s);
-          } else {
-            System.out.println(String.format("No viable samples (ratio = %.2f %%).", ratio * 100));
-          }
+        statsByQuery.put(q, groupCountAndSize);
+        Sample s = planSample(q, groupCountAndSize, args);
+        if (s != null) {
+          samplesToCreate.add(s);
+        }
+      }
+
+      if (args.getStorageBudget() > 0) {
+        samplesToCreate =
+            new SampleSetOptimizer(tool)
+                .optimize(
+                    database,
+                    statsByQuery,
+                    samplesToCreate,
+                    prejoinIndex,
+                    args.getStorageBudget() * 1024 * 1024);
+      }
+
+      for (Sample s : samplesToCreate) {
+        if (originalQueries.containsKey(s.getQuery())) {
+          s.addQuery(originalQueries.get(s.getQuery()));
         }
       }
 
       // create samples
       if (args.isCreate()) {
-        for (Sample sample : samplesToCreate) {
-          tool.createSample(database, sample, args.isOverwrite());
+        if (args.isSharedScan()) {
+          tool.createSamples(database, samplesToCreate, args.isOverwrite());
+        } else {
+          for (Sample sample : samplesToCreate) {
+            tool.createSample(database, sample, args.isOverwrite());
+          }
         }
       }
 
@@ -302,6 +364,210 @@ public class Main {
     System.exit(0);
   }
 
+  private static void testSamples(
+      DatabaseTool tool,
+      String connectionStr,
+      Map<Query, List<Sample>> samplesByQuery,
+      Args args) {
+    if (args.isInMemory()) {
+      if (!answerInMemory(tool, samplesByQuery, args)) {
+        System.out.println("In-memory results differ from the sample queries. Exiting.");
+        System.exit(-1);
+      }
+      return;
+    }
+
+    if (args.isBenchmark()) {
+      // benchmarks always run one query at a time so that runs do not affect each other
+      LatencyBenchmark benchmark =
+          new LatencyBenchmark(
+              tool, args.getWarmup(), args.getIterations(), args.getClearCacheScript());
+      LatencyBenchmark.writeResults(benchmark.run(samplesByQuery), args.getBenchmarkOutput());
+      return;
+    }
+
+    List<TestResult> results = new ArrayList<>();
+    if (args.getParallelism() > 1) {
+      if (args.isMeasureTime()) {
+        System.out.println("Warning: times measured by concurrent tests affect each other.");
+      }
+      ConnectionPool pool;
+      try {
+        pool = new ConnectionPool(connectionStr, args.getParallelism());
+      } catch (SQLException e) {
+        e.printStackTrace();
+        return;
+      }
+      SampleEvaluator evaluator = new SampleEvaluator(pool, args.getStatementTimeout());
+      evaluator.setStreamingEvaluation(args.isStreamingEvaluation());
+      evaluator.setResultCache(args.isResultCache());
+      evaluator.setRewriteSampleQueries(args.isRewriteSampleQueries());
+      results =
+          evaluator.evaluate(samplesByQuery, args.isMeasureTime(), args.getClearCacheScript());
+      pool.close();
+    } else {
+      for (Map.Entry<Query, List<Sample>> entry : samplesByQuery.entrySet()) {
+        for (Sample s : entry.getValue()) {
+          try {
+            TestResult result =
+                tool.testSample(
+                    s, entry.getKey(), args.isMeasureTime(), args.getClearCacheScript());
+            if (result != null) {
+              results.add(result);
+            }
+          } catch (SQLException e) {
+            e.printStackTrace();
+            results.add(TestResult.failed(entry.getKey().getId(), s.toString(), e.getMessage()));
+          }
+        }
+      }
+    }
+
+    if (!args.getEvalReport().isEmpty()) {
+      SampleEvaluator.writeReport(results, args.getEvalReport());
+    }
+  }
+
+  /**
+   * Answers each query with each of its samples in the JVM, and compares the time and the result
+   * with those of the sample query on the database.
+   *
+   * @return whether every in-memory result matched that of the sample query
+   */
+  private static boolean answerInMemory(
+      DatabaseTool tool, Map<Query, List<Sample>> samplesByQuery, Args args) {
+    ColumnarSampleCache cache =
+        new ColumnarSampleCache(tool, (long) (args.getInMemoryCacheSize() * 1024 * 1024));
+    boolean matched = true;
+    for (Map.Entry<Query, List<Sample>> entry : samplesByQuery.entrySet()) {
+      Query q = entry.getKey();
+      for (Sample s : entry.getValue()) {
+        Metrics.Scope scope = Metrics.enter(Metrics.TEST, q.getId(), s.toString());
+        try {
+          Stopwatch watch = Stopwatch.createStarted();
+          cache.load(s, q);
+          long loadMillis = watch.elapsed(TimeUnit.MILLISECONDS);
+          watch.reset().start();
+          VectorizedAggregator.Result result = cache.execute(s, q);
+          double millis = watch.elapsed(TimeUnit.MICROSECONDS) / 1000.0;
+          tool.ensureSampleStats(s);
+          double sqlMillis = tool.timeQuery(tool.getSampleQuery(s, q), "");
+          String mismatch = null;
+          if (tool.hasScaledSampleQuery(s, q)) {
+            mismatch = findInMemoryMismatch(tool, s, q, result);
+          } else {
+            System.out.println(
+                String.format("q%s with sample %s: sample query is not scaled", q.getId(), s));
+          }
+          System.out.println(
+              String.format(
+                  "q%s with sample %s in memory: %d group(s) from %d of %d rows in %.2f ms "
+                      + "(load %d ms), sample query %.2f ms, %s",
+                  q.getId(),
+                  s.toString(),
+                  result.getGroupCount(),
+                  result.getRowsSelected(),
+                  result.getRowsScanned(),
+                  millis,
+                  loadMillis,
+                  sqlMillis,
+                  mismatch == null ? "results match" : "MISMATCH: " + mismatch));
+          if (mismatch != null) {
+            matched = false;
+          }
+        } catch (SqlRewriteException e) {
+          System.out.println(
+              String.format(
+                  "Cannot answer q%s in memory with %s: %s",
+                  q.getId(), s.toString(), e.getMessage()));
+        } catch (SQLException e) {
+          e.printStackTrace();
+        } finally {
+          scope.close();
+        }
+      }
+    }
+    return matched;
+  }
+
+  /**
+   * Runs the sample query on the database and looks up each of its groups in the in-memory result,
+   * where each aggregate of the SELECT list must equal its in-memory estimate for the group. An
+   * aggregate is read by its alias, or by its position if it has none.
+   *
+   * @return a description of the first difference, or null if the results match
+   */
+  private static String findInMemoryMismatch(
+      DatabaseTool tool, Sample s, Query q, VectorizedAggregator.Result result)
+      throws SQLException {
+    Map<String, Integer> groups = new HashMap<>();
+    for (int group = 0; group < result.getGroupCount(); ++group) {
+      groups.put(StratifiedSampler.getKey(result.getKey(group).toArray()), group);
+    }
+    List<String> groupBy = result.getGroupBy();
+    List<VectorizedAggregator.Aggregate> aggregates = result.getAggregates();
+
+    int rowCount = 0;
+    Statement stmt = tool.getConnection().createStatement();
+    ResultSet rs = stmt.executeQuery(tool.getSampleQuery(s, q));
+    try {
+      while (rs.next()) {
+        ++rowCount;
+        Object[] key = new Object[groupBy.size()];
+        for (int i = 0; i < key.length; ++i) {
+          key[i] = rs.getObject(groupBy.get(i));
+        }
+        String k = StratifiedSampler.getKey(key);
+        Integer group = groups.get(k);
+        if (group == null) {
+          return String.format("group %s is not in memory", k);
+        }
+        for (int i = 0; i < aggregates.size(); ++i) {
+          VectorizedAggregator.Aggregate aggregate = aggregates.get(i);
+          double value =
+              aggregate.getAlias() != null
+                  ? rs.getDouble(aggregate.getAlias())
+                  : rs.getDouble(aggregate.getPosition() + 1);
+          if (rs.wasNull()) {
+            continue;
+          }
+          if (!isClose(value, result.getValue(group, i))) {
+            return String.format(
+                "%s of group %s is %.6f on the database and %.6f in memory",
+                aggregate.getAlias() != null ? aggregate.getAlias() : aggregate.toString(),
+                k,
+                value,
+                result.getValue(group, i));
+          }
+        }
+      }
+    } finally {
+      rs.close();
+      stmt.close();
+    }
+    // a LIMIT keeps only some of the groups on the database
+    boolean limited = q.getQuery().toLowerCase().matches("(?s).*\\blimit\\s+\\d+[\\s;]*");
+    if (rowCount != result.getGroupCount() && !limited) {
+      return String.format(
+          "%d group(s) in memory, %d on the database", result.getGroupCount(), rowCount);
+    }
+    return null;
+  }
+
+  private static boolean isClose(double a, double b) {
+    return Math.abs(a - b) <= 1e-6 * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+  }
+
+  private static List<Double> getNestedResolutions(Args args) {
+    List<Double> resolutions = new ArrayList<>();
+    if (!args.getNestedResolutions().isEmpty()) {
+      for (String e : args.getNestedResolutions().replaceAll("\\s", "").split(",")) {
+        resolutions.add(Double.parseDouble(e));
+      }
+    }
+    return resolutions;
+  }
+
   private static void loadPrejoinFile(DatabaseTool tool, String loadPrejoinFile)
       throws IOException, SQLException {
     File file = new File(loadPrejoinFile);
@@ -333,12 +599,400 @@ public class Main {
     }
   }
 
+  /**
+   * Creates the planned prejoins, the stats of the queries and their samples as a DAG of tasks that
+   * run concurrently as soon as what they read exists: a stat waits only for the prejoin it scans
+   * (and the stat it is rolled up from), and a sample only for the stat of its query. With a
+   * storage budget, samples wait for all stats to be chosen together; with shared scans, the
+   * samples of a fact table wait for all stats on it. When an evaluation report is requested, each
+   * sample is then tested with its queries.
+   */
+  private static void runPipeline(
+      String connectionStr,
+      DatabaseTool tool,
+      List<Query> planQueries,
+      final Map<Query, Query> originalQueries,
+      Map<Prejoin, Prejoin> prejoinPlan,
+      final PrejoinIndex prejoinIndex,
+      final Args args)
+      throws SQLException {
+    final Meta meta = Meta.getInstance(tool.getConnection());
+    ConnectionPool pool = new ConnectionPool(connectionStr, args.getPipelineConcurrency());
+    final PipelineScheduler scheduler = new PipelineScheduler(pool);
+    final List<TestResult> results = Collections.synchronizedList(new ArrayList<TestResult>());
+    // the last test of each query, as the tests of a query write the same tables
+    final Map<String, PipelineScheduler.Node> lastTests = new HashMap<>();
+    if (args.isMeasureTime() && !args.getEvalReport().isEmpty()) {
+      System.out.println("Warning: times measured by concurrent tests affect each other.");
+    }
+
+    // planned prejoins are indexed before they exist so that stats find their source table
+    Map<Prejoin, PipelineScheduler.Node> prejoinNodes = new HashMap<>();
+    for (Map.Entry<Prejoin, Prejoin> entry : prejoinPlan.entrySet()) {
+      final Prejoin p = entry.getKey();
+      final Prejoin source = entry.getValue();
+      PipelineScheduler.Node node =
+          scheduler.add(
+              "prejoin " + p.getName(),
+              Metrics.PREJOIN,
+              new PipelineScheduler.Task() {
+                @Override
+                public void run(Connection conn) throws Exception {
+                  DatabaseTool tool = newTool(conn, args);
+                  tool.createPrejoinTable(p, source);
+                  if (!tool.checkTableExists(p)) {
+                    throw new SQLException("Prejoin was not created: " + p.getName());
+                  }
+                  meta.addPrejoin(p);
+                }
+              },
+              prejoinNodes.get(source));
+      prejoinNodes.put(p, node);
+      prejoinIndex.add(p);
+    }
+
+    Map<Query, Query> statParents = new HashMap<>();
+    List<Query> candidates = planQueries;
+    if (args.isRollupStats()) {
+      statParents = new StatPlanner(tool).plan(database, planQueries, prejoinIndex);
+      candidates = new ArrayList<>(statParents.keySet());
+    }
+    final List<Query> statQueries = new ArrayList<>();
+    for (Query q : candidates) {
+      // if QCS is empty, skip.
+      if (!q.getQueryColumnSet().isEmpty()) {
+        statQueries.add(q);
+      }
+    }
+    final Map<Query, Stat> statsByQuery = Collections.synchronizedMap(new HashMap<Query, Stat>());
+    final Map<Query, Sample> samplesByQuery =
+        Collections.synchronizedMap(new HashMap<Query, Sample>());
+    final boolean deferSamples = args.getStorageBudget() > 0 || args.isSharedScan();
+    Map<Query, PipelineScheduler.Node> statNodes = new HashMap<>();
+    for (final Query q : statQueries) {
+      final Query parent = statParents.get(q);
+      Prejoin source =
+          q.getJoinedTables().size() == 1 ? null : prejoinIndex.findSmallestCovering(database, q);
+      PipelineScheduler.Node node =
+          scheduler.add(
+              "stat q" + q.getId(),
+              Metrics.STAT,
+              new PipelineScheduler.Task() {
+                @Override
+                public void run(Connection conn) throws Exception {
+                  Stat stat = computeStat(newTool(conn, args), q, prejoinIndex, parent, args);
+                  if (stat == null) {
+                    throw new SQLException("No stat for query " + q.getId());
+                  }
+                  statsByQuery.put(q, stat);
+                  Sample s = planSample(q, stat, args);
+                  if (s != null) {
+                    samplesByQuery.put(q, s);
+                    if (args.isCreate() && !deferSamples) {
+                      addSampleNodes(
+                          scheduler, Arrays.asList(s), originalQueries, results, lastTests, args);
+                    }
+                  }
+                }
+              },
+              prejoinNodes.get(source),
+              statNodes.get(parent));
+      statNodes.put(q, node);
+    }
+
+    if (args.isCreate() && args.getStorageBudget() > 0) {
+      scheduler.add(
+          "sample set optimization",
+          Metrics.SAMPLE,
+          new PipelineScheduler.Task() {
+            @Override
+            public void run(Connection conn) throws Exception {
+              // in the order of the queries, as the sequential plan
+              Map<Query, Stat> stats = new LinkedHashMap<>();
+              List<Sample> samples = new ArrayList<>();
+              for (Query q : statQueries) {
+                stats.put(q, statsByQuery.get(q));
+                if (samplesByQuery.containsKey(q)) {
+                  samples.add(samplesByQuery.get(q));
+                }
+              }
+              samples =
+                  new SampleSetOptimizer(newTool(conn, args))
+                      .optimize(
+                          database,
+                          stats,
+                          samples,
+                          prejoinIndex,
+                          args.getStorageBudget() * 1024 * 1024);
+              addSampleNodes(scheduler, samples, originalQueries, results, lastTests, args);
+            }
+          },
+          statNodes.values().toArray(new PipelineScheduler.Node[0]));
+    } else if (args.isCreate() && args.isSharedScan()) {
+      Map<String, List<Query>> queriesByFactTable = new LinkedHashMap<>();
+      Map<String, List<PipelineScheduler.Node>> nodesByFactTable = new HashMap<>();
+      for (Query q : statQueries) {
+        String factTable = q.getFactTable();
+        if (!queriesByFactTable.containsKey(factTable)) {
+          queriesByFactTable.put(factTable, new ArrayList<Query>());
+          nodesByFactTable.put(factTable, new ArrayList<PipelineScheduler.Node>());
+        }
+        queriesByFactTable.get(factTable).add(q);
+        nodesByFactTable.get(factTable).add(statNodes.get(q));
+      }
+      for (Map.Entry<String, List<Query>> entry : queriesByFactTable.entrySet()) {
+        final List<Query> factTableQueries = entry.getValue();
+        scheduler.add(
+            "samples of " + entry.getKey(),
+            Metrics.SAMPLE,
+            new PipelineScheduler.Task() {
+              @Override
+              public void run(Connection conn) {
+                List<Sample> samples = new ArrayList<>();
+                for (Query q : factTableQueries) {
+                  if (samplesByQuery.containsKey(q)) {
+                    samples.add(samplesByQuery.get(q));
+                  }
+                }
+                addSampleNodes(
+                    scheduler, samples, originalQueries, results, lastTests, args);
+              }
+            },
+            nodesByFactTable.get(entry.getKey()).toArray(new PipelineScheduler.Node[0]));
+      }
+    }
+
+    scheduler.run();
+    pool.close();
+    if (!args.getEvalReport().isEmpty()) {
+      SampleEvaluator.writeReport(new ArrayList<>(results), args.getEvalReport());
+    }
+  }
+
+  /**
+   * Adds tasks that create samples, one per sample or, with shared scans, one for all of them,
+   * each followed by tests of its samples when an evaluation report is requested. The tests of a
+   * query run one after another, in the order they are added, as they write the same tables.
+   */
+  private static void addSampleNodes(
+      final PipelineScheduler scheduler,
+      final List<Sample> samples,
+      Map<Query, Query> originalQueries,
+      final List<TestResult> results,
+      Map<String, PipelineScheduler.Node> lastTests,
+      final Args args) {
+    if (samples.isEmpty()) {
+      return;
+    }
+    for (Sample s : samples) {
+      if (originalQueries.containsKey(s.getQuery())) {
+        s.addQuery(originalQueries.get(s.getQuery()));
+      }
+    }
+
+    List<PipelineScheduler.Node> nodes = new ArrayList<>();
+    if (args.isSharedScan()) {
+      nodes.add(
+          scheduler.add(
+              String.format("%d sample(s) with shared scans", samples.size()),
+              Metrics.SAMPLE,
+              new PipelineScheduler.Task() {
+                @Override
+                public void run(Connection conn) throws Exception {
+                  newTool(conn, args).createSamples(database, samples, args.isOverwrite());
+                }
+              }));
+    } else {
+      for (final Sample s : samples) {
+        nodes.add(
+            scheduler.add(
+                "sample " + s.toString(),
+                Metrics.SAMPLE,
+                new PipelineScheduler.Task() {
+                  @Override
+                  public void run(Connection conn) throws Exception {
+                    DatabaseTool tool = newTool(conn, args);
+                    tool.createSample(database, s, args.isOverwrite());
+                    if (!tool.checkTableExists(s.toString())) {
+                      throw new SQLException("Sample was not created: " + s.toString());
+                    }
+                  }
+                }));
+      }
+    }
+
+    if (args.getEvalReport().isEmpty()) {
+      return;
+    }
+    for (int i = 0; i < samples.size(); ++i) {
+      final Sample s = samples.get(i);
+      PipelineScheduler.Node sampleNode = nodes.get(args.isSharedScan() ? 0 : i);
+      for (final Query q : s.getQueryList()) {
+        if (!queries.contains(q)) {
+          // a query on the fact table alone, planned for another query
+          continue;
+        }
+        PipelineScheduler.Node testNode;
+        synchronized (lastTests) {
+          testNode =
+              scheduler.addAfter(
+                  lastTests.get(q.getId()),
+                  "test q" + q.getId() + " on " + s.toString(),
+                  Metrics.TEST,
+                  new PipelineScheduler.Task() {
+                    @Override
+                    public void run(Connection conn) throws Exception {
+                      try {
+                        TestResult result =
+                            newTool(conn, args)
+                                .testSample(
+                                    s, q, args.isMeasureTime(), args.getClearCacheScript());
+                        if (result != null) {
+                          results.add(result);
+                        }
+                      } catch (SQLException e) {
+                        results.add(TestResult.failed(q.getId(), s.toString(), e.getMessage()));
+                        throw e;
+                      }
+                    }
+                  },
+                  sampleNode);
+          lastTests.put(q.getId(), testNode);
+        }
+      }
+    }
+  }
+
+  private static DatabaseTool newTool(Connection conn, Args args) {
+    DatabaseTool tool = new DatabaseTool(conn);
+    tool.setStreamingSampler(args.isStreamingSampler());
+    tool.setStatementTimeout(args.getStatementTimeout());
+    tool.setStreamingEvaluation(args.isStreamingEvaluation());
+    tool.setResultCache(args.isResultCache());
+    tool.setRewriteSampleQueries(args.isRewriteSampleQueries());
+    return tool;
+  }
+
+  /** @return the group statistics of a query, or null if it has no source table */
+  private static Stat computeStat(
+      DatabaseTool tool, Query q, PrejoinIndex prejoinIndex, Query parent, Args args) {
+    if (args.isEstimateStats()) {
+      Stat stat = tool.estimateGroupCountAndSize(database, q, prejoinIndex);
+      if (stat != null && isStratifiedCandidate(stat)) {
+        // stratified samples are built from the exact stat table
+        stat = tool.getGroupCountAndSize(database, q, prejoinIndex, parent);
+      }
+      return stat;
+    }
+    return tool.getGroupCountAndSize(database, q, prejoinIndex, parent);
+  }
+
+  /** @return the sample to create for a query given its group statistics, or null if none */
+  private static Sample planSample(Query q, Stat stat, Args args) {
+    long populationSize = stat.getPopulationSize();
+    double targetSampleSize = stat.getTargetSampleSize();
+    double avgGroupSize = stat.getAvgGroupSize();
+    //        double sampleSize = getSampleSize((double) maxGroupSize, Z, E);
+    // printed at once, as stats of several queries may be computed concurrently
+    String header =
+        String.format(
+            "For query %s (population = %d, target sample size = %.3f, "
+                + "group count = %d, avg group size = %.3f, min group size = %d, "
+                + "max group size = %d:\n\t",
+            q.getId(),
+            populationSize,
+            targetSampleSize,
+            stat.getGroupCount(),
+            avgGroupSize,
+            stat.getMinGroupSize(),
+            stat.getMaxGroupSize());
+    if (avgGroupSize > UNIFORM_THRESHOLD) {
+      double ratio = UNIFORM_THRESHOLD / (double) avgGroupSize;
+      if (ratio <= MIN_IO_REDUCTION_RATIO) {
+        System.out.println(
+            header
+                + String.format(
+                    "Create %f %% uniform sample on %s.",
+                    (UNIFORM_THRESHOLD / avgGroupSize) * 100, q.getFactTable()));
+        Sample s =
+            new Sample(
+                q,
+                Sample.Type.UNIFORM,
+                q.getFactTable(),
+                q.getJoinedTables(),
+                q.getQueryColumnSet());
+        s.setRatio(ratio);
+        return s;
+      }
+      System.out.print(header);
+      return null;
+    }
+    double ratio = targetSampleSize / (double) populationSize;
+    if (ratio > MIN_IO_REDUCTION_RATIO) {
+      System.out.println(
+          header + String.format("No viable samples (ratio = %.2f %%).", ratio * 100));
+      return null;
+    }
+    List<Double> resolutions = getNestedResolutions(args);
+    if (!resolutions.isEmpty()) {
+      // the table of a nested sample is built for its smallest error, which needs more rows
+      resolutions.add(DatabaseTool.E);
+      double minE = Collections.min(resolutions);
+      double growth =
+          getSampleSize(avgGroupSize, DatabaseTool.Z, minE)
+              / getSampleSize(avgGroupSize, DatabaseTool.Z, DatabaseTool.E);
+      double nestedRatio = Math.min(1.0, ratio * growth);
+      if (nestedRatio > MIN_IO_REDUCTION_RATIO) {
+        header +=
+            String.format(
+                "No viable nested sample for error %.4f (ratio = %.2f %%). ",
+                minE, nestedRatio * 100);
+        resolutions.clear();
+      } else {
+        ratio = nestedRatio;
+      }
+    }
+    System.out.println(
+        header
+            + String.format(
+                "Create stratified sample on %s with (%s) for estimated sample size of %.2f %%.",
+                q.getFactTable(), q.getQCSString(), ratio * 100));
+    Sample s =
+        new Sample(
+            q,
+            resolutions.isEmpty() ? Sample.Type.STRATIFIED : Sample.Type.STRATIFIED_NESTED,
+            q.getFactTable(),
+            q.getJoinedTables(),
+            q.getQueryColumnSet());
+    s.setE(DatabaseTool.E);
+    s.setZ(DatabaseTool.Z);
+    if (!resolutions.isEmpty()) {
+      s.setResolutions(resolutions);
+      s.setE(Collections.min(resolutions));
+    }
+    return s;
+  }
+
+  private static boolean isStratifiedCandidate(Stat stat) {
+    if (stat.getAvgGroupSize() > UNIFORM_THRESHOLD) {
+      return false;
+    }
+    double ratio = stat.getTargetSampleSize() / (double) stat.getPopulationSize();
+    return ratio <= MIN_IO_REDUCTION_RATIO;
+  }
+
   private static double getSampleSize(double avgGroupSize, double z, double e) {
     double s0 = (Math.pow(z, 2) * 0.5 * 0.5) / Math.pow(e, 2);
     return (avgGroupSize * s0) / (avgGroupSize + s0 - 1);
   }
 
-  private static void setQueries() {
+  /** @return the queries of the workload set by {@link #setQueries()} or the like */
+  static List<Query> getQueries() {
+    return queries;
+  }
+
+  /** Sets the workload with prejoins. */
+  static void setQueries() {
     List<Pair<String, String>> q1JoinCols = new ArrayList<>();
     q1JoinCols.add(ImmutablePair.of("d_date_sk", "sr_returned_date_sk"));
     Query q1 =
@@ -1,8 +1,8 @@
 package dyoon;
 
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,33 +11,87 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by Dong Young Yoon on 3/20/18.
  *
  * <p>A serializable, singleton cache class for store various statistics that could take a long time
  * to obtain into a file.
+ *
+ * <p>The latest version of every key in the meta table is loaded once into memory and indexed by
+ * type, key, database and fact table. Reads are served from memory, and writes go to both the
+ * table and the index.
+ *
+ * <p>Writes to the table are buffered and flushed as a single multi-row INSERT once the buffer
+ * reaches a size or age threshold, before the table is read, and at shutdown.
+ *
+ * <p>The meta table is an append-only log partitioned by type. Before it is first read, it is
+ * compacted to the newest non-deleted version of each key if it holds too many old versions.
  */
 public class Meta {
 
   public static final String TABLE_STAT_SUFFIX = ".tablestat";
   public static final String SAMPLE_SUFFIX = ".sample";
+  public static final String RESULT_SUFFIX = ".result";
 
   private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
   private static final String META_NAME = "mymeta";
+  private static final String DELETED = "DELETED";
+  private static final int DEFAULT_MAX_PENDING_RECORDS = 1;
+  private static final long DEFAULT_MAX_PENDING_MILLIS = 0;
+  private static final double DEFAULT_COMPACTION_RATIO = 2.0;
+  private static final long MIN_ROWS_FOR_COMPACTION = 100;
 
   private static Meta singleInstance = null;
 
   private File cacheFile;
   private Connection conn;
+  private SqlDialect dialect;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private boolean partitioned = false;
+  private boolean compactionChecked = false;
+  private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+  private final Set<String> loadedTypes = new HashSet<>();
+  // key -> latest stat; a null value is a tombstone
+  private final Map<String, Stat> stats = new HashMap<>();
+  // key -> latest prejoin, oldest first
+  private final Map<String, Prejoin> prejoins = new LinkedHashMap<>();
+  // prejoins by database, fact table, tables and join columns
+  private final PrejoinIndex prejoinIndex = new PrejoinIndex();
+  // key -> latest sample, oldest first
+  private final Map<String, Sample> samples = new LinkedHashMap<>();
+  // key -> latest cached query result
+  private final Map<String, CachedResult> results = new HashMap<>();
+
+  // records waiting to be written as (type, key, value, ts)
+  private final List<String[]> pending = new ArrayList<>();
+  private long oldestPendingTime = 0;
+  private int maxPendingRecords = DEFAULT_MAX_PENDING_RECORDS;
+  private long maxPendingMillis = DEFAULT_MAX_PENDING_MILLIS;
 
   private Meta(Connection conn) {
-    this.conn = conn;
+    this.conn = Metrics.instrument(conn, Metrics.META);
+    this.dialect = SqlDialect.of(conn);
     if (!initialize()) {
       System.err.println("Failed to initialize meta");
     }
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread() {
+              @Override
+              public void run() {
+                flush();
+              }
+            });
   }
 
   public static Meta getInstance(Connection conn) {
@@ -48,214 +102,425 @@ public class Meta {
   }
 
   private boolean initialize() {
+    String stringType = dialect.getStringType();
     try {
-      conn.createStatement()
-          .execute(
-              String.format(
-                  "CREATE TABLE IF NOT EXISTS %s "
-                      + "(type string, key string, "
-                      + "value string, "
-                      + "ts timestamp)",
-                  META_NAME));
+      this.recoverFromCompaction();
+      if (dialect.supportsPartitions()) {
+        conn.createStatement()
+            .execute(
+                String.format(
+                    "CREATE TABLE IF NOT EXISTS %s "
+                        + "(key %s, "
+                        + "value %s, "
+                        + "ts timestamp) PARTITIONED BY (type %s)",
+                    META_NAME, stringType, stringType, stringType));
+      } else {
+        conn.createStatement()
+            .execute(
+                String.format(
+                    "CREATE TABLE IF NOT EXISTS %s (type %s, key %s, value %s, ts timestamp)",
+                    META_NAME, stringType, stringType, stringType));
+      }
     } catch (SQLException e) {
       e.printStackTrace();
       return false;
     }
+    // meta tables created by older versions are not partitioned until compacted
+    if (!dialect.supportsPartitions()) {
+      partitioned = false;
+      return true;
+    }
+    try {
+      conn.createStatement().executeQuery(String.format("SHOW PARTITIONS %s", META_NAME)).close();
+      partitioned = true;
+    } catch (SQLException e) {
+      partitioned = false;
+    }
     return true;
   }
 
-  public void saveStat(String database, String table, Stat stat) {
-    String type = "stat";
-    String key = database + "_" + table + TABLE_STAT_SUFFIX;
-    String value = stat.toJSONString();
-    String ts = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
-    String sql =
-        String.format(
-            "INSERT INTO %s VALUES ('%s', '%s', '%s', '%s')", META_NAME, type, key, value, ts);
-    try {
-      conn.createStatement().execute(sql);
-    } catch (SQLException e) {
-      e.printStackTrace();
+  /**
+   * Restores the meta table if a compaction was interrupted after it was renamed away: from the
+   * old table, which holds every version, or else from the compacted one.
+   */
+  private void recoverFromCompaction() throws SQLException {
+    if (this.countRows(META_NAME) >= 0) {
+      return;
+    }
+    for (String table : new String[] {META_NAME + "_old", META_NAME + "_compacted"}) {
+      if (this.countRows(table) >= 0) {
+        System.out.println(String.format("Restoring %s from %s", META_NAME, table));
+        conn.createStatement()
+            .execute(String.format("ALTER TABLE %s RENAME TO %s", table, META_NAME));
+        return;
+      }
     }
   }
 
-  public Stat loadStat(String database, String table) {
-    String key = database + "_" + table + TABLE_STAT_SUFFIX;
-    String sql =
-        String.format(
-            "SELECT value FROM %s WHERE type = 'stat' AND key = '%s' " + "ORDER BY ts DESC",
-            META_NAME, key);
+  /** @return the number of rows of a table, or -1 if it cannot be read, e.g., as it is missing */
+  private long countRows(String table) {
     try {
-      ResultSet rs = conn.createStatement().executeQuery(sql);
-      if (rs.next()) {
-        String json = rs.getString("value");
-        if (!json.equals("DELETED")) {
-          ObjectMapper mapper = new ObjectMapper();
-          return mapper.readValue(json, Stat.class);
-        }
-      }
+      ResultSet rs =
+          conn.createStatement().executeQuery(String.format("SELECT count(*) FROM %s", table));
+      long count = rs.next() ? rs.getLong(1) : -1;
+      rs.close();
+      return count;
     } catch (SQLException e) {
-      e.printStackTrace();
-    } catch (JsonParseException e) {
-      e.printStackTrace();
-    } catch (JsonMappingException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
+      return -1;
     }
-    return null;
   }
 
-  public Stat loadStat(String id) {
-    String key = id + TABLE_STAT_SUFFIX;
+  /**
+   * @param compactionRatio ratio of stored versions to distinct keys above which the meta table
+   *     is compacted before it is first read
+   */
+  public synchronized void setCompactionRatio(double compactionRatio) {
+    this.compactionRatio = compactionRatio;
+  }
+
+  private void compactIfNeeded() {
+    if (compactionChecked) {
+      return;
+    }
+    compactionChecked = true;
+    flush();
+    // a single distinct expression, as not every backend counts distinct tuples
     String sql =
         String.format(
-            "SELECT value FROM %s WHERE type = 'stat' AND key = '%s' AND value != 'DELETED' "
-                + "ORDER BY ts DESC",
-            META_NAME, key);
+            "SELECT count(*) AS versions, count(DISTINCT concat(type, '/', key)) AS keys FROM %s",
+            META_NAME);
     try {
       ResultSet rs = conn.createStatement().executeQuery(sql);
       if (rs.next()) {
-        String json = rs.getString("value");
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.readValue(json, Stat.class);
+        long versions = rs.getLong("versions");
+        long keys = rs.getLong("keys");
+        rs.close();
+        if (versions >= MIN_ROWS_FOR_COMPACTION
+            && (double) versions / Math.max(1, keys) >= compactionRatio) {
+          System.out.println(
+              String.format("Compacting meta: %d versions of %d keys", versions, keys));
+          compact();
+        }
       }
     } catch (SQLException e) {
       e.printStackTrace();
-    } catch (JsonParseException e) {
-      e.printStackTrace();
-    } catch (JsonMappingException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
     }
-    return null;
   }
 
-  public void addPrejoin(Prejoin p) {
-    String type = "prejoin";
-    String key = p.getName();
-    String value = p.toJSONString();
-    String ts = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
-    try {
+  /**
+   * Rewrites the meta table so that it only holds the newest non-deleted version of each key,
+   * partitioned by type if the backend supports partitions. The old table is kept until the new
+   * one has replaced it with the expected number of rows, and an interrupted swap is undone by the
+   * next {@link #initialize()}.
+   */
+  public synchronized void compact() throws SQLException {
+    flush();
+    String compacted = META_NAME + "_compacted";
+    String old = META_NAME + "_old";
+    String latest =
+        String.format(
+            "(SELECT type, key, value, ts, "
+                + "row_number() OVER (PARTITION BY type, key ORDER BY ts DESC) AS version "
+                + "FROM %s) t WHERE version = 1 AND value != '%s'",
+            META_NAME, DELETED);
+    conn.createStatement().execute(String.format("DROP TABLE IF EXISTS %s", compacted));
+    if (dialect.supportsPartitions()) {
+      conn.createStatement()
+          .execute(
+              String.format(
+                  "CREATE TABLE %s (key %s, value %s, ts timestamp) PARTITIONED BY (type %s)",
+                  compacted,
+                  dialect.getStringType(),
+                  dialect.getStringType(),
+                  dialect.getStringType()));
       conn.createStatement()
           .execute(
               String.format(
-                  "INSERT INTO %s VALUES ('%s', '%s', '%s', '%s')",
-                  META_NAME, type, key, value, ts));
+                  "INSERT OVERWRITE TABLE %s PARTITION (type) SELECT key, value, ts, type FROM %s",
+                  compacted, latest));
+    } else {
+      conn.createStatement()
+          .execute(
+              dialect.createTableAs(
+                  compacted, String.format("SELECT type, key, value, ts FROM %s", latest)));
+    }
+    long expected = this.countRows(String.format("(SELECT key FROM %s) c", latest));
+    if (expected < 0 || this.countRows(compacted) != expected) {
+      throw new SQLException("Compacted meta does not hold the latest version of every key");
+    }
+    // a leftover of an earlier compaction, as meta itself exists
+    conn.createStatement().execute(String.format("DROP TABLE IF EXISTS %s", old));
+    conn.createStatement().execute(String.format("ALTER TABLE %s RENAME TO %s", META_NAME, old));
+    try {
+      conn.createStatement()
+          .execute(String.format("ALTER TABLE %s RENAME TO %s", compacted, META_NAME));
     } catch (SQLException e) {
-      e.printStackTrace();
+      conn.createStatement().execute(String.format("ALTER TABLE %s RENAME TO %s", old, META_NAME));
+      throw e;
     }
+    if (this.countRows(META_NAME) != expected) {
+      conn.createStatement()
+          .execute(String.format("ALTER TABLE %s RENAME TO %s", META_NAME, compacted));
+      conn.createStatement().execute(String.format("ALTER TABLE %s RENAME TO %s", old, META_NAME));
+      throw new SQLException("Compacted meta was not renamed");
+    }
+    conn.createStatement().execute(String.format("DROP TABLE %s", old));
+    partitioned = dialect.supportsPartitions();
   }
 
-  public void removePrejoin(Prejoin p) {
-    //    this.remove(p.getName());
+  /**
+   * Sets the thresholds for buffered writes. They are checked when a record is written, so a
+   * record may stay buffered longer than {@code maxPendingMillis} if nothing else is written; the
+   * buffer is also flushed before meta is read and on exit.
+   *
+   * @param maxPendingRecords number of buffered records that triggers a flush
+   * @param maxPendingMillis age of the oldest buffered record that triggers a flush
+   */
+  public synchronized void setWriteBatching(int maxPendingRecords, long maxPendingMillis) {
+    this.maxPendingRecords = Math.max(1, maxPendingRecords);
+    this.maxPendingMillis = Math.max(0, maxPendingMillis);
+    this.flushIfNeeded();
   }
 
-  public List<Prejoin> getPrejoins(String database) {
-    List<Prejoin> list = new ArrayList<>();
+  /**
+   * Writes all buffered records to the meta table with a single INSERT (one per type if the table
+   * is partitioned). The records of an INSERT that fails are written one at a time, and a record
+   * that still fails is logged and dropped so that it does not hold back later writes.
+   */
+  public synchronized void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<List<String[]>> batches = new ArrayList<>();
+    if (partitioned) {
+      Map<String, List<String[]>> recordsByType = new LinkedHashMap<>();
+      for (String[] record : pending) {
+        List<String[]> records = recordsByType.get(record[0]);
+        if (records == null) {
+          records = new ArrayList<>();
+          recordsByType.put(record[0], records);
+        }
+        records.add(record);
+      }
+      batches.addAll(recordsByType.values());
+    } else {
+      batches.add(new ArrayList<>(pending));
+    }
+    for (List<String[]> batch : batches) {
+      try {
+        conn.createStatement().execute(this.getInsertSql(batch));
+      } catch (SQLException e) {
+        e.printStackTrace();
+        for (String[] record : batch) {
+          try {
+            conn.createStatement().execute(this.getInsertSql(Collections.singletonList(record)));
+          } catch (SQLException re) {
+            System.err.println(
+                String.format("Dropped meta record (%s, %s): %s", record[0], record[1], re));
+          }
+        }
+      }
+      pending.removeAll(batch);
+    }
+  }
+
+  /** @return an INSERT of records of the same type if the table is partitioned */
+  private String getInsertSql(List<String[]> records) {
+    List<String> rows = new ArrayList<>();
+    for (String[] record : records) {
+      rows.add(
+          partitioned
+              ? String.format("('%s', '%s', '%s')", record[1], record[2], record[3])
+              : String.format(
+                  "('%s', '%s', '%s', '%s')", record[0], record[1], record[2], record[3]));
+    }
+    if (partitioned) {
+      return String.format(
+          "INSERT INTO %s PARTITION (type='%s') VALUES %s",
+          META_NAME, records.get(0)[0], Joiner.on(", ").join(rows));
+    }
+    return String.format("INSERT INTO %s VALUES %s", META_NAME, Joiner.on(", ").join(rows));
+  }
+
+  private void flushIfNeeded() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    if (pending.size() >= maxPendingRecords
+        || System.currentTimeMillis() - oldestPendingTime >= maxPendingMillis) {
+      flush();
+    }
+  }
+
+  /** Loads the latest version of every key of the given type into memory. */
+  private void load(String type) {
+    if (loadedTypes.contains(type)) {
+      return;
+    }
+    compactIfNeeded();
+    // make sure that our own writes are visible
+    flush();
     String sql =
         String.format(
-            "SELECT key, value FROM %s WHERE type = 'prejoin' AND value != 'DELETED' "
-                + "ORDER BY ts DESC",
-            META_NAME);
+            "SELECT key, value FROM %s WHERE type = '%s' ORDER BY ts DESC", META_NAME, type);
     try {
       ResultSet rs = conn.createStatement().executeQuery(sql);
+      Set<String> seen = new HashSet<>();
+      List<String[]> latest = new ArrayList<>();
       while (rs.next()) {
         String key = rs.getString("key");
-        String json = rs.getString("value");
-        if (key.startsWith(Prejoin.PREJOIN_PREFIX + database)) {
-          ObjectMapper mapper = new ObjectMapper();
-          list.add(mapper.readValue(json, Prejoin.class));
+        if (!seen.add(key)) {
+          // older version
+          continue;
         }
+        latest.add(new String[] {key, rs.getString("value")});
       }
+      rs.close();
+      // index the oldest first, as later writes are
+      for (String[] row : Lists.reverse(latest)) {
+        try {
+          index(type, row[0], row[1]);
+        } catch (IOException e) {
+          System.err.println(String.format("Failed to parse meta (%s, %s)", type, row[0]));
+          e.printStackTrace();
+        }
+      }
+      loadedTypes.add(type);
     } catch (SQLException e) {
       e.printStackTrace();
-    } catch (JsonParseException e) {
-      e.printStackTrace();
-    } catch (JsonMappingException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
     }
-    return list;
   }
 
-  public Prejoin getPrejoinForSample(String database, Sample s) {
-    String sql =
-        String.format(
-            "SELECT value FROM %s WHERE type = 'prejoin' AND value != 'DELETED' "
-                + "ORDER BY ts DESC",
-            META_NAME);
-    Prejoin bestP = null;
-    try {
-      ResultSet rs = conn.createStatement().executeQuery(sql);
-      while (rs.next()) {
-        String json = rs.getString("value");
-        ObjectMapper mapper = new ObjectMapper();
+  private void index(String type, String key, String json) throws IOException {
+    boolean deleted = json.equals(DELETED);
+    if (type.equals("stat")) {
+      stats.put(key, deleted ? null : mapper.readValue(json, Stat.class));
+    } else if (type.equals("prejoin")) {
+      Prejoin old = prejoins.remove(key);
+      if (old != null) {
+        prejoinIndex.remove(old);
+      }
+      if (!deleted) {
         Prejoin p = mapper.readValue(json, Prejoin.class);
-        if (p.supports(database, s.getQuery())) {
-          if (bestP == null) bestP = p;
-          else {
-            if (p.getTableSet().size() < bestP.getTableSet().size()) {
-              bestP = p;
-            }
-          }
-        }
+        prejoins.put(key, p);
+        prejoinIndex.add(p);
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
-    } catch (JsonParseException e) {
-      e.printStackTrace();
-    } catch (JsonMappingException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
+    } else if (type.equals("sample")) {
+      samples.remove(key);
+      if (!deleted) {
+        samples.put(key, parseSample(mapper, json));
+      }
+    } else if (type.equals("result")) {
+      results.put(key, deleted ? null : mapper.readValue(json, CachedResult.class));
     }
+  }
 
-    return bestP;
+  /** Parses a sample as stored in meta, where a sample without a query has a null query. */
+  static Sample parseSample(ObjectMapper mapper, String json) throws IOException {
+    json = json.replaceAll("null", "{\"id\":\"unknown\"}");
+    return mapper.readValue(json, Sample.class);
   }
 
-  public List<Sample> getSamples() {
-    List<Sample> samples = new ArrayList<>();
-    String sql =
-        String.format(
-            "SELECT value FROM %s WHERE type = 'sample' AND value != 'DELETED' "
-                + "ORDER BY ts DESC",
-            META_NAME);
-    try {
-      ResultSet rs = conn.createStatement().executeQuery(sql);
-      while (rs.next()) {
-        String json = rs.getString("value").replaceAll("null", "{\"id\":\"unknown\"}");
-        ObjectMapper mapper = new ObjectMapper();
-        Sample s = mapper.readValue(json, Sample.class);
-        samples.add(s);
+  private void insert(String type, String key, String value) {
+    String ts = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
+    if (pending.isEmpty()) {
+      oldestPendingTime = System.currentTimeMillis();
+    }
+    pending.add(new String[] {type, key, value, ts});
+    this.flushIfNeeded();
+  }
+
+  public synchronized void saveStat(String database, String table, Stat stat) {
+    String key = database + "_" + table + TABLE_STAT_SUFFIX;
+    String value = stat.toJSONString();
+    this.insert("stat", key, value);
+    if (loadedTypes.contains("stat")) {
+      // a copy, as the caller may go on to modify its stat
+      try {
+        index("stat", key, value);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public synchronized Stat loadStat(String database, String table) {
+    load("stat");
+    return stats.get(database + "_" + table + TABLE_STAT_SUFFIX);
+  }
+
+  public synchronized Stat loadStat(String id) {
+    load("stat");
+    return stats.get(id + TABLE_STAT_SUFFIX);
+  }
+
+  public synchronized void addPrejoin(Prejoin p) {
+    String key = p.getName();
+    String value = p.toJSONString();
+    this.insert("prejoin", key, value);
+    if (loadedTypes.contains("prejoin")) {
+      try {
+        index("prejoin", key, value);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public void removePrejoin(Prejoin p) {
+    //    this.remove(p.getName());
+  }
+
+  public synchronized List<Prejoin> getPrejoins(String database) {
+    load("prejoin");
+    List<Prejoin> list = new ArrayList<>();
+    for (Prejoin p : Lists.reverse(new ArrayList<>(prejoins.values()))) {
+      if (database.equals(p.getDatabase())) {
+        list.add(p);
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
-    } catch (JsonParseException e) {
-      e.printStackTrace();
-    } catch (JsonMappingException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
     }
-    return samples;
+    return list;
+  }
+
+  public synchronized Prejoin getPrejoinForSample(String database, Sample s) {
+    load("prejoin");
+    Query q = s.getQuery();
+    if (q == null) {
+      return null;
+    }
+    return prejoinIndex.findSmallestCovering(database, q);
+  }
+
+  /** @return all samples, newest first, with one sample per resolution of a nested sample */
+  public synchronized List<Sample> getSamples() {
+    load("sample");
+    List<Sample> list = new ArrayList<>();
+    for (Sample s : Lists.reverse(new ArrayList<>(samples.values()))) {
+      list.addAll(s.toResolutionSamples());
+    }
+    return list;
   }
 
-  public void addSample(Sample s) {
-    String type = "sample";
+  public synchronized void addSample(Sample s) {
     String key = s.toString() + SAMPLE_SUFFIX;
     String value = s.toJSONString();
-    String ts = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
-    try {
-      conn.createStatement()
-          .execute(
-              String.format(
-                  "INSERT INTO %s VALUES ('%s', '%s', '%s', '%s')",
-                  META_NAME, type, key, value, ts));
-    } catch (SQLException e) {
-      e.printStackTrace();
+    this.insert("sample", key, value);
+    if (loadedTypes.contains("sample")) {
+      samples.remove(key);
+      samples.put(key, s);
     }
   }
+
+  public synchronized void saveResult(CachedResult result) {
+    String key = result.getFingerprint() + RESULT_SUFFIX;
+    this.insert("result", key, result.toJSONString());
+    if (loadedTypes.contains("result")) {
+      results.put(key, result);
+    }
+  }
+
+  public synchronized CachedResult loadResult(String fingerprint) {
+    load("result");
+    return results.get(fingerprint + RESULT_SUFFIX);
+  }
 }
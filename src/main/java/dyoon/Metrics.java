@@ -0,0 +1,523 @@
+package dyoon;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times every SQL statement of a run and exports latency histograms and row and byte counters.
+ *
+ * <p>Once an output directory is set, a connection returned by {@link #instrument} times each
+ * execute call of its statements and counts the rows read from their result sets. A statement is
+ * tagged with the phase, query id and sample of the innermost {@link Scope} of its thread, and with
+ * its kind (the first keyword of its SQL, e.g., insert or compute). A connection instrumented with
+ * a phase tags all of its statements with that phase, as {@link Meta} does. The metrics are written
+ * to the output directory as {@code metrics.json} and in the Prometheus text format as {@code
+ * metrics.prom} when the JVM exits, and a summary of the time spent in each phase is printed.
+ */
+public class Metrics {
+
+  public static final String PREJOIN = "prejoin";
+  public static final String STAT = "stat";
+  public static final String SAMPLE = "sample";
+  public static final String TEST = "test";
+  public static final String META = "meta";
+  public static final String OTHER = "other";
+
+  private static final String PREFIX = "blinkdb_";
+  // upper bounds of the latency buckets in seconds
+  private static final double[] BUCKETS = {
+    0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800, 3600
+  };
+  private static final Pattern KEYWORD = Pattern.compile("^[\\s(]*([A-Za-z]+)");
+
+  private static final ThreadLocal<String[]> scopes = new ThreadLocal<>();
+  // phase, kind, query, sample -> series
+  private static final Map<List<String>, Series> series = new TreeMap<>(new LabelComparator());
+  private static String outputDirectory = "";
+
+  private Metrics() {}
+
+  /** The phase, query id and sample of the statements of a thread until it is closed. */
+  public static class Scope implements AutoCloseable {
+    private final String[] previous;
+
+    private Scope(String[] previous) {
+      this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+      scopes.set(previous);
+    }
+  }
+
+  /**
+   * Opens a scope; a null argument is inherited from the enclosing scope.
+   *
+   * @param queryId id of the query, or null
+   * @param sample name of the sample, or null
+   */
+  public static Scope enter(String phase, String queryId, String sample) {
+    String[] previous = scopes.get();
+    String[] labels = previous != null ? previous.clone() : new String[] {OTHER, "", ""};
+    if (phase != null) {
+      labels[0] = phase;
+    }
+    if (queryId != null) {
+      labels[1] = queryId;
+    }
+    if (sample != null) {
+      labels[2] = sample;
+    }
+    scopes.set(labels);
+    return new Scope(previous);
+  }
+
+  /** Writes the metrics to the directory when the JVM exits. */
+  public static synchronized void setOutputDirectory(String directory) {
+    boolean registered = !outputDirectory.isEmpty();
+    outputDirectory = directory;
+    if (directory.isEmpty() || registered) {
+      return;
+    }
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread() {
+              @Override
+              public void run() {
+                printSummary();
+                write(outputDirectory);
+              }
+            });
+  }
+
+  /** @return whether metrics are exported, so that measuring written tables is worth a query */
+  public static synchronized boolean isEnabled() {
+    return !outputDirectory.isEmpty();
+  }
+
+  public static Connection instrument(Connection conn) {
+    return instrument(conn, null);
+  }
+
+  /**
+   * @param phase phase of every statement of the connection, or null to use the scope
+   * @return the connection itself when metrics are not exported, which adds no overhead
+   */
+  public static Connection instrument(Connection conn, String phase) {
+    if (!isEnabled()) {
+      return conn;
+    }
+    if (Proxy.isProxyClass(conn.getClass())
+        && Proxy.getInvocationHandler(conn) instanceof ConnectionHandler) {
+      ConnectionHandler handler = (ConnectionHandler) Proxy.getInvocationHandler(conn);
+      if (phase == null || phase.equals(handler.phase)) {
+        return conn;
+      }
+      conn = handler.target;
+    }
+    return (Connection)
+        Proxy.newProxyInstance(
+            Metrics.class.getClassLoader(),
+            new Class<?>[] {Connection.class},
+            new ConnectionHandler(conn, phase));
+  }
+
+  /** Counts the rows and bytes of a table written in the current scope. */
+  public static void recordTable(long rows, double bytes) {
+    Series s = getSeries(null, "table");
+    synchronized (Metrics.class) {
+      s.rowsWritten += Math.max(0, rows);
+      s.bytesWritten += Math.max(0, bytes);
+    }
+  }
+
+  private static synchronized Series getSeries(String phase, String kind) {
+    String[] labels = scopes.get();
+    if (labels == null) {
+      labels = new String[] {OTHER, "", ""};
+    }
+    List<String> key = new ArrayList<>();
+    key.add(phase != null ? phase : labels[0]);
+    key.add(kind);
+    key.add(labels[1]);
+    key.add(labels[2]);
+    Series s = series.get(key);
+    if (s == null) {
+      s = new Series(key);
+      series.put(key, s);
+    }
+    return s;
+  }
+
+  private static String getKind(String sql) {
+    if (sql == null) {
+      return "batch";
+    }
+    Matcher m = KEYWORD.matcher(sql);
+    return m.find() ? m.group(1).toLowerCase() : "unknown";
+  }
+
+  /** Metrics of the statements with the same labels. */
+  private static class Series {
+    private final List<String> labels;
+    private final long[] bucketCounts = new long[BUCKETS.length + 1];
+    private long count = 0;
+    private double sum = 0;
+    private double max = 0;
+    private long errors = 0;
+    private long rowsFetched = 0;
+    private double fetchSeconds = 0;
+    private long rowsAffected = 0;
+    private long rowsWritten = 0;
+    private double bytesWritten = 0;
+
+    Series(List<String> labels) {
+      this.labels = labels;
+    }
+
+    void observe(double seconds) {
+      int bucket = 0;
+      while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+        ++bucket;
+      }
+      ++bucketCounts[bucket];
+      ++count;
+      sum += seconds;
+      max = Math.max(max, seconds);
+    }
+
+    /** @return an upper bound of a quantile of the latencies, from the buckets */
+    double quantile(double q) {
+      long rank = (long) Math.ceil(q * count);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS.length; ++i) {
+        seen += bucketCounts[i];
+        if (seen >= rank) {
+          return Math.min(BUCKETS[i], max);
+        }
+      }
+      return max;
+    }
+
+    String getLabelString(String extra) {
+      String[] names = {"phase", "kind", "query", "sample"};
+      StringBuilder sb = new StringBuilder("{");
+      for (int i = 0; i < names.length; ++i) {
+        if (i > 0) {
+          sb.append(",");
+        }
+        sb.append(String.format("%s=\"%s\"", names[i], escape(labels.get(i))));
+      }
+      if (extra != null) {
+        sb.append(",").append(extra);
+      }
+      return sb.append("}").toString();
+    }
+  }
+
+  private static class LabelComparator implements Comparator<List<String>> {
+    @Override
+    public int compare(List<String> o1, List<String> o2) {
+      for (int i = 0; i < o1.size(); ++i) {
+        int c = o1.get(i).compareTo(o2.get(i));
+        if (c != 0) {
+          return c;
+        }
+      }
+      return 0;
+    }
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static class ConnectionHandler implements InvocationHandler {
+    private final Connection target;
+    private final String phase;
+
+    ConnectionHandler(Connection target, String phase) {
+      this.target = target;
+      this.phase = phase;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      Object result = invokeTarget(target, method, args);
+      Class<?> type = null;
+      String sql = null;
+      if (method.getName().equals("createStatement")) {
+        type = Statement.class;
+      } else if (method.getName().equals("prepareStatement")) {
+        type = PreparedStatement.class;
+        sql = (String) args[0];
+      } else if (method.getName().equals("prepareCall")) {
+        type = CallableStatement.class;
+        sql = (String) args[0];
+      }
+      if (type == null) {
+        return result;
+      }
+      return Proxy.newProxyInstance(
+          Metrics.class.getClassLoader(),
+          new Class<?>[] {type},
+          new StatementHandler((Statement) result, phase, sql));
+    }
+  }
+
+  private static class StatementHandler implements InvocationHandler {
+    private final Statement target;
+    private final String phase;
+    private final String preparedSql;
+    private String batchSql = null;
+
+    StatementHandler(Statement target, String phase, String preparedSql) {
+      this.target = target;
+      this.phase = phase;
+      this.preparedSql = preparedSql;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("addBatch") && args != null && batchSql == null) {
+        batchSql = (String) args[0];
+      }
+      if (!name.startsWith("execute")) {
+        Object result = invokeTarget(target, method, args);
+        if (name.equals("getResultSet") && result != null) {
+          return wrap((ResultSet) result, getSeries(phase, getKind(preparedSql)));
+        }
+        return result;
+      }
+
+      String sql =
+          args != null && args.length > 0 && args[0] instanceof String
+              ? (String) args[0]
+              : (name.equals("executeBatch") ? batchSql : preparedSql);
+      Series s = getSeries(phase, getKind(sql));
+      long start = System.nanoTime();
+      Object result;
+      try {
+        result = invokeTarget(target, method, args);
+      } catch (Throwable e) {
+        synchronized (Metrics.class) {
+          s.observe((System.nanoTime() - start) / 1e9);
+          ++s.errors;
+        }
+        throw e;
+      }
+      synchronized (Metrics.class) {
+        s.observe((System.nanoTime() - start) / 1e9);
+        if (result instanceof Integer || result instanceof Long) {
+          s.rowsAffected += Math.max(0, ((Number) result).longValue());
+        } else if (result instanceof int[]) {
+          for (int rows : (int[]) result) {
+            s.rowsAffected += Math.max(0, rows);
+          }
+        }
+      }
+      if (name.equals("executeBatch")) {
+        batchSql = null;
+      }
+      return result instanceof ResultSet ? wrap((ResultSet) result, s) : result;
+    }
+  }
+
+  private static ResultSet wrap(ResultSet rs, Series s) {
+    return (ResultSet)
+        Proxy.newProxyInstance(
+            Metrics.class.getClassLoader(),
+            new Class<?>[] {ResultSet.class},
+            new ResultSetHandler(rs, s));
+  }
+
+  /** Counts the rows read from a result set and the time spent reading them. */
+  private static class ResultSetHandler implements InvocationHandler {
+    private final ResultSet target;
+    private final Series series;
+    private long rows = 0;
+    private long nanos = 0;
+    private boolean recorded = false;
+
+    ResultSetHandler(ResultSet target, Series series) {
+      this.target = target;
+      this.series = series;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (!method.getName().equals("next")) {
+        if (method.getName().equals("close")) {
+          this.record();
+        }
+        return invokeTarget(target, method, args);
+      }
+      long start = System.nanoTime();
+      Object result = invokeTarget(target, method, args);
+      nanos += System.nanoTime() - start;
+      if (Boolean.TRUE.equals(result)) {
+        ++rows;
+      } else {
+        this.record();
+      }
+      return result;
+    }
+
+    private void record() {
+      if (recorded) {
+        return;
+      }
+      recorded = true;
+      synchronized (Metrics.class) {
+        series.rowsFetched += rows;
+        series.fetchSeconds += nanos / 1e9;
+      }
+    }
+  }
+
+  private static Object invokeTarget(Object target, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /** Writes {@code metrics.json} and {@code metrics.prom} to a directory. */
+  public static synchronized void write(String directory) {
+    File dir = new File(directory);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      System.err.println("Cannot create metrics directory: " + directory);
+      return;
+    }
+
+    List<Map<String, Object>> json = new ArrayList<>();
+    for (Series s : series.values()) {
+      Map<String, Object> m = new LinkedHashMap<>();
+      m.put("phase", s.labels.get(0));
+      m.put("kind", s.labels.get(1));
+      m.put("query", s.labels.get(2));
+      m.put("sample", s.labels.get(3));
+      m.put("statements", s.count);
+      m.put("errors", s.errors);
+      m.put("totalSeconds", s.sum);
+      m.put("maxSeconds", s.max);
+      m.put("p50Seconds", s.quantile(0.5));
+      m.put("p95Seconds", s.quantile(0.95));
+      m.put("p99Seconds", s.quantile(0.99));
+      Map<String, Long> buckets = new LinkedHashMap<>();
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS.length; ++i) {
+        cumulative += s.bucketCounts[i];
+        buckets.put(String.valueOf(BUCKETS[i]), cumulative);
+      }
+      buckets.put("+Inf", s.count);
+      m.put("buckets", buckets);
+      m.put("rowsFetched", s.rowsFetched);
+      m.put("fetchSeconds", s.fetchSeconds);
+      m.put("rowsAffected", s.rowsAffected);
+      m.put("rowsWritten", s.rowsWritten);
+      m.put("bytesWritten", s.bytesWritten);
+      json.add(m);
+    }
+    File jsonFile = new File(dir, "metrics.json");
+    try {
+      new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(jsonFile, json);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    File promFile = new File(dir, "metrics.prom");
+    try (PrintWriter writer = new PrintWriter(promFile)) {
+      String histogram = PREFIX + "statement_seconds";
+      writer.println(String.format("# HELP %s Latency of SQL statements.", histogram));
+      writer.println(String.format("# TYPE %s histogram", histogram));
+      for (Series s : series.values()) {
+        if (s.count == 0) {
+          continue;
+        }
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS.length; ++i) {
+          cumulative += s.bucketCounts[i];
+          writer.println(
+              String.format(
+                  "%s_bucket%s %d",
+                  histogram, s.getLabelString(String.format("le=\"%s\"", BUCKETS[i])), cumulative));
+        }
+        writer.println(
+            String.format("%s_bucket%s %d", histogram, s.getLabelString("le=\"+Inf\""), s.count));
+        writer.println(String.format("%s_sum%s %s", histogram, s.getLabelString(null), s.sum));
+        writer.println(String.format("%s_count%s %d", histogram, s.getLabelString(null), s.count));
+      }
+      writeCounter(writer, "statement_errors_total", "Failed SQL statements.", 0);
+      writeCounter(writer, "rows_fetched_total", "Rows read from result sets.", 1);
+      writeCounter(writer, "fetch_seconds_total", "Time spent reading result sets.", 2);
+      writeCounter(writer, "rows_affected_total", "Rows reported by updates.", 3);
+      writeCounter(writer, "rows_written_total", "Rows of tables written.", 4);
+      writeCounter(writer, "bytes_written_total", "Bytes of tables written.", 5);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    System.out.println(String.format("Metrics written to %s and %s", jsonFile, promFile));
+  }
+
+  private static void writeCounter(PrintWriter writer, String name, String help, int field) {
+    writer.println(String.format("# HELP %s%s %s", PREFIX, name, help));
+    writer.println(String.format("# TYPE %s%s counter", PREFIX, name));
+    for (Series s : series.values()) {
+      double[] values = {
+        s.errors, s.rowsFetched, s.fetchSeconds, s.rowsAffected, s.rowsWritten, s.bytesWritten
+      };
+      if (values[field] != 0) {
+        writer.println(
+            String.format("%s%s%s %s", PREFIX, name, s.getLabelString(null), values[field]));
+      }
+    }
+  }
+
+  /** Prints the number of statements and the time spent in each phase. */
+  public static synchronized void printSummary() {
+    Map<String, double[]> phases = new TreeMap<>();
+    for (Series s : series.values()) {
+      double[] totals = phases.get(s.labels.get(0));
+      if (totals == null) {
+        totals = new double[3];
+        phases.put(s.labels.get(0), totals);
+      }
+      totals[0] += s.count;
+      totals[1] += s.sum + s.fetchSeconds;
+      totals[2] += s.errors;
+    }
+    System.out.println("Time spent in SQL statements by phase:");
+    for (Map.Entry<String, double[]> entry : phases.entrySet()) {
+      double[] totals = entry.getValue();
+      System.out.println(
+          String.format(
+              "\t%s: %d statement(s), %.3f s, %d error(s)",
+              entry.getKey(), (long) totals[0], totals[1], (long) totals[2]));
+    }
+  }
+}
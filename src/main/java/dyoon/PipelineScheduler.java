@@ -0,0 +1,229 @@
+package dyoon;
+
+import com.google.common.base.Stopwatch;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a DAG of tasks over a pool of connections, each task as soon as the tasks it depends on
+ * have finished, with at most as many tasks at a time as there are connections.
+ *
+ * <p>A task may add nodes while the DAG runs, e.g., when what to do next depends on its result. A
+ * node whose dependency failed or was skipped is skipped as well, and so are its dependents;
+ * independent nodes still run. A node may also be ordered after another without depending on it,
+ * i.e., it waits for the other node to finish however that ends.
+ */
+public class PipelineScheduler {
+
+  /** Work of a node. */
+  public interface Task {
+    void run(Connection conn) throws Exception;
+  }
+
+  private enum State {
+    WAITING,
+    RUNNING,
+    DONE,
+    FAILED,
+    SKIPPED
+  }
+
+  /** A task and the nodes it depends on. */
+  public static class Node {
+    private final String name;
+    private final String phase;
+    private final Task task;
+    private final List<Node> dependents = new ArrayList<>();
+    // nodes ordered after this one, which run however it ends
+    private final List<Node> followers = new ArrayList<>();
+    private int pending = 0;
+    private State state = State.WAITING;
+
+    private Node(String name, String phase, Task task) {
+      this.name = name;
+      this.phase = phase;
+      this.task = task;
+    }
+  }
+
+  private final ConnectionPool pool;
+  private final List<Node> nodes = new ArrayList<>();
+  private ExecutorService executor = null;
+  private int unfinished = 0;
+
+  /** @param pool connections the tasks run on; its size is the maximum concurrency */
+  public PipelineScheduler(ConnectionPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Adds a node, which may be done while the DAG runs.
+   *
+   * @param phase phase of {@link Metrics} the statements of the task are recorded under
+   * @param dependencies nodes that must finish first; null ones are ignored
+   */
+  public synchronized Node add(String name, String phase, Task task, Node... dependencies) {
+    return this.addAfter(null, name, phase, task, dependencies);
+  }
+
+  /**
+   * Adds a node that runs only after a predecessor has finished, failed or been skipped, e.g., so
+   * that two tasks writing the same table do not run at the same time.
+   *
+   * @param predecessor node to wait for without depending on it; ignored if null
+   */
+  public synchronized Node addAfter(
+      Node predecessor, String name, String phase, Task task, Node... dependencies) {
+    Node node = new Node(name, phase, task);
+    nodes.add(node);
+    ++unfinished;
+    boolean skip = false;
+    for (Node dependency : dependencies) {
+      if (dependency == null) {
+        continue;
+      }
+      if (dependency.state == State.FAILED || dependency.state == State.SKIPPED) {
+        skip = true;
+      } else if (dependency.state != State.DONE) {
+        dependency.dependents.add(node);
+        ++node.pending;
+      }
+    }
+    if (predecessor != null
+        && (predecessor.state == State.WAITING || predecessor.state == State.RUNNING)) {
+      predecessor.followers.add(node);
+      ++node.pending;
+    }
+    if (skip) {
+      this.skip(node);
+    } else if (node.pending == 0 && executor != null) {
+      this.submit(node);
+    }
+    return node;
+  }
+
+  /**
+   * Runs the nodes until every node has finished or been skipped.
+   *
+   * @return whether every node finished successfully
+   */
+  public boolean run() {
+    Stopwatch watch = Stopwatch.createStarted();
+    synchronized (this) {
+      executor = Executors.newFixedThreadPool(pool.getSize());
+      for (Node node : new ArrayList<>(nodes)) {
+        if (node.state == State.WAITING && node.pending == 0) {
+          this.submit(node);
+        }
+      }
+      try {
+        while (unfinished > 0) {
+          this.wait();
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      executor.shutdown();
+      executor = null;
+    }
+
+    int failed = 0;
+    int skipped = 0;
+    for (Node node : nodes) {
+      if (node.state == State.FAILED) {
+        ++failed;
+      } else if (node.state == State.SKIPPED) {
+        ++skipped;
+      }
+    }
+    System.out.println(
+        String.format(
+            "Pipeline of %d task(s) finished in %.2f s (%d failed, %d skipped)",
+            nodes.size(), watch.elapsed(TimeUnit.MILLISECONDS) / 1000.0, failed, skipped));
+    return failed == 0 && skipped == 0;
+  }
+
+  private void submit(final Node node) {
+    node.state = State.RUNNING;
+    executor.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            execute(node);
+          }
+        });
+  }
+
+  private void execute(Node node) {
+    Stopwatch watch = Stopwatch.createStarted();
+    boolean succeeded = false;
+    Connection conn = null;
+    Metrics.Scope scope = Metrics.enter(node.phase, null, null);
+    try {
+      conn = pool.borrow();
+      node.task.run(conn);
+      succeeded = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      if (conn != null) {
+        pool.release(conn);
+      }
+      scope.close();
+    }
+    System.out.println(
+        String.format(
+            "%s %s in %.2f s",
+            node.name,
+            succeeded ? "finished" : "failed",
+            watch.elapsed(TimeUnit.MILLISECONDS) / 1000.0));
+    this.finish(node, succeeded);
+  }
+
+  private synchronized void finish(Node node, boolean succeeded) {
+    node.state = succeeded ? State.DONE : State.FAILED;
+    --unfinished;
+    for (Node dependent : node.dependents) {
+      if (dependent.state != State.WAITING) {
+        continue;
+      }
+      if (!succeeded) {
+        this.skip(dependent);
+      } else if (--dependent.pending == 0) {
+        this.submit(dependent);
+      }
+    }
+    this.release(node);
+    this.notifyAll();
+  }
+
+  private void skip(Node node) {
+    node.state = State.SKIPPED;
+    --unfinished;
+    System.out.println(String.format("%s skipped", node.name));
+    for (Node dependent : node.dependents) {
+      if (dependent.state == State.WAITING) {
+        this.skip(dependent);
+      }
+    }
+    this.release(node);
+  }
+
+  /** Lets the followers of a node that has ended run once nothing else holds them. */
+  private void release(Node node) {
+    for (Node follower : node.followers) {
+      if (follower.state == State.WAITING && --follower.pending == 0 && executor != null) {
+        this.submit(follower);
+      }
+    }
+  }
+}
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import org.apache.commons.lang3.RandomStringUtils;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -21,10 +22,13 @@ public class Prejoin implements Serializable {
   private String factTableName;
   private TreeSet<String> tableSet;
   private TreeSet<ColumnPair> joinColumnSet;
+  // columns kept in the prejoin table; empty if it has every column of its tables
+  private TreeSet<String> columnSet;
 
   public Prejoin() {
     this.tableSet = new TreeSet<>();
     this.joinColumnSet = new TreeSet<>();
+    this.columnSet = new TreeSet<>();
   }
 
   public Prejoin(
@@ -38,6 +42,7 @@ public class Prejoin implements Serializable {
     this.factTableName = factTableName;
     this.tableSet = new TreeSet<>(tableList);
     this.joinColumnSet = new TreeSet<>(joinColumnList);
+    this.columnSet = new TreeSet<>();
   }
 
   public Prejoin(String database, String factTableName) {
@@ -46,6 +51,7 @@ public class Prejoin implements Serializable {
     this.factTableName = factTableName;
     this.tableSet = new TreeSet<>();
     this.joinColumnSet = new TreeSet<>();
+    this.columnSet = new TreeSet<>();
   }
 
   public String toJSONString() {
@@ -79,13 +85,7 @@ public class Prejoin implements Serializable {
   }
 
   public void addJoinColumnPair(String left, String right) {
-    ColumnPair joinColumnPair;
-    if (left.compareTo(right) < 0) {
-      joinColumnPair = new ColumnPair(left, right);
-    } else {
-      joinColumnPair = new ColumnPair(right, left);
-    }
-    this.joinColumnSet.add(joinColumnPair);
+    this.joinColumnSet.add(ColumnPair.ordered(left, right));
   }
 
   public SortedSet<String> getTableSet() {
@@ -96,6 +96,27 @@ public class Prejoin implements Serializable {
     return joinColumnSet;
   }
 
+  public void addColumn(String column) {
+    this.columnSet.add(column.toLowerCase());
+  }
+
+  public SortedSet<String> getColumnSet() {
+    return columnSet;
+  }
+
+  /** @return true if the prejoin table has all the given columns */
+  public boolean hasColumns(Collection<String> columns) {
+    if (columnSet.isEmpty()) {
+      return true;
+    }
+    for (String column : columns) {
+      if (!columnSet.contains(column.toLowerCase())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public boolean contains(Prejoin p) {
     if (!this.database.equals(p.getDatabase())) {
       return false;
@@ -106,6 +127,10 @@ public class Prejoin implements Serializable {
     if (!this.tableSet.containsAll(p.getTableSet())) {
       return false;
     }
+    if (!this.columnSet.isEmpty()
+        && (p.getColumnSet().isEmpty() || !this.hasColumns(p.getColumnSet()))) {
+      return false;
+    }
     return this.joinColumnSet.containsAll(p.getJoinColumnSet());
   }
 
@@ -120,18 +145,11 @@ public class Prejoin implements Serializable {
       return false;
     }
 
-    SortedSet<ColumnPair> queryJoinColumnPairs = new TreeSet<>();
     for (ColumnPair pair : q.getJoinColumns()) {
-      ColumnPair joinColumnPair;
-      String left = pair.getLeft();
-      String right = pair.getRight();
-      if (left.compareTo(right) < 0) {
-        joinColumnPair = new ColumnPair(left, right);
-      } else {
-        joinColumnPair = new ColumnPair(right, left);
+      if (!this.joinColumnSet.contains(ColumnPair.ordered(pair.getLeft(), pair.getRight()))) {
+        return false;
       }
-      queryJoinColumnPairs.add(joinColumnPair);
     }
-    return this.joinColumnSet.containsAll(queryJoinColumnPairs);
+    return this.hasColumns(q.getRequiredColumns());
   }
 }
@@ -0,0 +1,193 @@
+package dyoon;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of prejoins that answers coverage questions with bitset superset checks.
+ *
+ * <p>Table names and (normalized) join column pairs are interned into integer ids, and each prejoin
+ * is encoded as a table bitset and a join-edge bitset. Prejoins are bucketed by database and fact
+ * table and kept in ascending order of their number of tables, so the first covering prejoin found
+ * in a bucket is also the smallest one. A prejoin that keeps only some columns of its tables covers
+ * a query only if it has the required columns of the query.
+ */
+public class PrejoinIndex {
+
+  private final Map<String, Integer> tableIds = new HashMap<>();
+  private final Map<ColumnPair, Integer> edgeIds = new HashMap<>();
+  private final Map<String, List<Entry>> entriesByFactTable = new HashMap<>();
+
+  public PrejoinIndex() {}
+
+  public PrejoinIndex(Collection<Prejoin> prejoins) {
+    for (Prejoin p : prejoins) {
+      add(p);
+    }
+  }
+
+  public void add(Prejoin p) {
+    BitSet tables = new BitSet();
+    for (String table : p.getTableSet()) {
+      tables.set(intern(tableIds, table));
+    }
+    BitSet edges = new BitSet();
+    for (ColumnPair pair : p.getJoinColumnSet()) {
+      edges.set(intern(edgeIds, pair));
+    }
+    Entry entry = new Entry(p, tables, edges);
+
+    String key = getFactTableKey(p.getDatabase(), p.getFactTableName());
+    List<Entry> entries = entriesByFactTable.get(key);
+    if (entries == null) {
+      entries = new ArrayList<>();
+      entriesByFactTable.put(key, entries);
+    }
+    int pos = entries.size();
+    while (pos > 0 && entries.get(pos - 1).tableCount > entry.tableCount) {
+      --pos;
+    }
+    entries.add(pos, entry);
+  }
+
+  public void remove(Prejoin p) {
+    List<Entry> entries =
+        entriesByFactTable.get(getFactTableKey(p.getDatabase(), p.getFactTableName()));
+    if (entries == null) {
+      return;
+    }
+    for (int i = 0; i < entries.size(); ++i) {
+      if (entries.get(i).prejoin == p) {
+        entries.remove(i);
+        return;
+      }
+    }
+  }
+
+  /** @return the prejoin with the fewest tables that supports the query, or null */
+  public Prejoin findSmallestCovering(String database, Query q) {
+    List<Entry> entries = entriesByFactTable.get(getFactTableKey(database, q.getFactTable()));
+    if (entries == null) {
+      return null;
+    }
+    BitSet tables = new BitSet();
+    for (String table : q.getJoinedTables()) {
+      Integer id = tableIds.get(table);
+      if (id == null) {
+        // no prejoin has this table
+        return null;
+      }
+      tables.set(id);
+    }
+    BitSet edges = new BitSet();
+    for (ColumnPair pair : q.getJoinColumns()) {
+      Integer id = edgeIds.get(ColumnPair.ordered(pair.getLeft(), pair.getRight()));
+      if (id == null) {
+        return null;
+      }
+      edges.set(id);
+    }
+    return findSmallestCovering(entries, tables, edges, q.getRequiredColumns(), null);
+  }
+
+  /** @return true if another indexed prejoin (or an identical one) contains the given prejoin */
+  public boolean isSubsumed(Prejoin p) {
+    return findSmallestContaining(p) != null;
+  }
+
+  /**
+   * @return the indexed prejoin with the fewest tables, other than the given one, that contains
+   *     the given prejoin, or null
+   */
+  public Prejoin findSmallestContaining(Prejoin p) {
+    List<Entry> entries =
+        entriesByFactTable.get(getFactTableKey(p.getDatabase(), p.getFactTableName()));
+    if (entries == null) {
+      return null;
+    }
+    BitSet tables = new BitSet();
+    for (String table : p.getTableSet()) {
+      Integer id = tableIds.get(table);
+      if (id == null) {
+        return null;
+      }
+      tables.set(id);
+    }
+    BitSet edges = new BitSet();
+    for (ColumnPair pair : p.getJoinColumnSet()) {
+      Integer id = edgeIds.get(pair);
+      if (id == null) {
+        return null;
+      }
+      edges.set(id);
+    }
+    Collection<String> columns = p.getColumnSet().isEmpty() ? null : p.getColumnSet();
+    return findSmallestCovering(entries, tables, edges, columns, p);
+  }
+
+  /**
+   * @param columns columns the prejoin must have, or null if it must have every column of its
+   *     tables
+   */
+  private static Prejoin findSmallestCovering(
+      List<Entry> entries,
+      BitSet tables,
+      BitSet edges,
+      Collection<String> columns,
+      Prejoin exclude) {
+    int tableCount = tables.cardinality();
+    for (Entry entry : entries) {
+      if (entry.tableCount < tableCount || entry.prejoin == exclude) {
+        continue;
+      }
+      if (isSubset(tables, entry.tables)
+          && isSubset(edges, entry.edges)
+          && (columns == null
+              ? entry.prejoin.getColumnSet().isEmpty()
+              : entry.prejoin.hasColumns(columns))) {
+        return entry.prejoin;
+      }
+    }
+    return null;
+  }
+
+  private static boolean isSubset(BitSet subset, BitSet superset) {
+    for (int i = subset.nextSetBit(0); i >= 0; i = subset.nextSetBit(i + 1)) {
+      if (!superset.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static <T> int intern(Map<T, Integer> ids, T item) {
+    Integer id = ids.get(item);
+    if (id == null) {
+      id = ids.size();
+      ids.put(item, id);
+    }
+    return id;
+  }
+
+  private static String getFactTableKey(String database, String factTable) {
+    return database + "." + factTable;
+  }
+
+  private static class Entry {
+    private final Prejoin prejoin;
+    private final BitSet tables;
+    private final BitSet edges;
+    private final int tableCount;
+
+    Entry(Prejoin prejoin, BitSet tables, BitSet edges) {
+      this.prejoin = prejoin;
+      this.tables = tables;
+      this.edges = edges;
+      this.tableCount = tables.cardinality();
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package dyoon;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Plans which prejoins to create for a workload and how to build each of them.
+ *
+ * <p>The size of a prejoin is estimated as its row count times its width. Join columns are assumed
+ * to be foreign key to primary key joins, so a prejoin has as many rows as its largest table, and
+ * its width is the sum of the average row sizes of its tables, scaled by the fraction of the
+ * columns of each table it keeps. A prejoin keeps all columns of its fact table, which its samples
+ * copy, and only the columns of the other tables that the queries it supports reference (see
+ * {@link DatabaseTool#getReferencedColumns}). Candidates (one per query with
+ * joins) are first merged when their join graphs are compatible, i.e., they join the tables they
+ * share on the same columns, and the merged prejoin saves at least a given fraction of the smaller
+ * one. The remaining candidates are then planned from the largest to the smallest. A candidate
+ * contained in an existing (or already planned) prejoin is skipped if that prejoin is at most a
+ * given ratio larger, since scanning it costs about as much; otherwise it is derived from that
+ * prejoin instead of joining the base tables again. Neither is done if the containing prejoin lacks
+ * rows of the candidate, i.e., its other joins drop rows with NULL or dangling keys.
+ */
+public class PrejoinPlanner {
+
+  private static final double DEFAULT_MERGE_THRESHOLD = 0.5;
+  private static final double DEFAULT_SCAN_RATIO = 1.5;
+
+  private final DatabaseTool tool;
+  private double mergeThreshold = DEFAULT_MERGE_THRESHOLD;
+  private double scanRatio = DEFAULT_SCAN_RATIO;
+  private final Map<String, Long> rowCounts = new HashMap<>();
+  private final Map<String, Double> rowSizes = new HashMap<>();
+  private final Map<String, List<String>> tableColumns = new HashMap<>();
+  private final Map<String, String> columnTables = new HashMap<>();
+
+  public PrejoinPlanner(DatabaseTool tool) {
+    this.tool = tool;
+  }
+
+  /**
+   * @param mergeThreshold fraction of the smaller of two prejoins that merging them must save (a
+   *     value above 1 disables merging)
+   */
+  public void setMergeThreshold(double mergeThreshold) {
+    this.mergeThreshold = mergeThreshold;
+  }
+
+  /** @param scanRatio largest size ratio of a containing prejoin that is scanned in place */
+  public void setScanRatio(double scanRatio) {
+    this.scanRatio = scanRatio;
+  }
+
+  /**
+   * @param existing prejoins that already exist in the database
+   * @return prejoins to create in order, each mapped to the prejoin it is derived from, or to null
+   *     if it must join its base tables
+   */
+  public Map<Prejoin, Prejoin> plan(String database, List<Query> queries, List<Prejoin> existing) {
+    List<Prejoin> candidates = new ArrayList<>();
+    for (Query q : queries) {
+      if (q.getJoinedTables().size() <= 1) {
+        continue;
+      }
+      Prejoin p = new Prejoin(database, q.getFactTable());
+      for (String table : q.getJoinedTables()) {
+        p.addTable(table);
+      }
+      for (ColumnPair pair : q.getJoinColumns()) {
+        p.addJoinColumnPair(pair.getLeft(), pair.getRight());
+      }
+      if (!containsSame(candidates, p)) {
+        candidates.add(p);
+      }
+    }
+    for (Prejoin p : candidates) {
+      this.prune(database, p, queries);
+    }
+
+    final Map<Prejoin, Double> sizes = new HashMap<>();
+    for (Prejoin p : existing) {
+      sizes.put(p, this.estimateSize(p));
+    }
+    for (Prejoin p : candidates) {
+      sizes.put(p, this.estimateSize(p));
+    }
+    int candidateCount = candidates.size();
+    this.merge(database, candidates, queries, sizes);
+
+    // larger prejoins first, so that smaller ones can be derived from them
+    Collections.sort(
+        candidates,
+        new Comparator<Prejoin>() {
+          @Override
+          public int compare(Prejoin o1, Prejoin o2) {
+            int compare = Double.compare(sizes.get(o2), sizes.get(o1));
+            if (compare != 0) return compare;
+            return o2.getTableSet().size() - o1.getTableSet().size();
+          }
+        });
+
+    PrejoinIndex index = new PrejoinIndex(existing);
+    Map<Prejoin, Prejoin> plan = new LinkedHashMap<>();
+    int skipped = 0;
+    for (Prejoin p : candidates) {
+      Prejoin container = index.findSmallestContaining(p);
+      if (container != null && !tool.hasAllRows(p, container)) {
+        container = null;
+      }
+      if (container != null && sizes.get(container) <= sizes.get(p) * scanRatio) {
+        ++skipped;
+        continue;
+      }
+      plan.put(p, container);
+      index.add(p);
+    }
+
+    System.out.println(
+        String.format(
+            "Prejoin plan: %d candidate(s), %d after merging, %d skipped, %d to create",
+            candidateCount, candidates.size(), skipped, plan.size()));
+    for (Map.Entry<Prejoin, Prejoin> entry : plan.entrySet()) {
+      Prejoin p = entry.getKey();
+      System.out.println(
+          String.format(
+              "\t%s (%.2f MB) from %s",
+              p.getTableSet(),
+              sizes.get(p) / 1024 / 1024,
+              entry.getValue() != null ? entry.getValue().getName() : "base tables"));
+    }
+    return plan;
+  }
+
+  /** Repeatedly merges the pair of compatible candidates that saves the most. */
+  private void merge(
+      String database, List<Prejoin> candidates, List<Query> queries, Map<Prejoin, Double> sizes) {
+    while (true) {
+      Prejoin bestMerged = null;
+      int bestI = -1;
+      int bestJ = -1;
+      double bestSaving = 0;
+      for (int i = 0; i < candidates.size(); ++i) {
+        for (int j = i + 1; j < candidates.size(); ++j) {
+          Prejoin p1 = candidates.get(i);
+          Prejoin p2 = candidates.get(j);
+          if (!this.isCompatible(p1, p2)) {
+            continue;
+          }
+          Prejoin merged = union(p1, p2);
+          this.prune(database, merged, queries);
+          double size = this.estimateSize(merged);
+          double saving =
+              (sizes.get(p1) + sizes.get(p2) - size) / Math.min(sizes.get(p1), sizes.get(p2));
+          if (saving >= mergeThreshold && saving > bestSaving) {
+            bestMerged = merged;
+            bestI = i;
+            bestJ = j;
+            bestSaving = saving;
+            sizes.put(merged, size);
+          }
+        }
+      }
+      if (bestMerged == null) {
+        return;
+      }
+      candidates.remove(bestJ);
+      candidates.remove(bestI);
+      candidates.add(bestMerged);
+    }
+  }
+
+  /**
+   * @return true if the two prejoins are on the same fact table, neither contains the other, and
+   *     they join the tables they share on the same columns
+   */
+  private boolean isCompatible(Prejoin p1, Prejoin p2) {
+    if (!p1.getDatabase().equals(p2.getDatabase())
+        || !p1.getFactTableName().equals(p2.getFactTableName())) {
+      return false;
+    }
+    if (p1.contains(p2) || p2.contains(p1)) {
+      return false;
+    }
+    SortedSet<String> shared = new TreeSet<>(p1.getTableSet());
+    shared.retainAll(p2.getTableSet());
+    return this.getJoinColumnsWithin(p1, shared).equals(this.getJoinColumnsWithin(p2, shared));
+  }
+
+  private SortedSet<ColumnPair> getJoinColumnsWithin(Prejoin p, SortedSet<String> tables) {
+    SortedSet<ColumnPair> pairs = new TreeSet<>();
+    for (ColumnPair pair : p.getJoinColumnSet()) {
+      String left = this.getTable(p, pair.getLeft());
+      String right = this.getTable(p, pair.getRight());
+      if (left != null && right != null && tables.contains(left) && tables.contains(right)) {
+        pairs.add(pair);
+      }
+    }
+    return pairs;
+  }
+
+  /** @return the table of the prejoin that has the column, or null */
+  private String getTable(Prejoin p, String column) {
+    for (String table : p.getTableSet()) {
+      this.getColumns(table);
+    }
+    return columnTables.get(column.toLowerCase());
+  }
+
+  private List<String> getColumns(String table) {
+    List<String> columns = tableColumns.get(table);
+    if (columns == null) {
+      columns = tool.getColumns(table);
+      tableColumns.put(table, columns);
+      for (String column : columns) {
+        columnTables.put(column.toLowerCase(), table);
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Keeps only the columns of the prejoin that the queries it supports reference, and every column
+   * of its fact table, which samples built from the prejoin copy into a table like the fact table.
+   */
+  private void prune(String database, Prejoin p, List<Query> queries) {
+    for (String column : this.getColumns(p.getFactTableName())) {
+      p.addColumn(column);
+    }
+    for (Query q : queries) {
+      if (p.supports(database, q)) {
+        for (String column : tool.getReferencedColumns(q, p.getTableSet())) {
+          p.addColumn(column);
+        }
+      }
+    }
+  }
+
+  private static Prejoin union(Prejoin p1, Prejoin p2) {
+    Prejoin p = new Prejoin(p1.getDatabase(), p1.getFactTableName());
+    for (String table : p1.getTableSet()) {
+      p.addTable(table);
+    }
+    for (String table : p2.getTableSet()) {
+      p.addTable(table);
+    }
+    for (ColumnPair pair : p1.getJoinColumnSet()) {
+      p.addJoinColumnPair(pair.getLeft(), pair.getRight());
+    }
+    for (ColumnPair pair : p2.getJoinColumnSet()) {
+      p.addJoinColumnPair(pair.getLeft(), pair.getRight());
+    }
+    return p;
+  }
+
+  private static boolean containsSame(List<Prejoin> prejoins, Prejoin p) {
+    for (Prejoin other : prejoins) {
+      if (other.contains(p) && p.contains(other)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the estimated size of a prejoin in bytes, or its number of tables if the table stats
+   *     cannot be read
+   */
+  private double estimateSize(Prejoin p) {
+    try {
+      long rows = 0;
+      double width = 0;
+      for (String table : p.getTableSet()) {
+        rows = Math.max(rows, this.getRowCount(table));
+        double fraction = 1.0;
+        List<String> columns = this.getColumns(table);
+        if (!p.getColumnSet().isEmpty() && !columns.isEmpty()) {
+          int kept = 0;
+          for (String column : columns) {
+            if (p.getColumnSet().contains(column.toLowerCase())) {
+              ++kept;
+            }
+          }
+          fraction = (double) kept / columns.size();
+        }
+        width += this.getRowSize(table) * fraction;
+      }
+      return rows * width;
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return p.getTableSet().size();
+    }
+  }
+
+  private long getRowCount(String table) throws SQLException {
+    Long rowCount = rowCounts.get(table);
+    if (rowCount == null) {
+      rowCount = tool.getRowCount(table);
+      rowCounts.put(table, rowCount);
+    }
+    return rowCount;
+  }
+
+  private double getRowSize(String table) throws SQLException {
+    Double size = rowSizes.get(table);
+    if (size == null) {
+      size = tool.getAverageRowSize(table);
+      rowSizes.put(table, size);
+    }
+    return size;
+  }
+}
@@ -1,5 +1,6 @@
 package dyoon;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.google.common.base.Joiner;
 import org.apache.commons.lang3.tuple.Pair;
@@ -12,6 +13,8 @@ import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /** Created by Dong Young Yoon on 10/9/18. */
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -27,6 +30,11 @@ public class Query implements Serializable, Comparable<Query> {
   private TreeSet<String> groupByColumns;
   private TreeSet<String> aggColumns;
 
+  // id suffix of the query on a fact table alone that replaces dimension columns by foreign keys
+  public static final String FOREIGN_KEY_SUFFIX = "_fk";
+
+  private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
   public static final String[] FACT_TABLES = {
     "store_sales",
     "store_returns",
@@ -146,6 +154,44 @@ public class Query implements Serializable, Comparable<Query> {
     return aggColumns;
   }
 
+  /** @return the QCS, aggregate and join columns of the query */
+  @JsonIgnore
+  public Set<String> getRequiredColumns() {
+    Set<String> columns = new TreeSet<>();
+    if (queryColumnSet != null) {
+      columns.addAll(queryColumnSet);
+    }
+    if (aggColumns != null) {
+      columns.addAll(aggColumns);
+    }
+    if (joinColumns != null) {
+      for (ColumnPair pair : joinColumns) {
+        columns.add(pair.getLeft());
+        columns.add(pair.getRight());
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * @return every identifier in the text of the query and its sample query in lower case, which
+   *     includes the columns the query references
+   */
+  @JsonIgnore
+  public Set<String> getReferencedNames() {
+    Set<String> names = new HashSet<>();
+    for (String text : new String[] {query, sampleQuery}) {
+      if (text == null) {
+        continue;
+      }
+      Matcher m = IDENTIFIER.matcher(text);
+      while (m.find()) {
+        names.add(m.group().toLowerCase());
+      }
+    }
+    return names;
+  }
+
   public String getSampleQuery() {
     return sampleQuery;
   }
@@ -0,0 +1,203 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A store of exact query results shared by all samples and runs.
+ *
+ * <p>A result is keyed by a fingerprint of the normalized query text and is only reused while the
+ * data version of every table the query reads (row count, file count and size from table stats,
+ * and the last DDL time) is unchanged. A stale result table is dropped when it is replaced.
+ */
+public class ResultCache {
+
+  private static final String RESULT_TABLE_PREFIX = "qres_";
+  private static final int RESULT_TABLE_HASH_LENGTH = 16;
+  private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+  private final Connection conn;
+  private final SqlDialect dialect;
+  private final Meta meta;
+  private Set<String> tableNames = null;
+  // data versions are looked up once per run
+  private final Map<String, String> dataVersions = new HashMap<>();
+
+  public ResultCache(Connection conn) {
+    this.conn = conn;
+    this.dialect = SqlDialect.of(conn);
+    this.meta = Meta.getInstance(conn);
+  }
+
+  /**
+   * @return a hash of the query text with whitespace collapsed and case folded, except inside
+   *     quoted literals and identifiers, which are kept as they are
+   */
+  public static String getFingerprint(String sql) {
+    StringBuilder sb = new StringBuilder();
+    char quote = 0;
+    boolean escaped = false;
+    boolean space = false;
+    for (char c : sql.trim().toCharArray()) {
+      if (quote != 0) {
+        sb.append(c);
+        // a backslash escapes a quote, and a doubled quote closes and reopens the literal
+        if (escaped) {
+          escaped = false;
+        } else if (c == '\\') {
+          escaped = true;
+        } else if (c == quote) {
+          quote = 0;
+        }
+      } else if (Character.isWhitespace(c)) {
+        space = true;
+      } else {
+        if (space) {
+          sb.append(' ');
+          space = false;
+        }
+        if (c == '\'' || c == '"' || c == '`') {
+          quote = c;
+        }
+        sb.append(Character.toLowerCase(c));
+      }
+    }
+    String normalized = sb.toString();
+    while (normalized.endsWith(";")) {
+      normalized = normalized.substring(0, normalized.length() - 1).trim();
+    }
+    return Hashing.sha256().hashString(normalized, StandardCharsets.UTF_8).toString();
+  }
+
+  /** @return the cached result of the query if it is still valid, otherwise null */
+  public CachedResult lookup(String sql) throws SQLException {
+    CachedResult cached = meta.loadResult(getFingerprint(sql));
+    if (cached == null) {
+      return null;
+    }
+    if (!cached.getDataVersion().equals(this.getDataVersion(sql))) {
+      System.out.println(
+          String.format(
+              "Cached result %s is stale (q%s)", cached.getTableName(), cached.getQueryId()));
+      return null;
+    }
+    if (!this.tableExists(cached.getTableName())) {
+      return null;
+    }
+    return cached;
+  }
+
+  /** Computes the result of the query into a new result table and records it. */
+  public CachedResult create(String queryId, String sql) throws SQLException {
+    String fingerprint = getFingerprint(sql);
+    String dataVersion = this.getDataVersion(sql);
+    String tableName =
+        RESULT_TABLE_PREFIX
+            + Hashing.sha256()
+                .hashString(fingerprint + "|" + dataVersion, StandardCharsets.UTF_8)
+                .toString()
+                .substring(0, RESULT_TABLE_HASH_LENGTH);
+
+    CachedResult old = meta.loadResult(fingerprint);
+    if (old != null && !old.getTableName().equals(tableName)) {
+      conn.createStatement()
+          .execute(String.format("DROP TABLE IF EXISTS %s", old.getTableName()));
+    }
+
+    conn.createStatement().execute(String.format("DROP TABLE IF EXISTS %s", tableName));
+    String trimmed = sql.trim();
+    while (trimmed.endsWith(";")) {
+      trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+    }
+    conn.createStatement().execute(dialect.createTableAs(tableName, trimmed));
+
+    CachedResult result =
+        new CachedResult(fingerprint, queryId, tableName, dataVersion, System.currentTimeMillis());
+    meta.saveResult(result);
+    return result;
+  }
+
+  /** @return versions of all tables referenced by the query, in table name order */
+  private String getDataVersion(String sql) throws SQLException {
+    List<String> versions = new ArrayList<>();
+    for (String table : this.getReferencedTables(sql)) {
+      String version = dataVersions.get(table);
+      if (version == null) {
+        version = this.getTableVersion(table);
+        dataVersions.put(table, version);
+      }
+      versions.add(table + "=" + version);
+    }
+    return Joiner.on(";").join(versions);
+  }
+
+  private TreeSet<String> getReferencedTables(String sql) throws SQLException {
+    if (tableNames == null) {
+      tableNames = new HashSet<>();
+      ResultSet rs = conn.createStatement().executeQuery("SHOW TABLES");
+      while (rs.next()) {
+        tableNames.add(rs.getString(1).toLowerCase());
+      }
+      rs.close();
+    }
+    TreeSet<String> tables = new TreeSet<>();
+    Matcher m = IDENTIFIER.matcher(sql);
+    while (m.find()) {
+      String token = m.group().toLowerCase();
+      if (tableNames.contains(token)) {
+        tables.add(token);
+      }
+    }
+    return tables;
+  }
+
+  private String getTableVersion(String table) throws SQLException {
+    TableStats stats = TableStats.read(conn, dialect, table);
+    if (stats == null) {
+      // without table stats, the row count is the best version we have
+      ResultSet rs =
+          conn.createStatement().executeQuery(String.format("SELECT count(*) FROM %s", table));
+      String rows = rs.next() ? rs.getString(1) : "";
+      rs.close();
+      return rows;
+    }
+
+    String lastDdlTime = "";
+    ResultSet rs =
+        conn.createStatement().executeQuery(String.format("DESCRIBE FORMATTED %s", table));
+    while (rs.next()) {
+      for (int i = 1; i <= 3; ++i) {
+        String value = rs.getString(i);
+        if (value != null && value.trim().equals("transient_lastDdlTime") && i < 3) {
+          lastDdlTime = String.valueOf(rs.getString(i + 1)).trim();
+        }
+      }
+    }
+    rs.close();
+    return String.format(
+        "%d/%d/%s/%s", stats.getRowCount(), stats.getFileCount(), stats.getSize(), lastDdlTime);
+  }
+
+  private boolean tableExists(String table) throws SQLException {
+    DatabaseMetaData dbm = conn.getMetaData();
+    ResultSet tables = dbm.getTables(null, null, table, null);
+    boolean exists = tables.next();
+    tables.close();
+    return exists;
+  }
+}
@@ -0,0 +1,13 @@
+package dyoon;
+
+import java.util.List;
+
+/** A sampler that sees every row of a source table once and keeps some of them. */
+public interface RowSampler {
+
+  void offer(Object[] row);
+
+  List<Object[]> getSampledRows();
+
+  long getRowCount();
+}
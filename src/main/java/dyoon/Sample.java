@@ -1,5 +1,6 @@
 package dyoon;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -8,6 +9,9 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Joiner;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -20,7 +24,8 @@ public class Sample implements Serializable {
   public enum Type {
     UNIFORM,
     STRATIFIED,
-    STRATIFIED2
+    STRATIFIED2,
+    STRATIFIED_NESTED
   }
 
   @JsonInclude(JsonInclude.Include.NON_NULL)
@@ -36,11 +41,15 @@ public class Sample implements Serializable {
 
   private double ratio; // used by uniform
 
-  private double Z = 2.576;
-  private double E = 0.01; // used by stratified
+  private double Z = DatabaseTool.Z;
+  private double E = DatabaseTool.E; // used by stratified
 
   private int minRow; // used by stratified2
 
+  // errors served by a nested stratified sample; its table is built for the smallest one
+  @JsonInclude(JsonInclude.Include.NON_EMPTY)
+  private TreeSet<Double> resolutions = new TreeSet<>();
+
   public Sample() {
     this.queryList = new TreeSet<>();
     this.joinTables = new TreeSet<>();
@@ -77,6 +86,13 @@ public class Sample implements Serializable {
     } else if (type == Type.STRATIFIED2) {
       t = String.format("st2_%d", minRow).replaceAll("\\.", "_");
       return table + "__" + t + "__" + getColumnString();
+    } else if (type == Type.STRATIFIED_NESTED) {
+      String name = this.getStorageTable();
+      if (E > this.getBaseE()) {
+        // a coarser resolution is a view over the table
+        name += String.format("__e_%.4f", E).replaceAll("\\.", "_");
+      }
+      return name;
     } else {
       t = "unknown";
     }
@@ -93,6 +109,34 @@ public class Sample implements Serializable {
     return null;
   }
 
+  /**
+   * @return true if the sample is drawn from its fact table alone, stratified on the foreign keys
+   *     that determine the dimension columns of a query
+   */
+  @JsonIgnore
+  public boolean isForeignKeySample() {
+    return query != null && query.getId().endsWith(Query.FOREIGN_KEY_SUFFIX);
+  }
+
+  /**
+   * @return true if the sample is stratified on exactly the query column set of {@code q}, so that
+   *     a sample query written for {@code q} scales its strata
+   */
+  public boolean isStratifiedOn(Query q) {
+    if (type == Type.UNIFORM || this.isForeignKeySample() || q.getQueryColumnSet() == null) {
+      return false;
+    }
+    Set<String> strata = new TreeSet<>();
+    for (String column : columns) {
+      strata.add(column.toLowerCase());
+    }
+    Set<String> queryColumns = new TreeSet<>();
+    for (String column : q.getQueryColumnSet()) {
+      queryColumns.add(column.toLowerCase());
+    }
+    return strata.equals(queryColumns);
+  }
+
   public Query getQuery() {
     return query;
   }
@@ -144,7 +188,7 @@ public class Sample implements Serializable {
   }
 
   public double getZ() {
-    if (Z == 0) return 2.576;
+    if (Z == 0) return DatabaseTool.Z;
     else return Z;
   }
 
@@ -153,7 +197,7 @@ public class Sample implements Serializable {
   }
 
   public double getE() {
-    if (E == 0) return 0.01;
+    if (E == 0) return DatabaseTool.E;
     else return E;
   }
 
@@ -168,4 +212,50 @@ public class Sample implements Serializable {
   public void setMinRow(int minRow) {
     this.minRow = minRow;
   }
+
+  public SortedSet<Double> getResolutions() {
+    return resolutions;
+  }
+
+  public void setResolutions(Collection<Double> resolutions) {
+    this.resolutions = new TreeSet<>(resolutions);
+  }
+
+  /** @return the table that holds the rows of this sample */
+  @JsonIgnore
+  public String getStorageTable() {
+    if (type != Type.STRATIFIED_NESTED) {
+      return this.toString();
+    }
+    String t = String.format("stn_%.4f_%.4f", Z, this.getBaseE()).replaceAll("\\.", "_");
+    return table + "__" + t + "__" + getColumnString();
+  }
+
+  /** @return whether this is a coarser resolution of a nested sample, which is a view */
+  @JsonIgnore
+  public boolean isView() {
+    return type == Type.STRATIFIED_NESTED && E > this.getBaseE();
+  }
+
+  /** @return a sample for each resolution of a nested sample, finest first */
+  public List<Sample> toResolutionSamples() {
+    List<Sample> list = new ArrayList<>();
+    if (type != Type.STRATIFIED_NESTED || resolutions.isEmpty()) {
+      list.add(this);
+      return list;
+    }
+    for (double e : resolutions) {
+      Sample s = new Sample(query, type, table, joinTables, columns);
+      s.queryList = this.queryList;
+      s.setZ(Z);
+      s.setE(e);
+      s.setResolutions(resolutions);
+      list.add(s);
+    }
+    return list;
+  }
+
+  private double getBaseE() {
+    return resolutions.isEmpty() ? E : resolutions.first();
+  }
 }
@@ -0,0 +1,145 @@
+package dyoon;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests samples concurrently over a pool of connections.
+ *
+ * <p>Tests of the same query share its original result table, so all samples of a query are tested
+ * by one task, one after another; tasks of different queries run in parallel.
+ */
+public class SampleEvaluator {
+
+  private final ConnectionPool pool;
+  private final int statementTimeout;
+  private boolean streamingEvaluation = false;
+  private boolean resultCache = false;
+  private boolean rewriteSampleQueries = false;
+
+  /**
+   * @param pool connections to run tests on; its size is the degree of parallelism
+   * @param statementTimeout timeout in seconds for each statement (0 = no limit)
+   */
+  public SampleEvaluator(ConnectionPool pool, int statementTimeout) {
+    this.pool = pool;
+    this.statementTimeout = statementTimeout;
+  }
+
+  public void setStreamingEvaluation(boolean streamingEvaluation) {
+    this.streamingEvaluation = streamingEvaluation;
+  }
+
+  public void setResultCache(boolean resultCache) {
+    this.resultCache = resultCache;
+  }
+
+  public void setRewriteSampleQueries(boolean rewriteSampleQueries) {
+    this.rewriteSampleQueries = rewriteSampleQueries;
+  }
+
+  public List<TestResult> evaluate(
+      Map<Query, List<Sample>> samplesByQuery,
+      final boolean measureTime,
+      final String cacheClearScript) {
+    final List<TestResult> results = Collections.synchronizedList(new ArrayList<TestResult>());
+    ExecutorService executor = Executors.newFixedThreadPool(pool.getSize());
+    // query -> task that tests its samples
+    Map<Query, Future<?>> futures = new LinkedHashMap<>();
+
+    for (Map.Entry<Query, List<Sample>> entry : samplesByQuery.entrySet()) {
+      final Query q = entry.getKey();
+      final List<Sample> samples = entry.getValue();
+      futures.put(
+          q,
+          executor.submit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  Connection conn;
+                  try {
+                    conn = pool.borrow();
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                  }
+                  try {
+                    DatabaseTool tool = new DatabaseTool(conn);
+                    tool.setStatementTimeout(statementTimeout);
+                    tool.setStreamingEvaluation(streamingEvaluation);
+                    tool.setResultCache(resultCache);
+                    tool.setRewriteSampleQueries(rewriteSampleQueries);
+                    for (Sample s : samples) {
+                      try {
+                        TestResult result = tool.testSample(s, q, measureTime, cacheClearScript);
+                        if (result != null) {
+                          results.add(result);
+                        }
+                      } catch (SQLException | RuntimeException e) {
+                        // a failed test is reported, and the other samples are still tested
+                        e.printStackTrace();
+                        results.add(TestResult.failed(q.getId(), s.toString(), e.getMessage()));
+                      }
+                    }
+                  } finally {
+                    pool.release(conn);
+                  }
+                }
+              }));
+    }
+
+    executor.shutdown();
+    try {
+      for (Map.Entry<Query, Future<?>> entry : futures.entrySet()) {
+        try {
+          entry.getValue().get();
+        } catch (ExecutionException e) {
+          // the samples the task did not get to are reported as failed
+          e.getCause().printStackTrace();
+          Query q = entry.getKey();
+          Set<String> tested = new HashSet<>();
+          synchronized (results) {
+            for (TestResult result : results) {
+              if (result.getQueryId().equals(q.getId())) {
+                tested.add(result.getSample());
+              }
+            }
+          }
+          for (Sample s : samplesByQuery.get(q)) {
+            if (!tested.contains(s.toString())) {
+              results.add(TestResult.failed(q.getId(), s.toString(), e.getCause().toString()));
+            }
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    return new ArrayList<>(results);
+  }
+
+  public static void writeReport(List<TestResult> results, String path) {
+    try {
+      new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(path), results);
+      System.out.println("Evaluation report written to " + path);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,625 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Rewrites an aggregate query over a fact table into a query over a sample whose aggregates are
+ * scaled to the whole table.
+ *
+ * <p>For a uniform sample, every SUM and COUNT is divided by the sampling ratio. For a stratified
+ * sample, the query is first aggregated per stratum (the columns of the sample) on the sample, each
+ * per-stratum SUM and COUNT is scaled by the size of the stratum in the stat table, and the strata
+ * are then aggregated into the groups of the query. The strata may be finer than the query column
+ * set, as rows of one group of the query are sampled at the rates of their own strata. The strata
+ * of a sample drawn on the foreign keys of a fact table (see {@link Sample#isForeignKeySample()})
+ * are its foreign key columns, which determine the dimension columns the query groups by. AVG is
+ * computed from a scaled SUM and COUNT. Conjuncts of the WHERE clause that only refer to stratum
+ * columns are also applied to the stat table, so that only the strata that can match are read
+ * from it.
+ *
+ * <p>Each stratum is scaled by its size over the number of its rows in the sample, so other
+ * conjuncts of the WHERE clause, which drop only some rows of a stratum, are not applied to the
+ * sample rows but to the arguments of the per-stratum aggregates. Equality conjuncts between two
+ * columns join the relations of the query and are applied as they are, and so is an IN subquery on
+ * a stratum column, as it keeps or drops whole strata.
+ *
+ * <p>Like hand-written sample queries, the rewritten query refers to the sample as FACT_TABLE and
+ * to the stat table as STAT_TABLE. Only a single SELECT block without HAVING is supported.
+ */
+public class SampleQueryRewriter {
+
+  private static final Set<String> AGGREGATES =
+      new HashSet<>(
+          Arrays.asList(
+              "sum",
+              "count",
+              "avg",
+              "min",
+              "max",
+              "ndv",
+              "stddev",
+              "stddev_samp",
+              "stddev_pop",
+              "variance",
+              "variance_samp",
+              "variance_pop",
+              "var_samp",
+              "var_pop",
+              "appx_median",
+              "group_concat"));
+
+  private static final BaseErrorListener THROWING_ERROR_LISTENER =
+      new BaseErrorListener() {
+        @Override
+        public void syntaxError(
+            Recognizer<?, ?> recognizer,
+            Object offendingSymbol,
+            int line,
+            int charPositionInLine,
+            String msg,
+            RecognitionException e) {
+          throw new ParseCancellationException(
+              String.format("line %d:%d %s", line, charPositionInLine, msg));
+        }
+      };
+
+  private final Query query;
+  private final SqlParser.StatementContext statement;
+
+  public SampleQueryRewriter(Query query) throws SqlRewriteException {
+    if (query.getQuery() == null || query.getQuery().trim().isEmpty()) {
+      throw new SqlRewriteException("Query has no text: " + query.getId());
+    }
+    this.query = query;
+    this.statement = parse(query.getQuery());
+  }
+
+  public static SqlParser.StatementContext parse(String sql) throws SqlRewriteException {
+    SqlLexer lexer = new SqlLexer(new ANTLRInputStream(sql));
+    lexer.removeErrorListeners();
+    lexer.addErrorListener(THROWING_ERROR_LISTENER);
+    SqlParser parser = new SqlParser(new CommonTokenStream(lexer));
+    parser.removeErrorListeners();
+    parser.addErrorListener(THROWING_ERROR_LISTENER);
+    try {
+      return parser.statement();
+    } catch (ParseCancellationException e) {
+      throw new SqlRewriteException("Failed to parse query: " + e.getMessage());
+    }
+  }
+
+  /** @return the sample query of the query for the given sample */
+  public String rewrite(Sample s) throws SqlRewriteException {
+    if (s.getType() == Sample.Type.UNIFORM) {
+      return this.rewriteForUniform(s.getRatio());
+    }
+    SortedSet<String> strata = new TreeSet<>();
+    for (String column : s.getColumns()) {
+      strata.add(column.toLowerCase());
+    }
+    if (strata.isEmpty()) {
+      throw new SqlRewriteException("Sample has no strata");
+    }
+    return this.rewriteForStratified(strata, s.isForeignKeySample());
+  }
+
+  private String rewriteForUniform(double ratio) throws SqlRewriteException {
+    SqlParser.QuerySpecificationContext spec = this.getQuerySpecification();
+    String ratioLiteral = BigDecimal.valueOf(ratio).toPlainString();
+
+    List<Replacement> replacements = new ArrayList<>();
+    for (SqlParser.SelectItemContext item : spec.selectItem()) {
+      if (!(item instanceof SqlParser.SelectSingleContext)) {
+        throw new SqlRewriteException("SELECT * is not supported");
+      }
+      List<SqlParser.FunctionCallContext> aggregates = new ArrayList<>();
+      collect(
+          ((SqlParser.SelectSingleContext) item).expression(),
+          aggregates,
+          new ArrayList<SqlParser.ColumnReferenceContext>(),
+          new ArrayList<SqlParser.QueryContext>());
+      for (SqlParser.FunctionCallContext aggregate : aggregates) {
+        String function = checkScalable(aggregate);
+        if (!function.equals("avg")) {
+          replacements.add(
+              new Replacement(
+                  aggregate, String.format("(%s / %s)", getText(aggregate), ratioLiteral)));
+        }
+      }
+    }
+    if (replacements.isEmpty() && !hasAggregate(spec)) {
+      throw new SqlRewriteException("Query has no aggregate to scale");
+    }
+    return getText(statement.query(), replacements);
+  }
+
+  /**
+   * @param dependentGroupBy whether the query may group by columns outside the strata, which are
+   *     then functionally determined by the strata
+   */
+  private String rewriteForStratified(SortedSet<String> strata, boolean dependentGroupBy)
+      throws SqlRewriteException {
+    SqlParser.QuerySpecificationContext spec = this.getQuerySpecification();
+
+    List<String> groupBy = new ArrayList<>();
+    if (spec.groupByClause() != null) {
+      for (SqlParser.ExpressionContext e : spec.groupByClause().expression()) {
+        String column = getColumnName(e);
+        if (column == null) {
+          throw new SqlRewriteException("Group-by expression is not a column: " + getText(e));
+        }
+        if (!strata.contains(column) && !dependentGroupBy) {
+          throw new SqlRewriteException(
+              "Group-by column is not in the query column set: " + column);
+        }
+        groupBy.add(column);
+      }
+    }
+
+    // conjuncts that keep or drop whole strata, or join, go to the WHERE clause of the sample
+    // query, the others only to the aggregates, so that samplesize counts every row of a stratum
+    List<String> conditions = new ArrayList<>();
+    List<String> filters = new ArrayList<>();
+    if (spec.whereClause() != null) {
+      List<SqlParser.BooleanExpressionContext> conjuncts = new ArrayList<>();
+      addConjuncts(spec.whereClause().expression().booleanExpression(), conjuncts);
+      for (SqlParser.BooleanExpressionContext conjunct : conjuncts) {
+        if (isJoinPredicate(conjunct) || isOnStrata(conjunct, strata)) {
+          conditions.add("(" + getText(conjunct) + ")");
+        } else {
+          filters.add("(" + getText(conjunct) + ")");
+        }
+      }
+    }
+    String filter = filters.isEmpty() ? null : Joiner.on(" AND ").join(filters);
+
+    // aggregates per stratum on the sample, and the items of the query over them
+    List<String> innerItems = new ArrayList<>();
+    List<String> outerItems = new ArrayList<>();
+    List<String> outputNames = new ArrayList<>();
+    for (int i = 0; i < spec.selectItem().size(); ++i) {
+      SqlParser.SelectItemContext item = spec.selectItem(i);
+      if (!(item instanceof SqlParser.SelectSingleContext)) {
+        throw new SqlRewriteException("SELECT * is not supported");
+      }
+      SqlParser.ExpressionContext e = ((SqlParser.SelectSingleContext) item).expression();
+      SqlParser.IdentifierContext alias = ((SqlParser.SelectSingleContext) item).identifier();
+      String name = alias != null ? alias.getText() : getColumnName(e);
+      if (name == null) {
+        name = "_c" + i;
+      }
+
+      List<SqlParser.FunctionCallContext> aggregates = new ArrayList<>();
+      List<SqlParser.ColumnReferenceContext> columns = new ArrayList<>();
+      List<SqlParser.QueryContext> subqueries = new ArrayList<>();
+      collect(e, aggregates, columns, subqueries);
+      if (!subqueries.isEmpty()) {
+        throw new SqlRewriteException("Subqueries in SELECT are not supported");
+      }
+
+      List<Replacement> replacements = new ArrayList<>();
+      for (SqlParser.ColumnReferenceContext column : columns) {
+        String columnName = getName(column.qualifiedName());
+        if (!groupBy.contains(columnName)) {
+          throw new SqlRewriteException("Column is neither aggregated nor grouped: " + columnName);
+        }
+        replacements.add(new Replacement(column, "tmp." + columnName));
+      }
+      for (SqlParser.FunctionCallContext aggregate : aggregates) {
+        String function = checkScalable(aggregate);
+        String argument = aggregate.ASTERISK() != null ? "*" : getText(aggregate.expression(0));
+        if (filter != null) {
+          argument =
+              String.format(
+                  "CASE WHEN %s THEN %s END", filter, argument.equals("*") ? "1" : argument);
+        }
+        String innerName = "agg" + innerItems.size();
+        if (function.equals("avg")) {
+          innerItems.add(String.format("sum(%s) AS %s_sum", argument, innerName));
+          innerItems.add(String.format("count(%s) AS %s_count", argument, innerName));
+          replacements.add(
+              new Replacement(
+                  aggregate,
+                  String.format(
+                      "(%s / %s)", scaled(innerName + "_sum"), scaled(innerName + "_count"))));
+        } else {
+          innerItems.add(String.format("%s(%s) AS %s", function, argument, innerName));
+          replacements.add(new Replacement(aggregate, scaled(innerName)));
+        }
+      }
+      outerItems.add(getText(e, replacements) + " AS " + name);
+      outputNames.add(name);
+    }
+    if (innerItems.isEmpty()) {
+      throw new SqlRewriteException("Query has no aggregate to scale");
+    }
+
+    String strataList = Joiner.on(", ").join(strata);
+    // columns determined by the strata are carried along, which does not split any stratum
+    SortedSet<String> innerKeys = new TreeSet<>(strata);
+    innerKeys.addAll(groupBy);
+    String innerKeyList = Joiner.on(", ").join(innerKeys);
+    StringBuilder inner = new StringBuilder();
+    inner.append(
+        String.format(
+            "SELECT %s, %s, count(*) AS samplesize %s",
+            innerKeyList, Joiner.on(", ").join(innerItems), getText(spec.fromClause())));
+    if (!conditions.isEmpty()) {
+      inner.append(" WHERE ").append(Joiner.on(" AND ").join(conditions));
+    }
+    inner.append(" GROUP BY ").append(innerKeyList);
+    if (filter != null) {
+      // strata without a matching row do not make groups of the query
+      inner.append(String.format(" HAVING count(CASE WHEN %s THEN 1 END) > 0", filter));
+    }
+
+    StringBuilder stat = new StringBuilder();
+    stat.append(String.format("SELECT %s, groupsize FROM STAT_TABLE", strataList));
+    if (spec.whereClause() != null) {
+      List<String> pushed = this.getStratumPredicates(spec.whereClause(), strata);
+      if (!pushed.isEmpty()) {
+        stat.append(" WHERE ").append(Joiner.on(" AND ").join(pushed));
+      }
+    }
+
+    List<String> joinConditions = new ArrayList<>();
+    for (String column : strata) {
+      joinConditions.add(String.format("tmp.%s IS NOT DISTINCT FROM stat.%s", column, column));
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(
+        String.format(
+            "SELECT %s\nFROM (%s) tmp\nJOIN (%s) stat\nON %s",
+            Joiner.on(", ").join(outerItems),
+            inner.toString(),
+            stat.toString(),
+            Joiner.on(" AND ").join(joinConditions)));
+    if (!groupBy.isEmpty()) {
+      List<String> outerGroupBy = new ArrayList<>();
+      for (String column : groupBy) {
+        outerGroupBy.add("tmp." + column);
+      }
+      sb.append("\nGROUP BY ").append(Joiner.on(", ").join(outerGroupBy));
+    }
+
+    SqlParser.QueryContext q = statement.query();
+    if (q.orderByClause() != null) {
+      List<String> sortItems = new ArrayList<>();
+      for (SqlParser.SortItemContext item : q.orderByClause().sortItem()) {
+        String target = this.resolveSortKey(item.expression(), spec, outputNames, groupBy);
+        sortItems.add(
+            getText(item, Collections.singletonList(new Replacement(item.expression(), target))));
+      }
+      sb.append("\nORDER BY ").append(Joiner.on(", ").join(sortItems));
+    }
+    if (q.limitClause() != null) {
+      sb.append("\n").append(getText(q.limitClause()));
+    }
+    return sb.toString();
+  }
+
+  private SqlParser.QuerySpecificationContext getQuerySpecification() throws SqlRewriteException {
+    SqlParser.QueryContext q = statement.query();
+    if (statement.withClause() != null
+        || q.queryTerm().size() != 1
+        || q.queryTerm(0).querySpecification() == null) {
+      throw new SqlRewriteException("Only a single SELECT block is supported");
+    }
+    SqlParser.QuerySpecificationContext spec = q.queryTerm(0).querySpecification();
+    if (spec.fromClause() == null) {
+      throw new SqlRewriteException("Query has no FROM clause");
+    }
+    if (spec.havingClause() != null) {
+      throw new SqlRewriteException("HAVING is not supported");
+    }
+    if (spec.setQuantifier() != null && spec.setQuantifier().DISTINCT() != null) {
+      throw new SqlRewriteException("SELECT DISTINCT is not supported");
+    }
+    return spec;
+  }
+
+  /** @return the name of the aggregate function if it can be scaled */
+  private static String checkScalable(SqlParser.FunctionCallContext aggregate)
+      throws SqlRewriteException {
+    String function = aggregate.qualifiedName().getText().toLowerCase();
+    if (!function.equals("sum") && !function.equals("count") && !function.equals("avg")) {
+      throw new SqlRewriteException("Aggregate cannot be scaled: " + getText(aggregate));
+    }
+    if (aggregate.setQuantifier() != null && aggregate.setQuantifier().DISTINCT() != null) {
+      throw new SqlRewriteException("DISTINCT aggregate cannot be scaled: " + getText(aggregate));
+    }
+    if (aggregate.ASTERISK() == null && aggregate.expression().size() != 1) {
+      throw new SqlRewriteException("Aggregate must have one argument: " + getText(aggregate));
+    }
+    return function;
+  }
+
+  private static boolean hasAggregate(SqlParser.QuerySpecificationContext spec)
+      throws SqlRewriteException {
+    List<SqlParser.FunctionCallContext> aggregates = new ArrayList<>();
+    collect(
+        spec,
+        aggregates,
+        new ArrayList<SqlParser.ColumnReferenceContext>(),
+        new ArrayList<SqlParser.QueryContext>());
+    return !aggregates.isEmpty();
+  }
+
+  /** @return the sum over strata of a per-stratum aggregate, in floating point */
+  private static String scaled(String innerName) {
+    // a per-stratum count over samplesize would be integer division on some backends
+    return String.format(
+        "sum(CAST(tmp.%s AS DOUBLE) / tmp.samplesize * stat.groupsize)", innerName);
+  }
+
+  /** @return conjuncts of the WHERE clause that only refer to stratum columns, unqualified */
+  private List<String> getStratumPredicates(
+      SqlParser.WhereClauseContext where, SortedSet<String> strata) throws SqlRewriteException {
+    List<SqlParser.BooleanExpressionContext> conjuncts = new ArrayList<>();
+    addConjuncts(where.expression().booleanExpression(), conjuncts);
+
+    List<String> predicates = new ArrayList<>();
+    for (SqlParser.BooleanExpressionContext conjunct : conjuncts) {
+      List<SqlParser.FunctionCallContext> aggregates = new ArrayList<>();
+      List<SqlParser.ColumnReferenceContext> columns = new ArrayList<>();
+      List<SqlParser.QueryContext> subqueries = new ArrayList<>();
+      collect(conjunct, aggregates, columns, subqueries);
+      if (columns.isEmpty() || !subqueries.isEmpty() || !aggregates.isEmpty()) {
+        continue;
+      }
+      List<Replacement> replacements = new ArrayList<>();
+      boolean onStrata = true;
+      for (SqlParser.ColumnReferenceContext column : columns) {
+        String name = getName(column.qualifiedName());
+        if (!strata.contains(name)) {
+          onStrata = false;
+          break;
+        }
+        replacements.add(new Replacement(column, name));
+      }
+      if (onStrata) {
+        predicates.add("(" + getText(conjunct, replacements) + ")");
+      }
+    }
+    return predicates;
+  }
+
+  private static boolean isOnStrata(
+      SqlParser.BooleanExpressionContext conjunct, SortedSet<String> strata)
+      throws SqlRewriteException {
+    if (isStratumInSubquery(conjunct, strata)) {
+      return true;
+    }
+    List<SqlParser.FunctionCallContext> aggregates = new ArrayList<>();
+    List<SqlParser.ColumnReferenceContext> columns = new ArrayList<>();
+    List<SqlParser.QueryContext> subqueries = new ArrayList<>();
+    collect(conjunct, aggregates, columns, subqueries);
+    if (columns.isEmpty() || !subqueries.isEmpty() || !aggregates.isEmpty()) {
+      return false;
+    }
+    for (SqlParser.ColumnReferenceContext column : columns) {
+      if (!strata.contains(getName(column.qualifiedName()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return whether the conjunct tests a stratum column with IN (subquery), which keeps or drops
+   *     whole strata as the subquery is taken to be uncorrelated
+   */
+  private static boolean isStratumInSubquery(
+      SqlParser.BooleanExpressionContext conjunct, SortedSet<String> strata) {
+    if (!(conjunct instanceof SqlParser.PredicatedContext)) {
+      return false;
+    }
+    SqlParser.PredicatedContext predicated = (SqlParser.PredicatedContext) conjunct;
+    if (!(predicated.predicate() instanceof SqlParser.InSubqueryContext)
+        || !isColumnReference(predicated.valueExpression())) {
+      return false;
+    }
+    SqlParser.ColumnReferenceContext column =
+        (SqlParser.ColumnReferenceContext)
+            ((SqlParser.ValueExpressionDefaultContext) predicated.valueExpression())
+                .primaryExpression();
+    return strata.contains(getName(column.qualifiedName()));
+  }
+
+  /** @return whether the conjunct is an equality between two columns */
+  private static boolean isJoinPredicate(SqlParser.BooleanExpressionContext conjunct) {
+    if (!(conjunct instanceof SqlParser.PredicatedContext)) {
+      return false;
+    }
+    SqlParser.PredicatedContext predicated = (SqlParser.PredicatedContext) conjunct;
+    if (!(predicated.predicate() instanceof SqlParser.ComparisonContext)) {
+      return false;
+    }
+    SqlParser.ComparisonContext comparison = (SqlParser.ComparisonContext) predicated.predicate();
+    return comparison.comparisonOperator().EQ() != null
+        && isColumnReference(predicated.valueExpression())
+        && isColumnReference(comparison.valueExpression());
+  }
+
+  private static boolean isColumnReference(SqlParser.ValueExpressionContext e) {
+    return e instanceof SqlParser.ValueExpressionDefaultContext
+        && ((SqlParser.ValueExpressionDefaultContext) e).primaryExpression()
+            instanceof SqlParser.ColumnReferenceContext;
+  }
+
+  static void addConjuncts(
+      SqlParser.BooleanExpressionContext e, List<SqlParser.BooleanExpressionContext> conjuncts) {
+    if (e instanceof SqlParser.LogicalAndContext) {
+      for (SqlParser.BooleanExpressionContext child :
+          ((SqlParser.LogicalAndContext) e).booleanExpression()) {
+        addConjuncts(child, conjuncts);
+      }
+    } else {
+      conjuncts.add(e);
+    }
+  }
+
+  /** @return what a sort key of the original query refers to in the rewritten query */
+  private String resolveSortKey(
+      SqlParser.ExpressionContext e,
+      SqlParser.QuerySpecificationContext spec,
+      List<String> outputNames,
+      List<String> groupBy)
+      throws SqlRewriteException {
+    String text = normalize(getText(e));
+    if (text.matches("\\d+")) {
+      return text;
+    }
+    for (String name : outputNames) {
+      if (normalize(name).equals(text)) {
+        return name;
+      }
+    }
+    for (int i = 0; i < spec.selectItem().size(); ++i) {
+      SqlParser.ExpressionContext item =
+          ((SqlParser.SelectSingleContext) spec.selectItem(i)).expression();
+      if (normalize(getText(item)).equals(text)) {
+        return outputNames.get(i);
+      }
+    }
+    String column = getColumnName(e);
+    if (column != null && groupBy.contains(column)) {
+      return "tmp." + column;
+    }
+    throw new SqlRewriteException("Cannot resolve ORDER BY item: " + getText(e));
+  }
+
+  /**
+   * Collects aggregate calls and column references of a tree, except those inside aggregate calls
+   * and subqueries. Subqueries are collected as a whole.
+   */
+  private static void collect(
+      ParseTree tree,
+      List<SqlParser.FunctionCallContext> aggregates,
+      List<SqlParser.ColumnReferenceContext> columns,
+      List<SqlParser.QueryContext> subqueries)
+      throws SqlRewriteException {
+    if (tree instanceof SqlParser.QueryContext) {
+      subqueries.add((SqlParser.QueryContext) tree);
+      return;
+    }
+    if (tree instanceof SqlParser.FunctionCallContext) {
+      SqlParser.FunctionCallContext call = (SqlParser.FunctionCallContext) tree;
+      if (call.over() != null) {
+        throw new SqlRewriteException("Analytic functions are not supported: " + getText(call));
+      }
+      if (AGGREGATES.contains(call.qualifiedName().getText().toLowerCase())) {
+        aggregates.add(call);
+        return;
+      }
+    }
+    if (tree instanceof SqlParser.ColumnReferenceContext) {
+      columns.add((SqlParser.ColumnReferenceContext) tree);
+      return;
+    }
+    for (int i = 0; i < tree.getChildCount(); ++i) {
+      collect(tree.getChild(i), aggregates, columns, subqueries);
+    }
+  }
+
+  /** @return the column name if the expression is a plain column reference, otherwise null */
+  private static String getColumnName(SqlParser.ExpressionContext e) {
+    if (!(e.booleanExpression() instanceof SqlParser.PredicatedContext)) {
+      return null;
+    }
+    SqlParser.PredicatedContext predicated = (SqlParser.PredicatedContext) e.booleanExpression();
+    if (predicated.predicate() != null
+        || !(predicated.valueExpression() instanceof SqlParser.ValueExpressionDefaultContext)) {
+      return null;
+    }
+    SqlParser.PrimaryExpressionContext primary =
+        ((SqlParser.ValueExpressionDefaultContext) predicated.valueExpression())
+            .primaryExpression();
+    if (!(primary instanceof SqlParser.ColumnReferenceContext)) {
+      return null;
+    }
+    return getName(((SqlParser.ColumnReferenceContext) primary).qualifiedName());
+  }
+
+  /** @return the last part of a qualified name, unquoted and in lower case */
+  static String getName(SqlParser.QualifiedNameContext name) {
+    List<SqlParser.IdentifierContext> parts = name.identifier();
+    String last = parts.get(parts.size() - 1).getText();
+    if (last.startsWith("`") && last.endsWith("`")) {
+      last = last.substring(1, last.length() - 1);
+    }
+    return last.toLowerCase();
+  }
+
+  private static String normalize(String text) {
+    return text.replaceAll("\\s+", "").toLowerCase();
+  }
+
+  private static String getText(ParserRuleContext ctx) {
+    return getText(ctx, Collections.<Replacement>emptyList());
+  }
+
+  /** @return the original text of a tree with some of its subtrees replaced */
+  private static String getText(ParserRuleContext ctx, List<Replacement> replacements) {
+    CharStream input = ctx.getStart().getInputStream();
+    List<Replacement> sorted = new ArrayList<>(replacements);
+    Collections.sort(
+        sorted,
+        new Comparator<Replacement>() {
+          @Override
+          public int compare(Replacement o1, Replacement o2) {
+            return Integer.compare(o1.start, o2.start);
+          }
+        });
+
+    StringBuilder sb = new StringBuilder();
+    int pos = ctx.getStart().getStartIndex();
+    for (Replacement r : sorted) {
+      if (r.start > pos) {
+        sb.append(input.getText(Interval.of(pos, r.start - 1)));
+      }
+      sb.append(r.text);
+      pos = r.stop + 1;
+    }
+    int stop = ctx.getStop().getStopIndex();
+    if (stop >= pos) {
+      sb.append(input.getText(Interval.of(pos, stop)));
+    }
+    return sb.toString();
+  }
+
+  /** New text for the characters of a subtree. */
+  private static class Replacement {
+    private final int start;
+    private final int stop;
+    private final String text;
+
+    Replacement(ParserRuleContext ctx, String text) {
+      this.start = ctx.getStart().getStartIndex();
+      this.stop = ctx.getStop().getStopIndex();
+      this.text = text;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package dyoon;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks an existing sample for a query with a simple error and latency model.
+ *
+ * <p>A sample can answer a query if it is drawn from the fact table of the query and, for a
+ * stratified sample, if its stratification columns include the query column set of the query, so
+ * that every group of the query is a union of strata. The error of a stratified sample is the error
+ * it was built for, i.e., that of its resolution for a nested sample ({@code Z / sqrt(minRow)} for
+ * a stratified2 sample). The error of a uniform sample is that of the smallest group of the query,
+ * which needs the group statistics of the query in meta. The latency of a sample is its row count
+ * divided by a scan rate.
+ */
+public class SampleSelector {
+
+  private static final double DEFAULT_SCAN_RATE = 10000000; // rows per second
+
+  private final DatabaseTool tool;
+  private final Meta meta;
+  private double scanRate = DEFAULT_SCAN_RATE;
+  private final Map<String, Long> rowCounts = new HashMap<>();
+
+  public SampleSelector(Connection conn, DatabaseTool tool) {
+    this.tool = tool;
+    this.meta = Meta.getInstance(conn);
+  }
+
+  /** @param scanRate rows scanned per second, used to predict the latency of a sample query */
+  public void setScanRate(double scanRate) {
+    this.scanRate = scanRate;
+  }
+
+  /** A sample with its predicted error and latency for a query. */
+  public static class Candidate {
+    private final Sample sample;
+    private final long rowCount;
+    private final double predictedError;
+    private final double predictedMillis;
+
+    Candidate(Sample sample, long rowCount, double predictedError, double predictedMillis) {
+      this.sample = sample;
+      this.rowCount = rowCount;
+      this.predictedError = predictedError;
+      this.predictedMillis = predictedMillis;
+    }
+
+    public Sample getSample() {
+      return sample;
+    }
+
+    public long getRowCount() {
+      return rowCount;
+    }
+
+    public double getPredictedError() {
+      return predictedError;
+    }
+
+    public double getPredictedMillis() {
+      return predictedMillis;
+    }
+  }
+
+  /**
+   * Selects a sample for a query. With an error bound, the smallest sample whose predicted error is
+   * within the bound is chosen. With a time budget, the sample with the smallest predicted error
+   * among those predicted to finish within the budget is chosen.
+   *
+   * @param errorBound maximum relative error (0 = no bound)
+   * @param timeBudget maximum latency in ms (0 = no budget)
+   * @return the selected sample, or null if no sample satisfies the constraints
+   */
+  public Candidate select(String database, Query q, double errorBound, double timeBudget)
+      throws SQLException {
+    Candidate best = null;
+    for (Candidate c : this.getCandidates(database, q)) {
+      if (errorBound > 0 && c.getPredictedError() > errorBound) {
+        continue;
+      }
+      if (timeBudget > 0 && c.getPredictedMillis() > timeBudget) {
+        continue;
+      }
+      if (best == null || this.isBetter(c, best, errorBound, timeBudget)) {
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  /** @return all samples that can answer the query */
+  public List<Candidate> getCandidates(String database, Query q) throws SQLException {
+    Stat queryStat = this.getQueryStat(database, q);
+    List<Candidate> candidates = new ArrayList<>();
+    for (Sample s : meta.getSamples()) {
+      if (!this.covers(s, q)) {
+        continue;
+      }
+      String table = s.toString();
+      if (!tool.checkTableExists(table)) {
+        continue;
+      }
+      long rowCount = this.getRowCount(table);
+      double error = this.predictError(s, queryStat);
+      double millis = rowCount / scanRate * 1000;
+      candidates.add(new Candidate(s, rowCount, error, millis));
+    }
+    return candidates;
+  }
+
+  private boolean isBetter(Candidate c, Candidate best, double errorBound, double timeBudget) {
+    if (timeBudget > 0 && errorBound <= 0) {
+      if (c.getPredictedError() != best.getPredictedError()) {
+        return c.getPredictedError() < best.getPredictedError();
+      }
+      return c.getRowCount() < best.getRowCount();
+    }
+    if (c.getRowCount() != best.getRowCount()) {
+      return c.getRowCount() < best.getRowCount();
+    }
+    return c.getPredictedError() < best.getPredictedError();
+  }
+
+  private boolean covers(Sample s, Query q) {
+    if (!s.getTable().equals(q.getFactTable())) {
+      return false;
+    }
+    if (s.getType() == Sample.Type.UNIFORM) {
+      return true;
+    }
+    if (s.isForeignKeySample()) {
+      return s.getQuery().getId().equals(q.getId() + Query.FOREIGN_KEY_SUFFIX);
+    }
+    if (q.getQueryColumnSet() == null || !s.getColumns().containsAll(q.getQueryColumnSet())) {
+      return false;
+    }
+    // finer strata are only scaled by a sample query rewritten for them
+    return s.isStratifiedOn(q) || tool.hasScaledSampleQuery(s, q);
+  }
+
+  private double predictError(Sample s, Stat queryStat) {
+    if (s.getType() == Sample.Type.STRATIFIED || s.getType() == Sample.Type.STRATIFIED_NESTED) {
+      return s.getE();
+    } else if (s.getType() == Sample.Type.STRATIFIED2) {
+      return s.getMinRow() > 0 ? DatabaseTool.Z / Math.sqrt(s.getMinRow()) : Double.MAX_VALUE;
+    }
+    return predictUniformError(s.getRatio(), queryStat);
+  }
+
+  /**
+   * @return the relative error of a mean over the smallest group of a query in a uniform sample,
+   *     assuming a unit coefficient of variation
+   */
+  static double predictUniformError(double samplingRatio, Stat queryStat) {
+    if (queryStat == null || queryStat.getMinGroupSize() <= 0 || samplingRatio <= 0) {
+      return Double.MAX_VALUE;
+    }
+    double ratio = Math.min(1.0, samplingRatio);
+    double expectedRows = ratio * queryStat.getMinGroupSize();
+    if (expectedRows < 1) {
+      // the smallest group is likely to be missing
+      return 1.0;
+    }
+    return DatabaseTool.Z * Math.sqrt((1 - ratio) / expectedRows);
+  }
+
+  private Stat getQueryStat(String database, Query q) {
+    return meta.loadStat(database, DatabaseTool.getStatTableName(q.getId()));
+  }
+
+  private long getRowCount(String table) throws SQLException {
+    Long rowCount = rowCounts.get(table);
+    if (rowCount == null) {
+      rowCount = tool.getRowCount(table);
+      rowCounts.put(table, rowCount);
+    }
+    return rowCount;
+  }
+}
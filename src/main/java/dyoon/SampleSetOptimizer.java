@@ -0,0 +1,286 @@
+package dyoon;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Chooses the set of samples to create for a whole workload under a storage budget.
+ *
+ * <p>The candidates are the samples chosen for each query in isolation, plus a stratified sample
+ * on the union of the query column sets of every two queries on the same fact table whose column
+ * sets overlap. A sample on a column set also serves every query whose column set is a subset of
+ * it. The utility of a sample for a query is 1 if it meets the error of the sample, and otherwise
+ * the ratio of that error to its predicted error; each query counts the best selected sample.
+ * Samples are picked greedily by their gain in total utility per byte until nothing else fits.
+ */
+public class SampleSetOptimizer {
+
+  private static final int DEFAULT_MAX_UNION_COLUMNS = 8;
+  // column sets whose groups are counted by one statement
+  private static final int UNION_BATCH_SIZE = 32;
+
+  private final DatabaseTool tool;
+  private int maxUnionColumns = DEFAULT_MAX_UNION_COLUMNS;
+  private final Map<String, Double> rowSizes = new HashMap<>();
+
+  public SampleSetOptimizer(DatabaseTool tool) {
+    this.tool = tool;
+  }
+
+  /** @param maxUnionColumns largest column set of a candidate formed by a union of two queries */
+  public void setMaxUnionColumns(int maxUnionColumns) {
+    this.maxUnionColumns = maxUnionColumns;
+  }
+
+  /** A candidate sample with its estimated size. */
+  private static class Candidate {
+    private final Sample sample;
+    private final double bytes;
+
+    Candidate(Sample sample, double bytes) {
+      this.sample = sample;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * @param stats group statistics of each query
+   * @param perQuerySamples samples chosen for each query in isolation
+   * @param budget storage budget in bytes
+   * @return samples to create, within the budget
+   */
+  public List<Sample> optimize(
+      String database,
+      Map<Query, Stat> stats,
+      List<Sample> perQuerySamples,
+      PrejoinIndex prejoins,
+      double budget) {
+    List<Candidate> candidates = new ArrayList<>();
+    try {
+      for (Sample s : perQuerySamples) {
+        Stat stat = stats.get(s.getQuery());
+        if (stat == null) {
+          continue;
+        }
+        double rows =
+            s.getType() == Sample.Type.UNIFORM
+                ? s.getRatio() * stat.getPopulationSize()
+                : stat.getTargetSampleSize();
+        candidates.add(new Candidate(s, rows * this.getRowSize(s.getTable())));
+      }
+      candidates.addAll(this.getUnionCandidates(database, stats, prejoins));
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return perQuerySamples;
+    }
+
+    List<Query> queries = new ArrayList<>(stats.keySet());
+    double[] utilities = new double[queries.size()];
+    List<Candidate> selected = new ArrayList<>();
+    double used = 0;
+    while (true) {
+      Candidate best = null;
+      double bestGain = 0;
+      for (Candidate c : candidates) {
+        if (selected.contains(c) || used + c.bytes > budget) {
+          continue;
+        }
+        double gain = 0;
+        for (int i = 0; i < queries.size(); ++i) {
+          gain += Math.max(0, getUtility(c.sample, queries.get(i), stats) - utilities[i]);
+        }
+        double gainPerByte = gain / Math.max(1, c.bytes);
+        if (gain > 0 && (best == null || gainPerByte > bestGain)) {
+          best = c;
+          bestGain = gainPerByte;
+        }
+      }
+      if (best == null) {
+        break;
+      }
+      selected.add(best);
+      used += best.bytes;
+      for (int i = 0; i < queries.size(); ++i) {
+        utilities[i] = Math.max(utilities[i], getUtility(best.sample, queries.get(i), stats));
+      }
+    }
+
+    List<Sample> samples = new ArrayList<>();
+    for (Candidate c : selected) {
+      for (Query q : queries) {
+        if (getUtility(c.sample, q, stats) > 0) {
+          c.sample.addQuery(q);
+        }
+      }
+      if (c.sample.getType() != Sample.Type.UNIFORM && !stats.containsKey(c.sample.getQuery())) {
+        // stratified samples are built from the exact stat table of their column set
+        if (tool.getGroupCountAndSize(database, c.sample.getQuery(), prejoins, null) == null) {
+          continue;
+        }
+      }
+      samples.add(c.sample);
+    }
+
+    int covered = 0;
+    double totalUtility = 0;
+    for (double utility : utilities) {
+      if (utility > 0) ++covered;
+      totalUtility += utility;
+    }
+    System.out.println(
+        String.format(
+            "Selected %d of %d candidate samples (%.2f MB of %.2f MB), covering %d of %d queries "
+                + "with total utility %.2f",
+            selected.size(),
+            candidates.size(),
+            used / 1024 / 1024,
+            budget / 1024 / 1024,
+            covered,
+            queries.size(),
+            totalUtility));
+    for (Sample s : samples) {
+      System.out.println("\t" + s.toString());
+    }
+    return samples;
+  }
+
+  /**
+   * @return stratified samples on the union of column sets of two overlapping queries, with sizes
+   *     estimated from the distinct count of each union, which are counted together in one scan
+   *     of each source table
+   */
+  private List<Candidate> getUnionCandidates(
+      String database, Map<Query, Stat> stats, PrejoinIndex prejoins) throws SQLException {
+    List<Query> queries = new ArrayList<>(stats.keySet());
+    Collections.sort(queries);
+    Set<Set<String>> seen = new HashSet<>();
+    for (Query q : queries) {
+      seen.add(new TreeSet<>(q.getQueryColumnSet()));
+    }
+
+    // source table -> unions to estimate on it
+    Map<String, List<Query>> unionsBySource = new TreeMap<>();
+    for (int i = 0; i < queries.size(); ++i) {
+      for (int j = i + 1; j < queries.size(); ++j) {
+        Query q1 = queries.get(i);
+        Query q2 = queries.get(j);
+        if (q1.getFactTable() == null || !q1.getFactTable().equals(q2.getFactTable())) {
+          continue;
+        }
+        if (Collections.disjoint(q1.getQueryColumnSet(), q2.getQueryColumnSet())) {
+          continue;
+        }
+        TreeSet<String> columns = new TreeSet<>(q1.getQueryColumnSet());
+        columns.addAll(q2.getQueryColumnSet());
+        if (columns.size() > maxUnionColumns || !seen.add(columns)) {
+          // too wide, or the same as a query or another union
+          continue;
+        }
+
+        Query union = getUnionQuery(q1, q2);
+        String source = tool.getStatSourceTable(database, union, prejoins);
+        if (source == null || source.isEmpty()) {
+          continue;
+        }
+        if (!unionsBySource.containsKey(source)) {
+          unionsBySource.put(source, new ArrayList<Query>());
+        }
+        unionsBySource.get(source).add(union);
+      }
+    }
+
+    double s0 = Math.pow(DatabaseTool.Z, 2) * 0.25 / Math.pow(DatabaseTool.E, 2);
+    List<Candidate> candidates = new ArrayList<>();
+    for (Map.Entry<String, List<Query>> entry : unionsBySource.entrySet()) {
+      List<Query> unions = entry.getValue();
+      for (int from = 0; from < unions.size(); from += UNION_BATCH_SIZE) {
+        List<Query> batch = unions.subList(from, Math.min(from + UNION_BATCH_SIZE, unions.size()));
+        List<Set<String>> columnSets = new ArrayList<>();
+        for (Query union : batch) {
+          columnSets.add(union.getQueryColumnSet());
+        }
+        long[] counts = tool.countDistinct(entry.getKey(), columnSets);
+        long populationSize = counts[0];
+        for (int i = 0; i < batch.size(); ++i) {
+          long groupCount = counts[i + 1];
+          if (groupCount <= 0) {
+            continue;
+          }
+          // assuming groups of equal size, which overestimates the size of skewed samples
+          double avgGroupSize = (double) populationSize / groupCount;
+          double targetSampleSize = groupCount * (avgGroupSize * s0) / (avgGroupSize + s0 - 1);
+          if (targetSampleSize >= populationSize) {
+            continue;
+          }
+          Query union = batch.get(i);
+          Sample s =
+              new Sample(
+                  union,
+                  Sample.Type.STRATIFIED,
+                  union.getFactTable(),
+                  union.getJoinedTables(),
+                  union.getQueryColumnSet());
+          s.setZ(DatabaseTool.Z);
+          s.setE(DatabaseTool.E);
+          candidates.add(new Candidate(s, targetSampleSize * this.getRowSize(s.getTable())));
+        }
+      }
+    }
+    return candidates;
+  }
+
+  private static Query getUnionQuery(Query q1, Query q2) {
+    List<String> columns = new ArrayList<>(q1.getQueryColumnSet());
+    columns.addAll(q2.getQueryColumnSet());
+    List<String> tables = new ArrayList<>(q1.getJoinedTables());
+    tables.addAll(q2.getJoinedTables());
+    List<Pair<String, String>> joinColumns = new ArrayList<>();
+    for (ColumnPair pair : q1.getJoinColumns()) {
+      joinColumns.add(ImmutablePair.of(pair.getLeft(), pair.getRight()));
+    }
+    for (ColumnPair pair : q2.getJoinColumns()) {
+      joinColumns.add(ImmutablePair.of(pair.getLeft(), pair.getRight()));
+    }
+    return new Query(
+        q1.getId() + "u" + q2.getId(),
+        new ArrayList<>(new TreeSet<>(columns)),
+        new ArrayList<>(new TreeSet<>(tables)),
+        joinColumns);
+  }
+
+  /** @return the utility of a sample for a query, or 0 if it cannot answer the query */
+  private double getUtility(Sample s, Query q, Map<Query, Stat> stats) {
+    if (q.getFactTable() == null || !q.getFactTable().equals(s.getTable())) {
+      return 0;
+    }
+    if (s.getType() == Sample.Type.UNIFORM) {
+      double error = SampleSelector.predictUniformError(s.getRatio(), stats.get(q));
+      return Math.min(1.0, s.getE() / error);
+    }
+    if (!s.getColumns().containsAll(q.getQueryColumnSet())) {
+      return 0;
+    }
+    // finer strata are only scaled by a sample query rewritten for them
+    return s.isStratifiedOn(q) || tool.hasScaledSampleQuery(s, q) ? 1.0 : 0;
+  }
+
+  private double getRowSize(String table) throws SQLException {
+    Double size = rowSizes.get(table);
+    if (size == null) {
+      size = tool.getAverageRowSize(table);
+      rowSizes.put(table, size);
+    }
+    return size;
+  }
+}
@@ -0,0 +1,127 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes rows sampled on the client into a sample table.
+ *
+ * <p>Rows are first inserted in batches into a text staging table and then copied into the parquet
+ * sample table with a single INSERT OVERWRITE, so the sample table does not end up with one small
+ * file per batch.
+ */
+public class SampleTableWriter {
+
+  private static final int DEFAULT_BATCH_SIZE = 5000;
+  private static final String STAGING_SUFFIX = "__staging";
+
+  private final Connection conn;
+  private final SqlDialect dialect;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  public SampleTableWriter(Connection conn) {
+    this.conn = conn;
+    this.dialect = SqlDialect.of(conn);
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @param database database of the sample table
+   * @param table name of the sample table, which must already exist
+   * @param columns names of the columns in each row
+   * @param rows sampled rows
+   */
+  public void write(String database, String table, List<String> columns, List<Object[]> rows)
+      throws SQLException {
+    final String stagingTable = table + STAGING_SUFFIX;
+    final List<String> types = this.getColumnTypes(database, table, columns);
+    final String columnList = Joiner.on(",").join(columns);
+
+    conn.createStatement()
+        .execute(String.format("DROP TABLE IF EXISTS %s.%s", database, stagingTable));
+    conn.createStatement()
+        .execute(
+            dialect.createStagingTableLike(database + "." + stagingTable, database + "." + table));
+
+    List<String> values = new ArrayList<>();
+    for (Object[] row : rows) {
+      values.add(toValues(row, types));
+      if (values.size() >= batchSize) {
+        insert(database, stagingTable, columnList, values);
+        values.clear();
+      }
+    }
+    if (!values.isEmpty()) {
+      insert(database, stagingTable, columnList, values);
+    }
+
+    final String selectSql =
+        String.format("SELECT %s FROM %s.%s", columnList, database, stagingTable);
+    for (String insertSql : dialect.insertOverwrite(database + "." + table, columns, selectSql)) {
+      System.err.println(String.format("Executing: %s", insertSql));
+      conn.createStatement().execute(insertSql);
+    }
+    conn.createStatement()
+        .execute(String.format("DROP TABLE IF EXISTS %s.%s", database, stagingTable));
+  }
+
+  private void insert(String database, String table, String columnList, List<String> values)
+      throws SQLException {
+    conn.createStatement()
+        .execute(
+            String.format(
+                "INSERT INTO %s.%s (%s) VALUES %s",
+                database, table, columnList, Joiner.on(",").join(values)));
+  }
+
+  private List<String> getColumnTypes(String database, String table, List<String> columns)
+      throws SQLException {
+    List<String> names = new ArrayList<>();
+    List<String> types = new ArrayList<>();
+    ResultSet rs =
+        conn.createStatement().executeQuery(dialect.describe(database + "." + table));
+    while (rs.next()) {
+      names.add(rs.getString(1).toLowerCase());
+      types.add(rs.getString(2));
+    }
+    rs.close();
+
+    List<String> columnTypes = new ArrayList<>();
+    for (String column : columns) {
+      int idx = names.indexOf(column.toLowerCase());
+      if (idx < 0) {
+        throw new SQLException(String.format("Column %s does not exist in %s", column, table));
+      }
+      columnTypes.add(types.get(idx));
+    }
+    return columnTypes;
+  }
+
+  private static String toValues(Object[] row, List<String> types) {
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < row.length; ++i) {
+      items.add(String.format("CAST(%s AS %s)", toLiteral(row[i]), types.get(i)));
+    }
+    return "(" + Joiner.on(",").join(items) + ")";
+  }
+
+  public static String toLiteral(Object value) {
+    if (value == null) {
+      return "NULL";
+    } else if (value instanceof BigDecimal) {
+      return ((BigDecimal) value).toPlainString();
+    } else if (value instanceof Number || value instanceof Boolean) {
+      return value.toString();
+    }
+    return "'" + value.toString().replace("\\", "\\\\").replace("'", "\\'") + "'";
+  }
+}
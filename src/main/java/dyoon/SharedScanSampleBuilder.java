@@ -0,0 +1,233 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Builds a set of samples with a single scan per source table.
+ *
+ * <p>Samples are grouped by the table they are drawn from (a fact table or a prejoin), and every
+ * row of a source table is routed to the samplers of all samples in its group at the same time.
+ */
+public class SharedScanSampleBuilder {
+
+  private static final int FETCH_SIZE = 10000;
+
+  private final Connection conn;
+  private final SqlDialect dialect;
+  private final DatabaseTool tool;
+  private final Meta meta;
+
+  public SharedScanSampleBuilder(Connection conn, DatabaseTool tool) {
+    this.conn = conn;
+    this.dialect = SqlDialect.of(conn);
+    this.tool = tool;
+    this.meta = Meta.getInstance(conn);
+  }
+
+  /**
+   * Builds the given samples.
+   *
+   * @return samples that have been created successfully
+   */
+  public List<Sample> build(String database, List<Sample> samples) {
+    Map<String, List<Sample>> samplesBySource = new LinkedHashMap<>();
+    for (Sample s : samples) {
+      String source = this.getSourceTable(database, s);
+      if (source == null) {
+        continue;
+      }
+      List<Sample> list = samplesBySource.get(source);
+      if (list == null) {
+        list = new ArrayList<>();
+        samplesBySource.put(source, list);
+      }
+      list.add(s);
+    }
+
+    List<Sample> created = new ArrayList<>();
+    for (Map.Entry<String, List<Sample>> entry : samplesBySource.entrySet()) {
+      try {
+        this.build(database, entry.getKey(), entry.getValue(), created);
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    return created;
+  }
+
+  /**
+   * Builds the samples drawn from one source table, adding each to {@code created} as soon as it
+   * is written, so that a failure keeps the samples written before it.
+   */
+  private void build(String database, String source, List<Sample> samples, List<Sample> created)
+      throws SQLException {
+    Map<String, List<String>> factColumnsByTable = new HashMap<>();
+    List<String> scanColumns = new ArrayList<>();
+    for (Sample s : samples) {
+      String factTable = this.getFactTable(s);
+      if (!factColumnsByTable.containsKey(factTable)) {
+        List<String> factColumns = tool.getColumns(factTable);
+        factColumnsByTable.put(factTable, factColumns);
+        addAll(scanColumns, factColumns);
+      }
+      addAll(scanColumns, s.getColumns());
+    }
+
+    List<Sample> scanned = new ArrayList<>();
+    List<RowSampler> samplers = new ArrayList<>();
+    for (Sample s : samples) {
+      List<String> factColumns = factColumnsByTable.get(this.getFactTable(s));
+      RowSampler sampler = this.createSampler(s, scanColumns, factColumns);
+      if (sampler != null) {
+        scanned.add(s);
+        samplers.add(sampler);
+      }
+    }
+    if (samplers.isEmpty()) {
+      return;
+    }
+
+    String scanSql = String.format("SELECT %s FROM %s", Joiner.on(",").join(scanColumns), source);
+    System.err.println(
+        String.format("Streaming for %d sample(s): %s", samplers.size(), scanSql));
+    Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    stmt.setFetchSize(FETCH_SIZE);
+    ResultSet rs = stmt.executeQuery(scanSql);
+    int columnCount = scanColumns.size();
+    while (rs.next()) {
+      Object[] row = new Object[columnCount];
+      for (int i = 0; i < columnCount; ++i) {
+        row[i] = rs.getObject(i + 1);
+      }
+      for (RowSampler sampler : samplers) {
+        sampler.offer(row);
+      }
+    }
+    rs.close();
+    stmt.close();
+
+    SampleTableWriter writer = new SampleTableWriter(conn);
+    for (int i = 0; i < scanned.size(); ++i) {
+      Sample s = scanned.get(i);
+      RowSampler sampler = samplers.get(i);
+      String sampleTable = s.toString();
+      String factTable = this.getFactTable(s);
+      List<Object[]> sampledRows = sampler.getSampledRows();
+      System.out.println(
+          String.format(
+              "Sampled %d rows out of %d rows for %s",
+              sampledRows.size(), sampler.getRowCount(), sampleTable));
+
+      try {
+        conn.createStatement()
+            .execute(
+                dialect.createTableLike(database + "." + sampleTable, database + "." + factTable));
+        writer.write(database, sampleTable, factColumnsByTable.get(factTable), sampledRows);
+        String statsSql = dialect.computeStats(database + "." + sampleTable);
+        if (statsSql != null) {
+          conn.createStatement().execute(statsSql);
+        }
+        created.add(s);
+      } catch (SQLException e) {
+        // the other samples of the scan can still be written
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private RowSampler createSampler(Sample s, List<String> scanColumns, List<String> factColumns)
+      throws SQLException {
+    int[] outputIndexes = indexesOf(scanColumns, factColumns);
+    if (s.getType() == Sample.Type.UNIFORM) {
+      return new UniformSampler(outputIndexes, s.getRatio());
+    }
+
+    int[] keyIndexes = indexesOf(scanColumns, s.getColumns());
+    if (s.getType() == Sample.Type.STRATIFIED) {
+      String statTable = DatabaseTool.getStatTableName(s.getQuery().getId(), s.getZ(), s.getE());
+      if (!tool.checkTableExists(statTable)) {
+        System.out.println("Stat table does not exist: " + statTable);
+        return null;
+      }
+      return new StratifiedSampler(
+          keyIndexes, outputIndexes, this.getTargetGroupSampleSizes(statTable, s.getColumns()));
+    } else if (s.getType() == Sample.Type.STRATIFIED2) {
+      return new StratifiedSampler(keyIndexes, outputIndexes, s.getMinRow());
+    }
+    System.out.println("Unsupported sample type: " + s.toString());
+    return null;
+  }
+
+  private Map<String, Double> getTargetGroupSampleSizes(
+      String statTable, SortedSet<String> columns) throws SQLException {
+    Map<String, Double> targets = new HashMap<>();
+    ResultSet rs =
+        conn.createStatement()
+            .executeQuery(
+                String.format(
+                    "SELECT %s, target_group_sample_size FROM %s",
+                    Joiner.on(",").join(columns), statTable));
+    int keyCount = columns.size();
+    while (rs.next()) {
+      Object[] key = new Object[keyCount];
+      for (int i = 0; i < keyCount; ++i) {
+        key[i] = rs.getObject(i + 1);
+      }
+      targets.put(StratifiedSampler.getKey(key), rs.getDouble(keyCount + 1));
+    }
+    rs.close();
+    return targets;
+  }
+
+  /** Uniform samples are drawn from the fact table and stratified ones from their prejoin. */
+  private String getSourceTable(String database, Sample s) {
+    String source = this.getFactTable(s);
+    if (s.getType() != Sample.Type.UNIFORM && s.getJoinTables().size() > 1) {
+      Prejoin p = meta.getPrejoinForSample(database, s);
+      if (p == null) {
+        System.out.println("Prejoin required for sample does not exist: " + s.toString());
+        return null;
+      }
+      source = p.getName();
+    }
+    return source;
+  }
+
+  private String getFactTable(Sample s) {
+    if (s.getType() == Sample.Type.UNIFORM && s.getQuery() != null) {
+      return s.getQuery().getFactTable();
+    }
+    return s.getTable();
+  }
+
+  private static void addAll(List<String> list, Iterable<String> items) {
+    for (String item : items) {
+      if (!list.contains(item)) {
+        list.add(item);
+      }
+    }
+  }
+
+  private static int[] indexesOf(List<String> list, Iterable<String> items) {
+    List<Integer> indexes = new ArrayList<>();
+    for (String item : items) {
+      indexes.add(list.indexOf(item));
+    }
+    int[] result = new int[indexes.size()];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = indexes.get(i);
+    }
+    return result;
+  }
+}
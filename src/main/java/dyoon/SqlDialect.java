@@ -0,0 +1,120 @@
+package dyoon;
+
+import com.google.common.base.Joiner;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Generates the SQL that differs between the backends the tool runs on: creating and filling
+ * tables, table statistics and metadata, and a few functions.
+ *
+ * <p>Impala is the default backend. H2 runs in process and is meant for small local runs.
+ */
+public abstract class SqlDialect {
+
+  public static final String IMPALA = "impala";
+  public static final String H2 = "h2";
+
+  /** @return the dialect of a backend by name */
+  public static SqlDialect forBackend(String backend) {
+    if (backend.equalsIgnoreCase(IMPALA)) {
+      return new ImpalaDialect();
+    } else if (backend.equalsIgnoreCase(H2)) {
+      return new H2Dialect();
+    }
+    throw new IllegalArgumentException("Unsupported backend: " + backend);
+  }
+
+  /** @return the dialect of the database a connection is connected to */
+  public static SqlDialect of(Connection conn) {
+    try {
+      String product = conn.getMetaData().getDatabaseProductName();
+      if (product != null && product.toLowerCase().contains(H2)) {
+        return new H2Dialect();
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+    return new ImpalaDialect();
+  }
+
+  public abstract String getDriverClass();
+
+  /**
+   * @param host host (and port) of the server, or the directory of the database files for an
+   *     embedded backend
+   */
+  public abstract String getConnectionString(String host, String database);
+
+  public abstract String getStringType();
+
+  /** @return whether tables can be partitioned by a column */
+  public abstract boolean supportsPartitions();
+
+  public abstract String createTableAs(String table, String query);
+
+  /** @return a statement that creates an empty table with the columns of another, if missing */
+  public abstract String createTableLike(String table, String source);
+
+  /** Same as {@link #createTableLike}, for a table that is filled with many small inserts. */
+  public String createStagingTableLike(String table, String source) {
+    return this.createTableLike(table, source);
+  }
+
+  /**
+   * @param columns columns of the table the query fills, or null for all columns
+   * @return statements that replace the rows of a table with the result of a query
+   */
+  public abstract List<String> insertOverwrite(String table, List<String> columns, String query);
+
+  /** @return a statement that computes the table statistics, or null if there are none */
+  public abstract String computeStats(String table);
+
+  /**
+   * @return a query whose last row holds the row count, file count and size of a table, or null
+   *     if the backend does not keep them
+   */
+  public abstract String getTableStatsQuery(String table);
+
+  /** @return a query whose rows hold the name and type of each column of a table */
+  public abstract String describe(String table);
+
+  public abstract String addColumns(String table, String columnDefinitions);
+
+  /** @return a statement that sorts the rows of a table on write, or null if not supported */
+  public abstract String sortBy(String table, String columns);
+
+  /** @return an expression of the integer quotient of two expressions */
+  public abstract String quotient(String dividend, String divisor);
+
+  /** @return an expression of a random number in [0, 1) that differs across runs */
+  public abstract String seededRandom();
+
+  /** @return an aggregate expression of the number of distinct combinations of the columns */
+  public String countDistinct(Collection<String> columns) {
+    return String.format("count(DISTINCT %s)", this.combine(columns));
+  }
+
+  /**
+   * @return an expression that is distinct for distinct combinations of the columns, or nulls. Each
+   *     value is prefixed with its length, and a null is 'N', so no two combinations collide
+   *     whatever characters the values hold.
+   */
+  protected String combine(Collection<String> columns) {
+    List<String> values = new ArrayList<>();
+    for (String column : columns) {
+      String value = String.format("cast(%s AS %s)", column, this.getStringType());
+      values.add(
+          String.format(
+              "CASE WHEN %s IS NULL THEN 'N' ELSE concat(cast(length(%s) AS %s), ':', %s) END",
+              column, value, this.getStringType(), value));
+    }
+    return values.size() == 1
+        ? values.get(0)
+        : String.format("concat(%s)", Joiner.on(", ").join(values));
+  }
+}
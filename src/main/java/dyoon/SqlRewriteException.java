@@ -0,0 +1,10 @@
+package dyoon;
+
+/** Thrown when a query cannot be parsed or rewritten into a sample query. */
+public class SqlRewriteException extends Exception {
+  private static final long serialVersionUID = -2171950937326532906L;
+
+  public SqlRewriteException(String message) {
+    super(message);
+  }
+}
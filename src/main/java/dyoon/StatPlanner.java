@@ -0,0 +1,93 @@
+package dyoon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans the order in which stat tables are computed so that they form a lattice of query column
+ * sets per source table (fact table or prejoin).
+ *
+ * <p>Only a query whose QCS is maximal among the queries on the same source scans the source
+ * table. Every other query gets a parent: the query with the smallest QCS that contains its QCS,
+ * whose stat table is then re-aggregated instead of the source table.
+ */
+public class StatPlanner {
+
+  private final DatabaseTool tool;
+
+  public StatPlanner(DatabaseTool tool) {
+    this.tool = tool;
+  }
+
+  /**
+   * @return queries in the order their stats should be computed, each mapped to the query whose
+   *     stat table it can be derived from, or to null if it must scan its source table
+   */
+  public Map<Query, Query> plan(String database, List<Query> queries, PrejoinIndex prejoins) {
+    Map<String, List<Query>> queriesBySource = new LinkedHashMap<>();
+    for (Query q : queries) {
+      if (q.getQueryColumnSet().isEmpty()) {
+        continue;
+      }
+      String source = tool.getStatSourceTable(database, q, prejoins);
+      List<Query> list = queriesBySource.get(source);
+      if (list == null) {
+        list = new ArrayList<>();
+        queriesBySource.put(source, list);
+      }
+      list.add(q);
+    }
+
+    Map<Query, Query> plan = new LinkedHashMap<>();
+    for (Map.Entry<String, List<Query>> entry : queriesBySource.entrySet()) {
+      List<Query> list = entry.getValue();
+      if (entry.getKey().isEmpty()) {
+        // no source available; getGroupCountAndSize reports it
+        for (Query q : list) {
+          plan.put(q, null);
+        }
+        continue;
+      }
+
+      // larger column sets first, so that a parent is always computed before its children
+      Collections.sort(
+          list,
+          new Comparator<Query>() {
+            @Override
+            public int compare(Query o1, Query o2) {
+              int compare = o2.getQueryColumnSet().size() - o1.getQueryColumnSet().size();
+              if (compare != 0) return compare;
+              return o1.compareTo(o2);
+            }
+          });
+
+      List<Query> planned = new ArrayList<>();
+      int roots = 0;
+      for (Query q : list) {
+        Query parent = null;
+        for (Query candidate : planned) {
+          if (candidate.getQueryColumnSet().containsAll(q.getQueryColumnSet())) {
+            if (parent == null
+                || candidate.getQueryColumnSet().size() < parent.getQueryColumnSet().size()) {
+              parent = candidate;
+            }
+          }
+        }
+        if (parent == null) {
+          ++roots;
+        }
+        plan.put(q, parent);
+        planned.add(q);
+      }
+      System.out.println(
+          String.format(
+              "Stat plan for %s: %d queries, %d scan(s) of the source table",
+              entry.getKey(), list.size(), roots));
+    }
+    return plan;
+  }
+}
@@ -0,0 +1,166 @@
+package dyoon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A single-pass stratified sampler that keeps a reservoir per stratum.
+ *
+ * <p>It produces the same kind of sample as the window-function INSERT in {@link DatabaseTool}:
+ * each stratum keeps a uniformly chosen set of {@code target} rows, and every other row of the
+ * stratum is kept with probability {@code (target / 20) / groupsize}. Since the group size is only
+ * known at the end of the scan, a rejected row is kept as a tail candidate when its coin is below
+ * {@code (target / 20) / seen} and the candidates are filtered again with the final group size.
+ */
+public class StratifiedSampler implements RowSampler {
+
+  private static final double TAIL_DIVISOR = 20.0;
+  private static final String KEY_SEPARATOR = "\u0001";
+  private static final String NULL_KEY = "\u0000";
+
+  private final int[] keyIndexes;
+  private final int[] outputIndexes;
+  private final Map<String, Double> targets;
+  private final double fixedTarget;
+  private final Map<String, Stratum> strata;
+  private final Random random;
+
+  private long rowCount = 0;
+
+  /**
+   * @param keyIndexes positions of the stratification (QCS) columns in an offered row
+   * @param outputIndexes positions of the columns that are kept in a sampled row
+   * @param targets target sample size per stratum key; strata without a target are dropped
+   */
+  public StratifiedSampler(int[] keyIndexes, int[] outputIndexes, Map<String, Double> targets) {
+    this(keyIndexes, outputIndexes, targets, 0);
+  }
+
+  /**
+   * @param keyIndexes positions of the stratification (QCS) columns in an offered row
+   * @param outputIndexes positions of the columns that are kept in a sampled row
+   * @param fixedTarget target sample size used for every stratum (e.g., stratified2)
+   */
+  public StratifiedSampler(int[] keyIndexes, int[] outputIndexes, double fixedTarget) {
+    this(keyIndexes, outputIndexes, null, fixedTarget);
+  }
+
+  private StratifiedSampler(
+      int[] keyIndexes, int[] outputIndexes, Map<String, Double> targets, double fixedTarget) {
+    this.keyIndexes = keyIndexes;
+    this.outputIndexes = outputIndexes;
+    this.targets = targets;
+    this.fixedTarget = fixedTarget;
+    this.strata = new HashMap<>();
+    this.random = new Random();
+  }
+
+  public static String getKey(Object[] values) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < values.length; ++i) {
+      if (i > 0) sb.append(KEY_SEPARATOR);
+      sb.append(values[i] == null ? NULL_KEY : values[i].toString());
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void offer(Object[] row) {
+    Object[] keyValues = new Object[keyIndexes.length];
+    for (int i = 0; i < keyIndexes.length; ++i) {
+      keyValues[i] = row[keyIndexes[i]];
+    }
+    String key = getKey(keyValues);
+
+    Stratum stratum = strata.get(key);
+    if (stratum == null) {
+      double target = fixedTarget;
+      if (targets != null) {
+        Double t = targets.get(key);
+        if (t == null) {
+          // same as the inner join with the stat table
+          return;
+        }
+        target = t;
+      }
+      stratum = new Stratum(target);
+      strata.put(key, stratum);
+    }
+    stratum.offer(row);
+    ++rowCount;
+  }
+
+  @Override
+  public List<Object[]> getSampledRows() {
+    List<Object[]> rows = new ArrayList<>();
+    for (Stratum stratum : strata.values()) {
+      stratum.collect(rows);
+    }
+    return rows;
+  }
+
+  @Override
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  public int getStratumCount() {
+    return strata.size();
+  }
+
+  private Object[] project(Object[] row) {
+    Object[] projected = new Object[outputIndexes.length];
+    for (int i = 0; i < outputIndexes.length; ++i) {
+      projected[i] = row[outputIndexes[i]];
+    }
+    return projected;
+  }
+
+  private class Stratum {
+    private final int capacity;
+    private final double tailSize;
+    private final List<Object[]> reservoir;
+    private final List<Object[]> tail;
+    private final List<Double> tailCoins;
+    private long seen = 0;
+
+    Stratum(double target) {
+      this.capacity = (int) Math.floor(target);
+      this.tailSize = target / TAIL_DIVISOR;
+      this.reservoir = new ArrayList<>();
+      this.tail = new ArrayList<>();
+      this.tailCoins = new ArrayList<>();
+    }
+
+    void offer(Object[] row) {
+      ++seen;
+      if (reservoir.size() < capacity) {
+        reservoir.add(project(row));
+        return;
+      }
+      Object[] rejected = null;
+      long j = (long) (random.nextDouble() * seen);
+      if (j < capacity) {
+        rejected = reservoir.set((int) j, project(row));
+      }
+      double coin = random.nextDouble();
+      if (coin < tailSize / seen) {
+        tail.add(rejected != null ? rejected : project(row));
+        tailCoins.add(coin);
+      }
+    }
+
+    void collect(List<Object[]> rows) {
+      rows.addAll(reservoir);
+      double p = tailSize / seen;
+      for (int i = 0; i < tail.size(); ++i) {
+        if (tailCoins.get(i) < p) {
+          rows.add(tail.get(i));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package dyoon;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * The totals of the table stats of a table, e.g., of SHOW TABLE STATS in Impala. Columns are looked
+ * up by their labels, as the stats of a partitioned table start with its partition keys, and the
+ * totals are in the last row.
+ */
+public class TableStats {
+
+  private static final String ROWS = "#Rows";
+  private static final String FILES = "#Files";
+  private static final String SIZE = "Size";
+
+  private final long rowCount;
+  private final long fileCount;
+  private final String size;
+
+  private TableStats(long rowCount, long fileCount, String size) {
+    this.rowCount = rowCount;
+    this.fileCount = fileCount;
+    this.size = size;
+  }
+
+  /**
+   * @return the totals of the table stats of a table, or null if the backend keeps no table stats
+   * @throws SQLException if the table has no table stats, e.g., as it is a view
+   */
+  public static TableStats read(Connection conn, SqlDialect dialect, String table)
+      throws SQLException {
+    String statsQuery = dialect.getTableStatsQuery(table);
+    if (statsQuery == null) {
+      return null;
+    }
+    ResultSet rs = conn.createStatement().executeQuery(statsQuery);
+    try {
+      ResultSetMetaData meta = rs.getMetaData();
+      int rowsColumn = findColumn(meta, ROWS);
+      int filesColumn = findColumn(meta, FILES);
+      int sizeColumn = findColumn(meta, SIZE);
+      TableStats stats = null;
+      while (rs.next()) {
+        stats =
+            new TableStats(
+                rs.getLong(rowsColumn), rs.getLong(filesColumn), rs.getString(sizeColumn));
+      }
+      if (stats == null) {
+        throw new SQLException("No table stats of " + table);
+      }
+      return stats;
+    } finally {
+      rs.close();
+    }
+  }
+
+  private static int findColumn(ResultSetMetaData meta, String label) throws SQLException {
+    for (int i = 1; i <= meta.getColumnCount(); ++i) {
+      if (meta.getColumnLabel(i).equalsIgnoreCase(label)) {
+        return i;
+      }
+    }
+    throw new SQLException("Table stats have no column " + label);
+  }
+
+  /** @return the number of rows, or -1 if the stats have not been computed */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  public long getFileCount() {
+    return fileCount;
+  }
+
+  /** @return the size as shown by the backend, e.g., 1.23GB */
+  public String getSize() {
+    return size;
+  }
+
+  /** @return the size in bytes */
+  public double getBytes() {
+    String[] units = {"TB", "GB", "MB", "KB", "B"};
+    String s = size.trim().toUpperCase();
+    for (int i = 0; i < units.length; ++i) {
+      if (s.endsWith(units[i])) {
+        double value = Double.parseDouble(s.substring(0, s.length() - units[i].length()).trim());
+        return value * Math.pow(1024, units.length - 1 - i);
+      }
+    }
+    return Double.parseDouble(s);
+  }
+}
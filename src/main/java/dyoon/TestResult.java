@@ -0,0 +1,146 @@
+package dyoon;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+import java.util.TreeMap;
+
+/** The outcome of testing a sample against a query. */
+public class TestResult implements Serializable {
+  private static final long serialVersionUID = 2293460436014818315L;
+
+  private String queryId;
+  private String sample;
+  private double missingGroupRatio;
+  private double avgPercentError;
+  private double origTimeTaken; // ms
+  private double sampleTimeTaken; // ms
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Long origGroupCount;
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Long sampleGroupCount;
+
+  // relative errors per aggregate column; only filled by the streaming evaluation
+  @JsonInclude(JsonInclude.Include.NON_EMPTY)
+  private TreeMap<String, ColumnError> columnErrors = new TreeMap<>();
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private String error;
+
+  /** Relative error statistics of an aggregate column over all groups. */
+  public static class ColumnError implements Serializable {
+    private static final long serialVersionUID = -1640391817302516573L;
+
+    private double avg;
+    private double max;
+    private double p50;
+    private double p90;
+    private double p99;
+
+    public ColumnError() {}
+
+    public ColumnError(double avg, double max, double p50, double p90, double p99) {
+      this.avg = avg;
+      this.max = max;
+      this.p50 = p50;
+      this.p90 = p90;
+      this.p99 = p99;
+    }
+
+    public double getAvg() {
+      return avg;
+    }
+
+    public double getMax() {
+      return max;
+    }
+
+    public double getP50() {
+      return p50;
+    }
+
+    public double getP90() {
+      return p90;
+    }
+
+    public double getP99() {
+      return p99;
+    }
+  }
+
+  public TestResult() {}
+
+  public TestResult(
+      String queryId,
+      String sample,
+      double missingGroupRatio,
+      double avgPercentError,
+      double origTimeTaken,
+      double sampleTimeTaken) {
+    this.queryId = queryId;
+    this.sample = sample;
+    this.missingGroupRatio = missingGroupRatio;
+    this.avgPercentError = avgPercentError;
+    this.origTimeTaken = origTimeTaken;
+    this.sampleTimeTaken = sampleTimeTaken;
+  }
+
+  public static TestResult failed(String queryId, String sample, String error) {
+    TestResult result = new TestResult();
+    result.queryId = queryId;
+    result.sample = sample;
+    result.error = error;
+    return result;
+  }
+
+  public String getQueryId() {
+    return queryId;
+  }
+
+  public String getSample() {
+    return sample;
+  }
+
+  public double getMissingGroupRatio() {
+    return missingGroupRatio;
+  }
+
+  public double getAvgPercentError() {
+    return avgPercentError;
+  }
+
+  public double getOrigTimeTaken() {
+    return origTimeTaken;
+  }
+
+  public double getSampleTimeTaken() {
+    return sampleTimeTaken;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public Long getOrigGroupCount() {
+    return origGroupCount;
+  }
+
+  public Long getSampleGroupCount() {
+    return sampleGroupCount;
+  }
+
+  public void setGroupCounts(long origGroupCount, long sampleGroupCount) {
+    this.origGroupCount = origGroupCount;
+    this.sampleGroupCount = sampleGroupCount;
+  }
+
+  public TreeMap<String, ColumnError> getColumnErrors() {
+    return columnErrors;
+  }
+
+  public void setColumnErrors(TreeMap<String, ColumnError> columnErrors) {
+    this.columnErrors = columnErrors;
+  }
+}
@@ -0,0 +1,49 @@
+package dyoon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** A Bernoulli sampler that keeps each offered row with a fixed probability. */
+public class UniformSampler implements RowSampler {
+
+  private final int[] outputIndexes;
+  private final double ratio;
+  private final List<Object[]> rows;
+  private final Random random;
+
+  private long rowCount = 0;
+
+  /**
+   * @param outputIndexes positions of the columns that are kept in a sampled row
+   * @param ratio probability of keeping a row
+   */
+  public UniformSampler(int[] outputIndexes, double ratio) {
+    this.outputIndexes = outputIndexes;
+    this.ratio = ratio;
+    this.rows = new ArrayList<>();
+    this.random = new Random();
+  }
+
+  @Override
+  public void offer(Object[] row) {
+    ++rowCount;
+    if (random.nextDouble() < ratio) {
+      Object[] projected = new Object[outputIndexes.length];
+      for (int i = 0; i < outputIndexes.length; ++i) {
+        projected[i] = row[outputIndexes[i]];
+      }
+      rows.add(projected);
+    }
+  }
+
+  @Override
+  public List<Object[]> getSampledRows() {
+    return rows;
+  }
+
+  @Override
+  public long getRowCount() {
+    return rowCount;
+  }
+}
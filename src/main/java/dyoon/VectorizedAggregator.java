@@ -0,0 +1,770 @@
+package dyoon;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Answers the filter, group-by and aggregate shape of a query over the column vectors of a sample
+ * in the JVM.
+ *
+ * <p>The groups of a query are its group-by columns ({@link Query#getGroupByColumns()}). Each item
+ * of the SELECT list must be a group-by column or a SUM, AVG or COUNT of a column or of {@code *},
+ * and each group gets the estimate of every such aggregate, each row counting as its weight. The
+ * WHERE clause must be a conjunction of predicates that compare one column with literals
+ * (comparisons, BETWEEN, IN, LIKE and IS NULL); equality between two columns is taken as a join
+ * condition that holds in a sample of the joined tables. A predicate is evaluated once per distinct
+ * value of its column, so rows are filtered by looking up their codes.
+ *
+ * <p>Rows are processed in batches: the filters narrow a selection vector of row positions, the
+ * codes of the group-by columns of the selected rows are combined into group keys, and the
+ * aggregates are then accumulated in tight loops over the selection.
+ */
+public class VectorizedAggregator {
+
+  private static final int BATCH_SIZE = 1024;
+  // largest product of group-by cardinalities whose groups are indexed by an array
+  private static final long DENSE_GROUP_LIMIT = 1 << 20;
+
+  private final List<String> groupBy = new ArrayList<>();
+  private final List<String> aggColumns = new ArrayList<>();
+  private final List<Aggregate> aggregates = new ArrayList<>();
+  private final Set<String> joinColumns = new LinkedHashSet<>();
+  private final List<Filter> filters = new ArrayList<>();
+
+  /** @throws SqlRewriteException if the query is not a shape the aggregator can answer */
+  public VectorizedAggregator(Query q) throws SqlRewriteException {
+    for (String column : q.getGroupByColumns()) {
+      groupBy.add(column.toLowerCase());
+    }
+    SqlParser.QueryContext query = SampleQueryRewriter.parse(q.getQuery()).query();
+    if (query.queryTerm().size() != 1 || query.queryTerm(0).querySpecification() == null) {
+      throw new SqlRewriteException("Only a single SELECT block is supported");
+    }
+    SqlParser.QuerySpecificationContext spec = query.queryTerm(0).querySpecification();
+    if (spec.havingClause() != null) {
+      throw new SqlRewriteException("HAVING is not supported");
+    }
+    for (int i = 0; i < spec.selectItem().size(); ++i) {
+      this.addSelectItem(spec.selectItem(i), i);
+    }
+    if (spec.whereClause() != null) {
+      List<SqlParser.BooleanExpressionContext> conjuncts = new ArrayList<>();
+      addConjuncts(spec.whereClause().expression().booleanExpression(), conjuncts);
+      for (SqlParser.BooleanExpressionContext conjunct : conjuncts) {
+        this.addPredicate(conjunct);
+      }
+    }
+  }
+
+  /** @return columns that are grouped by or filtered on, which must be dictionary encoded */
+  public Set<String> getEncodedColumns() {
+    Set<String> columns = new LinkedHashSet<>(groupBy);
+    for (Filter filter : filters) {
+      columns.add(filter.column);
+    }
+    return columns;
+  }
+
+  /** @return columns that are aggregated, which must hold numeric values */
+  public Set<String> getValueColumns() {
+    return new LinkedHashSet<>(aggColumns);
+  }
+
+  /** @return columns of join conditions, which a sample of the joined tables has */
+  public Set<String> getJoinColumns() {
+    return joinColumns;
+  }
+
+  /** @return the aggregates of the SELECT list, in its order */
+  public List<Aggregate> getAggregates() {
+    return aggregates;
+  }
+
+  private void addSelectItem(SqlParser.SelectItemContext item, int position)
+      throws SqlRewriteException {
+    if (!(item instanceof SqlParser.SelectSingleContext)) {
+      throw new SqlRewriteException("SELECT * is not supported");
+    }
+    SqlParser.ExpressionContext e = ((SqlParser.SelectSingleContext) item).expression();
+    SqlParser.IdentifierContext alias = ((SqlParser.SelectSingleContext) item).identifier();
+    String grouped = getColumn(e);
+    if (grouped != null) {
+      if (!groupBy.contains(grouped)) {
+        throw new SqlRewriteException("Column is neither aggregated nor grouped: " + grouped);
+      }
+      return;
+    }
+    SqlParser.PrimaryExpressionContext primary = getPrimary(e.booleanExpression());
+    if (!(primary instanceof SqlParser.FunctionCallContext)) {
+      throw new SqlRewriteException("Unsupported SELECT item: " + e.getText());
+    }
+    SqlParser.FunctionCallContext call = (SqlParser.FunctionCallContext) primary;
+    Aggregate.Function function;
+    try {
+      function = Aggregate.Function.valueOf(call.qualifiedName().getText().toUpperCase());
+    } catch (IllegalArgumentException ex) {
+      throw new SqlRewriteException("Unsupported aggregate: " + e.getText());
+    }
+    if (call.over() != null
+        || (call.setQuantifier() != null && call.setQuantifier().DISTINCT() != null)) {
+      throw new SqlRewriteException("Unsupported aggregate: " + e.getText());
+    }
+    String column = null;
+    if (call.ASTERISK() == null) {
+      column = call.expression().size() == 1 ? getColumn(call.expression(0)) : null;
+      if (column == null) {
+        throw new SqlRewriteException("Aggregate is not over a column: " + e.getText());
+      }
+    } else if (function != Aggregate.Function.COUNT) {
+      throw new SqlRewriteException("Unsupported aggregate: " + e.getText());
+    }
+    int valueIndex = -1;
+    if (column != null) {
+      if (!aggColumns.contains(column)) {
+        aggColumns.add(column);
+      }
+      valueIndex = aggColumns.indexOf(column);
+    }
+    aggregates.add(
+        new Aggregate(
+            alias != null ? alias.getText().replace("`", "").toLowerCase() : null,
+            position,
+            function,
+            column,
+            valueIndex));
+  }
+
+  private static void addConjuncts(
+      SqlParser.BooleanExpressionContext e, List<SqlParser.BooleanExpressionContext> conjuncts) {
+    SqlParser.PrimaryExpressionContext primary = getPrimary(e);
+    if (primary instanceof SqlParser.ParenthesizedExpressionContext) {
+      addConjuncts(
+          ((SqlParser.ParenthesizedExpressionContext) primary).expression().booleanExpression(),
+          conjuncts);
+      return;
+    }
+    List<SqlParser.BooleanExpressionContext> parts = new ArrayList<>();
+    SampleQueryRewriter.addConjuncts(e, parts);
+    if (parts.size() == 1) {
+      conjuncts.add(e);
+      return;
+    }
+    for (SqlParser.BooleanExpressionContext part : parts) {
+      addConjuncts(part, conjuncts);
+    }
+  }
+
+  /** @return the primary expression of a boolean expression without a predicate, or null */
+  private static SqlParser.PrimaryExpressionContext getPrimary(
+      SqlParser.BooleanExpressionContext e) {
+    if (!(e instanceof SqlParser.PredicatedContext)) {
+      return null;
+    }
+    SqlParser.PredicatedContext predicated = (SqlParser.PredicatedContext) e;
+    if (predicated.predicate() != null) {
+      return null;
+    }
+    return getPrimary(predicated.valueExpression());
+  }
+
+  private static SqlParser.PrimaryExpressionContext getPrimary(
+      SqlParser.ValueExpressionContext e) {
+    if (!(e instanceof SqlParser.ValueExpressionDefaultContext)) {
+      return null;
+    }
+    return ((SqlParser.ValueExpressionDefaultContext) e).primaryExpression();
+  }
+
+  private void addPredicate(SqlParser.BooleanExpressionContext conjunct)
+      throws SqlRewriteException {
+    if (!(conjunct instanceof SqlParser.PredicatedContext)
+        || ((SqlParser.PredicatedContext) conjunct).predicate() == null) {
+      throw new SqlRewriteException("Unsupported predicate: " + conjunct.getText());
+    }
+    SqlParser.PredicatedContext predicated = (SqlParser.PredicatedContext) conjunct;
+    String column = getColumn(predicated.valueExpression());
+    if (column == null) {
+      throw new SqlRewriteException("Predicate is not on a column: " + conjunct.getText());
+    }
+    SqlParser.PredicateContext predicate = predicated.predicate();
+
+    if (predicate instanceof SqlParser.ComparisonContext) {
+      SqlParser.ComparisonContext comparison = (SqlParser.ComparisonContext) predicate;
+      String other = getColumn(comparison.valueExpression());
+      if (other != null && comparison.comparisonOperator().EQ() != null) {
+        joinColumns.add(column);
+        joinColumns.add(other);
+        return;
+      }
+      filters.add(
+          new Filter(
+              column,
+              Filter.Kind.COMPARE,
+              comparison.comparisonOperator().getText(),
+              false,
+              Arrays.asList(getLiteral(comparison.valueExpression()))));
+    } else if (predicate instanceof SqlParser.BetweenContext) {
+      SqlParser.BetweenContext between = (SqlParser.BetweenContext) predicate;
+      filters.add(
+          new Filter(
+              column,
+              Filter.Kind.BETWEEN,
+              null,
+              between.NOT() != null,
+              Arrays.asList(
+                  getLiteral(between.valueExpression(0)), getLiteral(between.valueExpression(1)))));
+    } else if (predicate instanceof SqlParser.InListContext) {
+      SqlParser.InListContext in = (SqlParser.InListContext) predicate;
+      List<Object> literals = new ArrayList<>();
+      for (SqlParser.ExpressionContext e : in.expression()) {
+        if (!(e.booleanExpression() instanceof SqlParser.PredicatedContext)
+            || ((SqlParser.PredicatedContext) e.booleanExpression()).predicate() != null) {
+          throw new SqlRewriteException("IN list item is not a literal: " + e.getText());
+        }
+        literals.add(
+            getLiteral(((SqlParser.PredicatedContext) e.booleanExpression()).valueExpression()));
+      }
+      filters.add(new Filter(column, Filter.Kind.IN, null, in.NOT() != null, literals));
+    } else if (predicate instanceof SqlParser.LikeContext) {
+      SqlParser.LikeContext like = (SqlParser.LikeContext) predicate;
+      Object pattern = getLiteral(like.valueExpression());
+      filters.add(
+          new Filter(
+              column,
+              Filter.Kind.LIKE,
+              null,
+              like.NOT() != null,
+              Arrays.<Object>asList(toRegex(String.valueOf(pattern)))));
+    } else if (predicate instanceof SqlParser.NullPredicateContext) {
+      filters.add(
+          new Filter(
+              column,
+              Filter.Kind.NULL,
+              null,
+              ((SqlParser.NullPredicateContext) predicate).NOT() != null,
+              new ArrayList<Object>()));
+    } else {
+      throw new SqlRewriteException("Unsupported predicate: " + conjunct.getText());
+    }
+  }
+
+  /** @return the column name if the expression is a plain column reference, otherwise null */
+  private static String getColumn(SqlParser.ExpressionContext e) {
+    SqlParser.BooleanExpressionContext b = e.booleanExpression();
+    if (!(b instanceof SqlParser.PredicatedContext)
+        || ((SqlParser.PredicatedContext) b).predicate() != null) {
+      return null;
+    }
+    return getColumn(((SqlParser.PredicatedContext) b).valueExpression());
+  }
+
+  /** @return the column name if the expression is a plain column reference, otherwise null */
+  private static String getColumn(SqlParser.ValueExpressionContext e) {
+    SqlParser.PrimaryExpressionContext primary = getPrimary(e);
+    if (!(primary instanceof SqlParser.ColumnReferenceContext)) {
+      return null;
+    }
+    SqlParser.ColumnReferenceContext reference = (SqlParser.ColumnReferenceContext) primary;
+    return SampleQueryRewriter.getName(reference.qualifiedName());
+  }
+
+  /** @return a number as a Double, a string without its quotes, or null for NULL */
+  private static Object getLiteral(SqlParser.ValueExpressionContext e) throws SqlRewriteException {
+    if (e instanceof SqlParser.ArithmeticUnaryContext) {
+      SqlParser.ArithmeticUnaryContext unary = (SqlParser.ArithmeticUnaryContext) e;
+      Object value = getLiteral(unary.valueExpression());
+      if (!(value instanceof Double)) {
+        throw new SqlRewriteException("Sign of a non-numeric literal: " + e.getText());
+      }
+      return unary.MINUS() != null ? -(Double) value : value;
+    }
+    SqlParser.PrimaryExpressionContext primary = getPrimary(e);
+    if (primary instanceof SqlParser.NumericLiteralContext) {
+      return new BigDecimal(primary.getText()).doubleValue();
+    } else if (primary instanceof SqlParser.StringLiteralContext) {
+      StringBuilder sb = new StringBuilder();
+      for (org.antlr.v4.runtime.tree.TerminalNode string :
+          ((SqlParser.StringLiteralContext) primary).STRING()) {
+        String text = string.getText();
+        sb.append(text.substring(1, text.length() - 1).replaceAll("\\\\(.)", "$1"));
+      }
+      return sb.toString();
+    } else if (primary instanceof SqlParser.NullLiteralContext) {
+      return null;
+    } else if (primary instanceof SqlParser.CastContext) {
+      SqlParser.BooleanExpressionContext inner =
+          ((SqlParser.CastContext) primary).expression().booleanExpression();
+      if (inner instanceof SqlParser.PredicatedContext
+          && ((SqlParser.PredicatedContext) inner).predicate() == null) {
+        return getLiteral(((SqlParser.PredicatedContext) inner).valueExpression());
+      }
+    } else if (primary instanceof SqlParser.ParenthesizedExpressionContext) {
+      SqlParser.BooleanExpressionContext inner =
+          ((SqlParser.ParenthesizedExpressionContext) primary).expression().booleanExpression();
+      if (inner instanceof SqlParser.PredicatedContext
+          && ((SqlParser.PredicatedContext) inner).predicate() == null) {
+        return getLiteral(((SqlParser.PredicatedContext) inner).valueExpression());
+      }
+    }
+    throw new SqlRewriteException("Not a literal: " + e.getText());
+  }
+
+  private static Pattern toRegex(String pattern) {
+    StringBuilder sb = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for (char c : pattern.toCharArray()) {
+      if (c == '%' || c == '_') {
+        if (literal.length() > 0) {
+          sb.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        sb.append(c == '%' ? ".*" : ".");
+      } else {
+        literal.append(c);
+      }
+    }
+    if (literal.length() > 0) {
+      sb.append(Pattern.quote(literal.toString()));
+    }
+    return Pattern.compile(sb.toString(), Pattern.DOTALL);
+  }
+
+  /** A SUM, AVG or COUNT of the SELECT list. */
+  public static class Aggregate {
+    enum Function {
+      SUM,
+      AVG,
+      COUNT
+    }
+
+    private final String alias;
+    private final int position;
+    private final Function function;
+    private final String column;
+    // index of the column among the aggregated columns, or -1 for COUNT(*)
+    private final int valueIndex;
+
+    Aggregate(String alias, int position, Function function, String column, int valueIndex) {
+      this.alias = alias;
+      this.position = position;
+      this.function = function;
+      this.column = column;
+      this.valueIndex = valueIndex;
+    }
+
+    /** @return the alias of the item in lower case, or null if it has none */
+    public String getAlias() {
+      return alias;
+    }
+
+    /** @return the position of the item in the SELECT list, starting at 0 */
+    public int getPosition() {
+      return position;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s(%s)", function, column == null ? "*" : column);
+    }
+  }
+
+  /** A predicate on one column. */
+  private static class Filter {
+    enum Kind {
+      COMPARE,
+      BETWEEN,
+      IN,
+      LIKE,
+      NULL
+    }
+
+    private final String column;
+    private final Kind kind;
+    private final String operator;
+    private final boolean negated;
+    private final List<Object> literals;
+
+    Filter(String column, Kind kind, String operator, boolean negated, List<Object> literals) {
+      this.column = column;
+      this.kind = kind;
+      this.operator = operator;
+      this.negated = negated;
+      this.literals = literals;
+    }
+
+    /** @return whether each distinct value of the column satisfies the predicate */
+    boolean[] evaluate(ColumnVector vector) {
+      boolean[] matches = new boolean[vector.getCardinality()];
+      for (int code = 0; code < matches.length; ++code) {
+        matches[code] = this.test(vector.decode(code));
+      }
+      return matches;
+    }
+
+    private boolean test(Object value) {
+      if (kind == Kind.NULL) {
+        return (value == null) != negated;
+      }
+      if (kind == Kind.COMPARE && operator.equals("<=>")) {
+        Object literal = literals.get(0);
+        return value == null || literal == null ? value == literal : compare(value, literal) == 0;
+      }
+      // a comparison with NULL is never true, not even negated
+      if (value == null) {
+        return false;
+      }
+      switch (kind) {
+        case COMPARE:
+          {
+            Object literal = literals.get(0);
+            if (literal == null) {
+              return false;
+            }
+            int c = compare(value, literal);
+            switch (operator) {
+              case "=":
+                return c == 0;
+              case "<>":
+              case "!=":
+                return c != 0;
+              case "<":
+                return c < 0;
+              case "<=":
+                return c <= 0;
+              case ">":
+                return c > 0;
+              default:
+                return c >= 0;
+            }
+          }
+        case BETWEEN:
+          if (literals.get(0) == null || literals.get(1) == null) {
+            return false;
+          }
+          return (compare(value, literals.get(0)) >= 0 && compare(value, literals.get(1)) <= 0)
+              != negated;
+        case IN:
+          for (Object literal : literals) {
+            if (literal != null && compare(value, literal) == 0) {
+              return !negated;
+            }
+          }
+          return negated;
+        default:
+          return ((Pattern) literals.get(0)).matcher(String.valueOf(value)).matches() != negated;
+      }
+    }
+
+    /** Compares numerically if both sides are numbers, otherwise by their string forms. */
+    private static int compare(Object value, Object literal) {
+      if (value instanceof Number) {
+        Double number = literal instanceof Double ? (Double) literal : parse(literal.toString());
+        if (number != null) {
+          return Double.compare(((Number) value).doubleValue(), number);
+        }
+      }
+      return String.valueOf(value).compareTo(literal.toString());
+    }
+
+    private static Double parse(String s) {
+      try {
+        return Double.parseDouble(s.trim());
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Aggregates the rows of a sample.
+   *
+   * @param columns column vectors of the sample by lower-case name
+   * @param weight weight of every row, used if {@code weights} is null
+   * @param weights per-row weights as doubles, or null
+   */
+  public Result execute(
+      Map<String, ColumnVector> columns, int rowCount, double weight, ByteBuffer weights)
+      throws SqlRewriteException {
+    ColumnVector[] groupVectors = this.getVectors(columns, groupBy, true);
+    ColumnVector[] aggVectors = this.getVectors(columns, aggColumns, false);
+    for (String column : joinColumns) {
+      if (!columns.containsKey(column)) {
+        throw new SqlRewriteException("Sample does not have join column: " + column);
+      }
+    }
+    ColumnVector[] filterVectors = new ColumnVector[filters.size()];
+    boolean[][] filterMatches = new boolean[filters.size()][];
+    for (int i = 0; i < filters.size(); ++i) {
+      filterVectors[i] =
+          this.getVectors(columns, Arrays.asList(filters.get(i).column), true)[0];
+      filterMatches[i] = filters.get(i).evaluate(filterVectors[i]);
+    }
+
+    // keys combine the codes of the group-by columns in mixed radix
+    long keySpace = 1;
+    for (ColumnVector vector : groupVectors) {
+      keySpace =
+          keySpace > Long.MAX_VALUE / Math.max(1, vector.getCardinality())
+              ? Long.MAX_VALUE
+              : keySpace * Math.max(1, vector.getCardinality());
+    }
+    GroupIndex index = new GroupIndex(keySpace, aggVectors.length);
+
+    int[] selection = new int[BATCH_SIZE];
+    long[] keys = new long[BATCH_SIZE];
+    int[] groups = new int[BATCH_SIZE];
+    double[] rowWeights = new double[BATCH_SIZE];
+    long selected = 0;
+    for (int start = 0; start < rowCount; start += BATCH_SIZE) {
+      int n = Math.min(BATCH_SIZE, rowCount - start);
+      for (int i = 0; i < n; ++i) {
+        selection[i] = start + i;
+      }
+      for (int f = 0; f < filterVectors.length && n > 0; ++f) {
+        ColumnVector vector = filterVectors[f];
+        boolean[] matches = filterMatches[f];
+        int kept = 0;
+        for (int i = 0; i < n; ++i) {
+          int row = selection[i];
+          if (matches[vector.getCode(row)]) {
+            selection[kept++] = row;
+          }
+        }
+        n = kept;
+      }
+      if (n == 0) {
+        continue;
+      }
+      selected += n;
+
+      Arrays.fill(keys, 0, n, 0L);
+      for (ColumnVector vector : groupVectors) {
+        long cardinality = Math.max(1, vector.getCardinality());
+        for (int i = 0; i < n; ++i) {
+          keys[i] = keys[i] * cardinality + vector.getCode(selection[i]);
+        }
+      }
+      for (int i = 0; i < n; ++i) {
+        groups[i] = index.getGroup(keys[i]);
+      }
+      if (weights != null) {
+        for (int i = 0; i < n; ++i) {
+          rowWeights[i] = weights.getDouble(selection[i] * 8);
+        }
+      } else {
+        Arrays.fill(rowWeights, 0, n, weight);
+      }
+
+      for (int i = 0; i < n; ++i) {
+        index.counts[groups[i]] += rowWeights[i];
+      }
+      for (int a = 0; a < aggVectors.length; ++a) {
+        ColumnVector vector = aggVectors[a];
+        double[] sums = index.sums[a];
+        double[] nonNullCounts = index.nonNullCounts[a];
+        for (int i = 0; i < n; ++i) {
+          double value = vector.getValue(selection[i]);
+          if (!Double.isNaN(value)) {
+            sums[groups[i]] += rowWeights[i] * value;
+            nonNullCounts[groups[i]] += rowWeights[i];
+          }
+        }
+      }
+    }
+
+    // decode the keys of the groups
+    List<List<Object>> groupKeys = new ArrayList<>();
+    for (int g = 0; g < index.size; ++g) {
+      Object[] values = new Object[groupVectors.length];
+      long key = index.keys[g];
+      for (int c = groupVectors.length - 1; c >= 0; --c) {
+        long cardinality = Math.max(1, groupVectors[c].getCardinality());
+        int code = (int) (key % cardinality);
+        values[c] = groupVectors[c].getCardinality() > 0 ? groupVectors[c].decode(code) : null;
+        key /= cardinality;
+      }
+      groupKeys.add(Arrays.asList(values));
+    }
+    return new Result(
+        groupBy,
+        aggregates,
+        groupKeys,
+        Arrays.copyOf(index.counts, index.size),
+        index.trimmed(index.sums),
+        index.trimmed(index.nonNullCounts),
+        rowCount,
+        selected);
+  }
+
+  private ColumnVector[] getVectors(
+      Map<String, ColumnVector> columns, List<String> names, boolean encoded)
+      throws SqlRewriteException {
+    ColumnVector[] vectors = new ColumnVector[names.size()];
+    for (int i = 0; i < names.size(); ++i) {
+      ColumnVector vector = columns.get(names.get(i));
+      if (vector == null) {
+        throw new SqlRewriteException("Sample does not have column: " + names.get(i));
+      }
+      if (encoded ? !vector.isEncoded() : !vector.hasValues()) {
+        throw new SqlRewriteException(
+            String.format(
+                "Column %s is not loaded %s", names.get(i), encoded ? "encoded" : "as numbers"));
+      }
+      vectors[i] = vector;
+    }
+    return vectors;
+  }
+
+  /** Maps group keys to dense group numbers and holds the aggregates of each group. */
+  private static class GroupIndex {
+    private final int[] dense;
+    private final Map<Long, Integer> sparse;
+    private long[] keys = new long[16];
+    private double[] counts = new double[16];
+    private final double[][] sums;
+    private final double[][] nonNullCounts;
+    private int size = 0;
+
+    GroupIndex(long keySpace, int aggCount) {
+      if (keySpace <= DENSE_GROUP_LIMIT) {
+        dense = new int[(int) keySpace];
+        Arrays.fill(dense, -1);
+        sparse = null;
+      } else {
+        dense = null;
+        sparse = new HashMap<>();
+      }
+      sums = new double[aggCount][16];
+      nonNullCounts = new double[aggCount][16];
+    }
+
+    int getGroup(long key) {
+      if (dense != null) {
+        int group = dense[(int) key];
+        if (group < 0) {
+          group = this.add(key);
+          dense[(int) key] = group;
+        }
+        return group;
+      }
+      Integer group = sparse.get(key);
+      if (group == null) {
+        group = this.add(key);
+        sparse.put(key, group);
+      }
+      return group;
+    }
+
+    private int add(long key) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+        for (int a = 0; a < sums.length; ++a) {
+          sums[a] = Arrays.copyOf(sums[a], size * 2);
+          nonNullCounts[a] = Arrays.copyOf(nonNullCounts[a], size * 2);
+        }
+      }
+      keys[size] = key;
+      return size++;
+    }
+
+    double[][] trimmed(double[][] arrays) {
+      double[][] trimmed = new double[arrays.length][];
+      for (int a = 0; a < arrays.length; ++a) {
+        trimmed[a] = Arrays.copyOf(arrays[a], size);
+      }
+      return trimmed;
+    }
+  }
+
+  /** Estimated aggregates of the groups of a query. */
+  public static class Result {
+    private final List<String> groupBy;
+    private final List<Aggregate> aggregates;
+    private final List<List<Object>> groupKeys;
+    private final double[] counts;
+    private final double[][] sums;
+    private final double[][] nonNullCounts;
+    private final long rowsScanned;
+    private final long rowsSelected;
+
+    Result(
+        List<String> groupBy,
+        List<Aggregate> aggregates,
+        List<List<Object>> groupKeys,
+        double[] counts,
+        double[][] sums,
+        double[][] nonNullCounts,
+        long rowsScanned,
+        long rowsSelected) {
+      this.groupBy = groupBy;
+      this.aggregates = aggregates;
+      this.groupKeys = groupKeys;
+      this.counts = counts;
+      this.sums = sums;
+      this.nonNullCounts = nonNullCounts;
+      this.rowsScanned = rowsScanned;
+      this.rowsSelected = rowsSelected;
+    }
+
+    public List<String> getGroupBy() {
+      return groupBy;
+    }
+
+    /** @return the aggregates of the SELECT list, in its order */
+    public List<Aggregate> getAggregates() {
+      return aggregates;
+    }
+
+    public int getGroupCount() {
+      return groupKeys.size();
+    }
+
+    /** @return the values of the group-by columns of a group */
+    public List<Object> getKey(int group) {
+      return groupKeys.get(group);
+    }
+
+    /** @return the estimated number of rows of a group */
+    public double getCount(int group) {
+      return counts[group];
+    }
+
+    /**
+     * @return the estimate of an aggregate of the SELECT list in a group, or NaN for the AVG of a
+     *     column that is all NULL
+     */
+    public double getValue(int group, int agg) {
+      Aggregate aggregate = aggregates.get(agg);
+      if (aggregate.valueIndex < 0) {
+        return counts[group];
+      }
+      double sum = sums[aggregate.valueIndex][group];
+      double count = nonNullCounts[aggregate.valueIndex][group];
+      switch (aggregate.function) {
+        case SUM:
+          return sum;
+        case COUNT:
+          return count;
+        default:
+          return count > 0 ? sum / count : Double.NaN;
+      }
+    }
+
+    public long getRowsScanned() {
+      return rowsScanned;
+    }
+
+    public long getRowsSelected() {
+      return rowsSelected;
+    }
+  }
+}
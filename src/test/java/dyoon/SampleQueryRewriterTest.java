@@ -0,0 +1,233 @@
+package dyoon;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the sample queries written by {@link SampleQueryRewriter} with the expected SQL, up to
+ * whitespace. Each rewritten query must also parse.
+ */
+public class SampleQueryRewriterTest {
+
+  @BeforeClass
+  public static void setUp() {
+    if (Main.getQueries().isEmpty()) {
+      Main.setQueries();
+    }
+  }
+
+  private static Query getQuery(String id) {
+    for (Query q : Main.getQueries()) {
+      if (q.getId().equals(id)) {
+        return q;
+      }
+    }
+    throw new IllegalArgumentException("No query " + id);
+  }
+
+  private static void assertRewritten(String expected, Query q, Sample s)
+      throws SqlRewriteException {
+    String actual = new SampleQueryRewriter(q).rewrite(s);
+    SampleQueryRewriter.parse(actual);
+    assertEquals(normalize(expected), normalize(actual));
+  }
+
+  private static String normalize(String sql) {
+    return sql.replaceAll("\\s+", " ").trim();
+  }
+
+  private static Set<String> setOf(String... values) {
+    return new TreeSet<>(Arrays.asList(values));
+  }
+
+  /**
+   * Every conjunct of q42 keeps or drops whole strata, so, as in its hand-written sample query, all
+   * of them filter the sample and the stat table, and no aggregate is filtered.
+   */
+  @Test
+  public void testQ42OnItsQueryColumnSet() throws SqlRewriteException {
+    Query q42 = getQuery("42");
+    Sample s =
+        new Sample(
+            q42,
+            Sample.Type.STRATIFIED,
+            "store_sales",
+            q42.getJoinedTables(),
+            q42.getQueryColumnSet());
+    assertRewritten(
+        "SELECT tmp.d_year AS d_year, tmp.i_category_id AS i_category_id, "
+            + "tmp.i_category AS i_category, "
+            + "sum(CAST(tmp.agg0 AS DOUBLE) / tmp.samplesize * stat.groupsize) AS sum_price, "
+            + "sum(CAST(tmp.agg1 AS DOUBLE) / tmp.samplesize * stat.groupsize) AS groupsize\n"
+            + "FROM (SELECT d_moy, d_year, i_category, i_category_id, i_manager_id, "
+            + "sum(ss_ext_sales_price) AS agg0, count(*) AS agg1, count(*) AS samplesize "
+            + "from date_dim dt ,FACT_TABLE as store_sales ,item "
+            + "WHERE (dt.d_date_sk = store_sales.ss_sold_date_sk) "
+            + "AND (store_sales.ss_item_sk = item.i_item_sk) AND (item.i_manager_id = 1) "
+            + "AND (dt.d_moy=12) AND (dt.d_year=1998) "
+            + "GROUP BY d_moy, d_year, i_category, i_category_id, i_manager_id) tmp\n"
+            + "JOIN (SELECT d_moy, d_year, i_category, i_category_id, i_manager_id, groupsize "
+            + "FROM STAT_TABLE WHERE (i_manager_id = 1) AND (d_moy=12) AND (d_year=1998)) stat\n"
+            + "ON tmp.d_moy IS NOT DISTINCT FROM stat.d_moy "
+            + "AND tmp.d_year IS NOT DISTINCT FROM stat.d_year "
+            + "AND tmp.i_category IS NOT DISTINCT FROM stat.i_category "
+            + "AND tmp.i_category_id IS NOT DISTINCT FROM stat.i_category_id "
+            + "AND tmp.i_manager_id IS NOT DISTINCT FROM stat.i_manager_id\n"
+            + "GROUP BY tmp.d_year, tmp.i_category_id, tmp.i_category\n"
+            + "ORDER BY sum_price desc, d_year, i_category_id, i_category",
+        q42,
+        s);
+  }
+
+  @Test
+  public void testQ42OnUniformSample() throws SqlRewriteException {
+    Query q42 = getQuery("42");
+    Sample s =
+        new Sample(q42, Sample.Type.UNIFORM, "store_sales", q42.getJoinedTables(), setOf());
+    s.setRatio(0.01);
+    assertRewritten(
+        "select dt.d_year as d_year ,item.i_category_id as i_category_id "
+            + ",item.i_category as i_category "
+            + ",(sum(ss_ext_sales_price) / 0.01) as sum_price, (count(*) / 0.01) as groupsize "
+            + "from date_dim dt ,FACT_TABLE as store_sales ,item "
+            + "where dt.d_date_sk = store_sales.ss_sold_date_sk "
+            + "and store_sales.ss_item_sk = item.i_item_sk and item.i_manager_id = 1 "
+            + "and dt.d_moy=12 and dt.d_year=1998 "
+            + "group by dt.d_year ,item.i_category_id ,item.i_category "
+            + "order by sum(ss_ext_sales_price) desc,dt.d_year "
+            + ",item.i_category_id ,item.i_category",
+        q42,
+        s);
+  }
+
+  /** q33_1 unions three fact tables in a WITH clause, so only its hand-written query is used. */
+  @Test(expected = SqlRewriteException.class)
+  public void testQ33_1IsNotRewritten() throws SqlRewriteException {
+    Query q33_1 = getQuery("33_1");
+    new SampleQueryRewriter(q33_1)
+        .rewrite(
+            new Sample(
+                q33_1,
+                Sample.Type.STRATIFIED,
+                "store_sales",
+                q33_1.getJoinedTables(),
+                q33_1.getQueryColumnSet()));
+  }
+
+  /**
+   * The store_sales block of q33_1: like its hand-written sample query, the IN subquery on the
+   * stratum column i_manufact_id filters the sample rather than the aggregates.
+   */
+  @Test
+  public void testQ33_1StoreSalesBlock() throws SqlRewriteException {
+    Query q33_1 = getQuery("33_1");
+    Query q =
+        new Query(
+            "33_1_ss",
+            new ArrayList<>(q33_1.getQueryColumnSet()),
+            new ArrayList<>(q33_1.getJoinedTables()),
+            new ArrayList<Pair<String, String>>());
+    q.setQuery(
+        "select i_manufact_id, sum(ss_ext_sales_price) total_sales "
+            + "from FACT_TABLE as store_sales, date_dim, customer_address, item "
+            + "where i_manufact_id in "
+            + "(select i_manufact_id from item where i_category in ('Books')) "
+            + "and ss_item_sk = i_item_sk and ss_sold_date_sk = d_date_sk "
+            + "and d_year = 1999 and d_moy = 3 and ss_addr_sk = ca_address_sk "
+            + "and ca_gmt_offset = -6 group by i_manufact_id");
+    Sample s =
+        new Sample(
+            q33_1,
+            Sample.Type.STRATIFIED,
+            "store_sales",
+            q33_1.getJoinedTables(),
+            q33_1.getQueryColumnSet());
+    assertRewritten(
+        "SELECT tmp.i_manufact_id AS i_manufact_id, "
+            + "sum(CAST(tmp.agg0 AS DOUBLE) / tmp.samplesize * stat.groupsize) AS total_sales\n"
+            + "FROM (SELECT ca_gmt_offset, d_moy, d_year, i_manufact_id, "
+            + "sum(ss_ext_sales_price) AS agg0, count(*) AS samplesize "
+            + "from FACT_TABLE as store_sales, date_dim, customer_address, item "
+            + "WHERE (i_manufact_id in "
+            + "(select i_manufact_id from item where i_category in ('Books'))) "
+            + "AND (ss_item_sk = i_item_sk) AND (ss_sold_date_sk = d_date_sk) "
+            + "AND (d_year = 1999) AND (d_moy = 3) AND (ss_addr_sk = ca_address_sk) "
+            + "AND (ca_gmt_offset = -6) "
+            + "GROUP BY ca_gmt_offset, d_moy, d_year, i_manufact_id) tmp\n"
+            + "JOIN (SELECT ca_gmt_offset, d_moy, d_year, i_manufact_id, groupsize "
+            + "FROM STAT_TABLE WHERE (d_year = 1999) AND (d_moy = 3) "
+            + "AND (ca_gmt_offset = -6)) stat\n"
+            + "ON tmp.ca_gmt_offset IS NOT DISTINCT FROM stat.ca_gmt_offset "
+            + "AND tmp.d_moy IS NOT DISTINCT FROM stat.d_moy "
+            + "AND tmp.d_year IS NOT DISTINCT FROM stat.d_year "
+            + "AND tmp.i_manufact_id IS NOT DISTINCT FROM stat.i_manufact_id\n"
+            + "GROUP BY tmp.i_manufact_id",
+        q,
+        s);
+  }
+
+  /**
+   * A conjunct on a column outside the strata filters the aggregates, and strata without a
+   * matching row are dropped by HAVING; sort keys resolve to positions, output names and strata.
+   */
+  @Test
+  public void testFilterOutsideStrata() throws SqlRewriteException {
+    Query q =
+        new Query(
+            "t",
+            "SELECT ss_store_sk, sum(ss_net_paid) AS paid, avg(ss_quantity) AS quantity "
+                + "FROM FACT_TABLE WHERE ss_quantity > 10 AND ss_store_sk < 100 "
+                + "GROUP BY ss_store_sk, ss_promo_sk ORDER BY 2 DESC, ss_promo_sk LIMIT 10");
+    Sample s =
+        new Sample(
+            q,
+            Sample.Type.STRATIFIED,
+            "store_sales",
+            setOf("store_sales"),
+            setOf("ss_store_sk", "ss_promo_sk"));
+    assertRewritten(
+        "SELECT tmp.ss_store_sk AS ss_store_sk, "
+            + "sum(CAST(tmp.agg0 AS DOUBLE) / tmp.samplesize * stat.groupsize) AS paid, "
+            + "(sum(CAST(tmp.agg1_sum AS DOUBLE) / tmp.samplesize * stat.groupsize) "
+            + "/ sum(CAST(tmp.agg1_count AS DOUBLE) / tmp.samplesize * stat.groupsize)) "
+            + "AS quantity\n"
+            + "FROM (SELECT ss_promo_sk, ss_store_sk, "
+            + "sum(CASE WHEN (ss_quantity > 10) THEN ss_net_paid END) AS agg0, "
+            + "sum(CASE WHEN (ss_quantity > 10) THEN ss_quantity END) AS agg1_sum, "
+            + "count(CASE WHEN (ss_quantity > 10) THEN ss_quantity END) AS agg1_count, "
+            + "count(*) AS samplesize FROM FACT_TABLE WHERE (ss_store_sk < 100) "
+            + "GROUP BY ss_promo_sk, ss_store_sk "
+            + "HAVING count(CASE WHEN (ss_quantity > 10) THEN 1 END) > 0) tmp\n"
+            + "JOIN (SELECT ss_promo_sk, ss_store_sk, groupsize "
+            + "FROM STAT_TABLE WHERE (ss_store_sk < 100)) stat\n"
+            + "ON tmp.ss_promo_sk IS NOT DISTINCT FROM stat.ss_promo_sk "
+            + "AND tmp.ss_store_sk IS NOT DISTINCT FROM stat.ss_store_sk\n"
+            + "GROUP BY tmp.ss_store_sk, tmp.ss_promo_sk\n"
+            + "ORDER BY 2 DESC, tmp.ss_promo_sk\n"
+            + "LIMIT 10",
+        q,
+        s);
+  }
+
+  @Test(expected = SqlRewriteException.class)
+  public void testGroupByOutsideStrata() throws SqlRewriteException {
+    Query q =
+        new Query("t", "SELECT ss_store_sk, sum(ss_net_paid) FROM FACT_TABLE GROUP BY ss_store_sk");
+    new SampleQueryRewriter(q)
+        .rewrite(
+            new Sample(
+                q,
+                Sample.Type.STRATIFIED,
+                "store_sales",
+                setOf("store_sales"),
+                setOf("ss_promo_sk")));
+  }
+}
@@ -0,0 +1,143 @@
+package dyoon;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the aggregates of the SELECT list and the WHERE predicates that {@link
+ * VectorizedAggregator} answers over column vectors, against values computed by hand.
+ */
+public class VectorizedAggregatorTest {
+
+  private static final double DELTA = 1e-9;
+
+  // k is grouped by, v is aggregated and filtered on, s is filtered on
+  private static final List<Object> K = Arrays.<Object>asList("x", "x", "y", "y", null);
+  private static final List<Object> V = Arrays.<Object>asList(1, 2, 3, null, 5);
+  private static final List<Object> S =
+      Arrays.<Object>asList("apple", "apricot", "banana", null, "a%b");
+
+  private static Map<String, ColumnVector> getColumns() {
+    Map<String, ColumnVector> columns = new HashMap<>();
+    columns.put("k", toVector("k", K, false));
+    columns.put("v", toVector("v", V, true));
+    columns.put("s", toVector("s", S, false));
+    return columns;
+  }
+
+  private static ColumnVector toVector(String name, List<Object> values, boolean numeric) {
+    ColumnVector vector = new ColumnVector(name, true, numeric);
+    for (Object value : values) {
+      vector.append(value);
+    }
+    return vector;
+  }
+
+  private static VectorizedAggregator.Result execute(
+      String sql, List<String> groupBy, double weight) throws SqlRewriteException {
+    Query q = new Query("t", sql);
+    q.setGroupByColumns(groupBy);
+    return new VectorizedAggregator(q).execute(getColumns(), K.size(), weight, null);
+  }
+
+  /** @return the number of rows that satisfy a WHERE clause */
+  private static double count(String where) throws SqlRewriteException {
+    VectorizedAggregator.Result result =
+        execute(
+            "SELECT count(*) AS c FROM FACT_TABLE WHERE " + where,
+            Collections.<String>emptyList(),
+            1);
+    return result.getGroupCount() == 0 ? 0 : result.getValue(0, 0);
+  }
+
+  @Test
+  public void testSelectItems() throws SqlRewriteException {
+    VectorizedAggregator.Result result =
+        execute(
+            "SELECT k, sum(v) AS s, avg(v) AS a, count(*) AS c, count(v) AS n "
+                + "FROM FACT_TABLE GROUP BY k",
+            Arrays.asList("k"),
+            2);
+    assertEquals(3, result.getGroupCount());
+    assertEquals(4, result.getAggregates().size());
+    Map<Object, double[]> expected = new HashMap<>();
+    expected.put("x", new double[] {6, 1.5, 4, 4});
+    expected.put("y", new double[] {6, 3, 4, 2});
+    expected.put(null, new double[] {10, 5, 2, 2});
+    for (int group = 0; group < result.getGroupCount(); ++group) {
+      double[] values = expected.get(result.getKey(group).get(0));
+      for (int agg = 0; agg < values.length; ++agg) {
+        assertEquals(values[agg], result.getValue(group, agg), DELTA);
+      }
+    }
+  }
+
+  @Test(expected = SqlRewriteException.class)
+  public void testExpressionOfAggregates() throws SqlRewriteException {
+    execute("SELECT k, sum(v) / count(*) FROM FACT_TABLE GROUP BY k", Arrays.asList("k"), 1);
+  }
+
+  @Test(expected = SqlRewriteException.class)
+  public void testUnsupportedAggregate() throws SqlRewriteException {
+    execute("SELECT k, max(v) FROM FACT_TABLE GROUP BY k", Arrays.asList("k"), 1);
+  }
+
+  @Test(expected = SqlRewriteException.class)
+  public void testColumnNotGrouped() throws SqlRewriteException {
+    execute("SELECT s, sum(v) FROM FACT_TABLE GROUP BY k", Arrays.asList("k"), 1);
+  }
+
+  /** A comparison with NULL is never true, not even negated. */
+  @Test
+  public void testComparison() throws SqlRewriteException {
+    assertEquals(3, count("v > 1"), DELTA);
+    assertEquals(3, count("v <> 2"), DELTA);
+    assertEquals(1, count("v <= 1"), DELTA);
+    assertEquals(1, count("v = '3'"), DELTA);
+    assertEquals(1, count("v > -2 AND v < 2"), DELTA);
+    assertEquals(0, count("v = NULL"), DELTA);
+    assertEquals(1, count("s = 'banana'"), DELTA);
+  }
+
+  @Test
+  public void testBetweenAndIn() throws SqlRewriteException {
+    assertEquals(2, count("v BETWEEN 2 AND 3"), DELTA);
+    assertEquals(2, count("v NOT BETWEEN 2 AND 3"), DELTA);
+    assertEquals(2, count("v IN (1, 5, NULL)"), DELTA);
+    assertEquals(2, count("v NOT IN (1, 5)"), DELTA);
+    assertEquals(2, count("k IN ('y')"), DELTA);
+  }
+
+  @Test
+  public void testLikeAndNull() throws SqlRewriteException {
+    assertEquals(2, count("s LIKE 'ap%'"), DELTA);
+    assertEquals(2, count("s NOT LIKE 'ap%'"), DELTA);
+    assertEquals(1, count("s LIKE '_pple'"), DELTA);
+    assertEquals(1, count("s LIKE 'a%b'"), DELTA);
+    assertEquals(0, count("s LIKE 'a.b'"), DELTA);
+    assertEquals(1, count("s IS NULL"), DELTA);
+    assertEquals(4, count("v IS NOT NULL"), DELTA);
+  }
+
+  @Test
+  public void testNestedConjunction() throws SqlRewriteException {
+    assertEquals(1, count("k = 'x' AND (v >= 2 AND s LIKE 'apr%')"), DELTA);
+  }
+
+  @Test(expected = SqlRewriteException.class)
+  public void testDisjunction() throws SqlRewriteException {
+    count("v > 1 OR v < 0");
+  }
+
+  @Test(expected = SqlRewriteException.class)
+  public void testPredicateOnExpression() throws SqlRewriteException {
+    count("v + 1 > 2");
+  }
+}